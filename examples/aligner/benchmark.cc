@@ -0,0 +1,95 @@
+#include <iostream>
+#include <cstdlib>
+#include <ctime>
+#include <sys/time.h>
+
+#include "aligner.h"
+
+// The forward pass with doubles defines classes of the same names, so it goes in a namespace
+namespace Double {
+#include "alignerdouble.cc"
+}
+
+//----------------------------------------------------------------------------------------
+// Times the DP algorithms of the aligner on a pair of random, related sequences.
+//
+// Usage: benchmark [length1 [length2 [repeats]]]
+//
+// The Baum-Welch backward pass keeps only two columns of its DP table (a FoldedTable), and
+// clears one of them every time the slow coordinate advances; the forward pass stores the
+// full table.  ForwardFolded is a forward pass with doubles that keeps two columns too, and
+// whose columns are zeroed in bulk.  A long first sequence and a short second one give long
+// columns, e.g. 'benchmark 100000 20'.  (ForwardFolded underflows on long sequences; it is
+// compiled with -ffast-math, which flushes denormals to zero, so that this does not slow it down.)
+//
+// benchmark-realloc is the same program compiled with DPTABLE_REALLOCATE, with which clearing
+// a column frees and reallocates it, as before; comparing the two shows the gain.
+
+static double now() {
+  struct timeval tv;
+  gettimeofday( &tv, 0 );
+  return tv.tv_sec + tv.tv_usec * 1.0e-6;
+}
+
+int main(int argc, char** argv) {
+
+  int iLength1 = 2000;
+  int iLength2 = 2000;
+  int iRepeats = 3;
+  if (argc > 1) iLength1 = iLength2 = atoi( argv[1] );
+  if (argc > 2) iLength2 = atoi( argv[2] );
+  if (argc > 3) iRepeats = atoi( argv[3] );
+
+  // second sequence follows the first one (cyclically) with 10% substitutions and 5% indels
+  srand( 1 );
+  const char* acgt = "ACGT";
+  vector<char> iSeq1, iSeq2;
+  for (int i=0; i<iLength1; i++) {
+    iSeq1.push_back( acgt[ rand() % 4 ] );
+  }
+  for (int i=0; (int)iSeq2.size() < iLength2; i++) {
+    int r = rand() % 100;
+    if (r < 10) {
+      iSeq2.push_back( acgt[ rand() % 4 ] );
+    } else if (r < 15) {
+      iSeq2.push_back( iSeq1[i % iLength1] );
+      iSeq2.push_back( acgt[ rand() % 4 ] );
+    } else if (r >= 20) {
+      iSeq2.push_back( iSeq1[i % iLength1] );
+    }
+  }
+
+  double iSigma = 0.4, iDelta = 0.05, iR = 0.6, iTau = 0.0001;
+
+  double tForward = 0, tBaumWelch = 0, tFolded = 0;
+  bfloat fw, bw;
+  double ff;
+  for (int rep=0; rep<iRepeats; rep++) {
+    AlignDPTable* pFW;
+    AlignBaumWelch baumWelch;
+    double t0 = now();
+    fw = Forward( &pFW, iDelta, iR, iSigma, iTau, iSeq1, iSeq2 );
+    double t1 = now();
+    baumWelch.resetCounts();
+    bw = BackwardBaumWelch( baumWelch, pFW, iDelta, iR, iSigma, iTau, iSeq1, iSeq2 );
+    double t2 = now();
+    ff = Double::ForwardFolded( iDelta, iR, iSigma, iTau, iSeq1, iSeq2 );
+    double t3 = now();
+    delete pFW;
+    tForward += t1 - t0;
+    tBaumWelch += t2 - t1;
+    tFolded += t3 - t2;
+  }
+
+  cout << "Lengths " << iSeq1.size() << " and " << iSeq2.size() << ", " << iRepeats << " repeats" << endl;
+#ifdef DPTABLE_REALLOCATE
+  cout << "Folded tables are reallocated" << endl;
+#else
+  cout << "Folded tables are reset in place" << endl;
+#endif
+  cout << "Likelihood: forward " << fw << ", backward " << bw << ", folded forward (double) " << ff << endl;
+  cout << "Forward:            " << 1000.0 * tForward / iRepeats << " ms" << endl;
+  cout << "Backward+BaumWelch: " << 1000.0 * tBaumWelch / iRepeats << " ms" << endl;
+  cout << "ForwardFolded:      " << 1000.0 * tFolded / iRepeats << " ms" << endl;
+
+}
@@ -102,6 +102,23 @@ int main(void) {
   cout << "Viterbi decoding got " << iCorrect << " out of " << iViterbiPath.size() << " states correct." << endl;
   cout << "or: " << setw(12) << iNewCorrect << " / " << iViterbiPath.size() << " = " << (double(iNewCorrect) / iViterbiPath.size()) << endl;
 
+  // The checkpointed Viterbi table must give the same path, also for an empty sequence
+  for (int iLen=0; iLen<=iPathLength; iLen+=iPathLength) {
+    CasinoDPTable* pDP;
+    CasinoCheckpointDPTable* pCkDP;
+    bfloat iProb = Viterbi_recurse(&pDP, iPar, aSequence, iLen );
+    bfloat iCkProb = ViterbiCk_recurse(&pCkDP, iPar, aSequence, iLen );
+    Path& iPath = Viterbi_trace(pDP, iPar, aSequence, iLen );
+    Path& iCkPath = ViterbiCk_trace(pCkDP, iPar, aSequence, iLen );
+    assert( iProb == iCkProb && iPath.size() == iCkPath.size() );
+    for (int i=0; i<(int)iPath.size(); i++) {
+      assert( iPath.transition(i) == iCkPath.transition(i) );
+    }
+    delete pDP;
+    delete pCkDP;
+  }
+  cout << "Checkpointed Viterbi paths agree." << endl;
+
   cout << "Baum Welch emission counts:"<<endl;
 
   cout << setw(12) << " " << setw(12) << "Honest" << setw(12) << "Dishonest" << setw(12) << "Stupid" << endl;
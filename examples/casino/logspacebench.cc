@@ -0,0 +1,109 @@
+#include <iostream>
+#include <cstdlib>
+#include <cmath>
+#include <vector>
+#include <sys/time.h>
+
+#include "algebras.h"
+
+//----------------------------------------------------------------------------------------
+// Compares the table-driven log-sum-exp used by Logspace sums with the libm version.
+//
+// Usage: logspacebench [count [repeats]]
+//
+// Accuracy is measured as the largest absolute difference of the results (in the log, so a
+// relative difference in the probability) over a fine grid of differences, and over random
+// pairs.  Throughput is measured for independent sums, and for accumulation into a single
+// value as the forward recursion does (iX = psum(iX,iY) for every incoming transition), per sum.
+
+static double now() {
+  struct timeval tv;
+  gettimeofday( &tv, 0 );
+  return tv.tv_sec + tv.tv_usec * 1.0e-6;
+}
+
+// The sum used by Logspace, and the libm version
+static inline Logspace addTable( Logspace iX, Logspace iY ) {
+  return logspace_add( iX, iY );
+}
+
+static inline Logspace addLibm( Logspace iX, Logspace iY ) {
+  return iX > iY ? logspace_addsmall_libm( iX, iY ) : logspace_addsmall_libm( iY, iX );
+}
+
+int main(int argc, char** argv) {
+
+  int iCount = 1000000;
+  int iRepeats = 20;
+  if (argc > 1) iCount = atoi( argv[1] );
+  if (argc > 2) iRepeats = atoi( argv[2] );
+
+  // Accuracy on a grid of differences, up to beyond the cutoff
+  double iMaxErr = 0, iMaxErrAt = 0;
+  for (int i=0; i<=4000000; i++) {
+    double d = i * 1.0e-5;
+    double e = fabs( (double)logspace_addsmall( 0.0, -d ) - (double)logspace_addsmall_libm( 0.0, -d ) );
+    if (e > iMaxErr) { iMaxErr = e; iMaxErrAt = d; }
+  }
+  cout << "Grid:   max abs error " << iMaxErr << " at difference " << iMaxErrAt << endl;
+
+  // Random values, where neighbours differ by up to 30, i.e. 13 orders of magnitude, and the
+  // difference of pairs is below 30, as for the terms of a sum in a forward recursion
+  srand( 1 );
+  vector<Logspace> iX( iCount ), iY( iCount );
+  for (int i=0; i<iCount; i++) {
+    iX[i] = -1000.0 * i / iCount - 30.0 * rand() / RAND_MAX;
+    iY[i] = iX[i] - 30.0 * rand() / RAND_MAX;
+    if (rand() % 2) { Logspace t = iX[i]; iX[i] = iY[i]; iY[i] = t; }
+  }
+  iMaxErr = 0;
+  for (int i=0; i<iCount; i++) {
+    double e = fabs( (double)addTable( iX[i], iY[i] ) - (double)addLibm( iX[i], iY[i] ) );
+    if (e > iMaxErr) iMaxErr = e;
+  }
+  cout << "Random: max abs error " << iMaxErr << " over " << iCount << " pairs" << endl;
+
+  double n = (double)iCount * iRepeats;
+  double t0, t1, t2;
+
+  // Throughput of independent sums
+  double iSumTable = 0, iSumLibm = 0;
+  t0 = now();
+  for (int rep=0; rep<iRepeats; rep++)
+    for (int i=0; i<iCount; i++)
+      iSumTable += addTable( iX[i], iY[i] );
+  t1 = now();
+  for (int rep=0; rep<iRepeats; rep++)
+    for (int i=0; i<iCount; i++)
+      iSumLibm += addLibm( iX[i], iY[i] );
+  t2 = now();
+  cout << "Sums:         table " << 1.0e9 * (t1-t0) / n << " ns, libm " << 1.0e9 * (t2-t1) / n
+       << " ns, speedup " << (t2-t1) / (t1-t0) << "  (checksums " << iSumTable << " " << iSumLibm << ")" << endl;
+
+  // Accumulation of 4 terms into one value, as for a state with 4 incoming transitions;
+  // successive sums depend on each other, so this measures latency rather than throughput
+  iSumTable = iSumLibm = 0;
+  t0 = now();
+  for (int rep=0; rep<iRepeats; rep++)
+    for (int i=0; i+3<iCount; i+=4) {
+      Logspace iAcc = iX[i];
+      iAcc = addTable( iAcc, iX[i+1] );
+      iAcc = addTable( iAcc, iX[i+2] );
+      iAcc = addTable( iAcc, iX[i+3] );
+      iSumTable += iAcc;
+    }
+  t1 = now();
+  for (int rep=0; rep<iRepeats; rep++)
+    for (int i=0; i+3<iCount; i+=4) {
+      Logspace iAcc = iX[i];
+      iAcc = addLibm( iAcc, iX[i+1] );
+      iAcc = addLibm( iAcc, iX[i+2] );
+      iAcc = addLibm( iAcc, iX[i+3] );
+      iSumLibm += iAcc;
+    }
+  t2 = now();
+  n *= 0.75;
+  cout << "Accumulation: table " << 1.0e9 * (t1-t0) / n << " ns, libm " << 1.0e9 * (t2-t1) / n
+       << " ns, speedup " << (t2-t1) / (t1-t0) << "  (checksums " << iSumTable << " " << iSumLibm << ")" << endl;
+
+}
@@ -0,0 +1,97 @@
+#include <stdlib.h>
+#include <cassert>
+#include <iomanip>
+#include <vector>
+#include <iostream>
+#include <string>
+#include <algorithm>
+#include <map>
+#include "algebras.h"
+#include "dptables.h"
+
+//----------------------------------------------------------------------------------------
+// Checks realtype="scaled" against realtype="double".
+//
+// Both code generations of casino.xml define the same classes and functions, so each is
+// compiled here in a namespace of its own.  On a sequence short enough for doubles, the
+// likelihood, posteriors and Baum-Welch counts of the scaled tables must agree with those
+// of plain doubles to about the precision of doubles.
+
+namespace Double {
+#include "casinodouble.cc"
+}
+
+namespace Scaled {
+#include "casinoscaled.cc"
+}
+
+
+// Relative difference
+static double reldiff( double a, double b ) {
+  if (a == b) return 0.0;
+  return fabs( a - b ) / max( fabs( a ), fabs( b ) );
+}
+
+
+int main(void) {
+
+  const int iLen = 300;                           // doubles underflow on sequences of about 400 throws
+  const double iTolerance = 1.0e-10;
+
+  Double::Params iDPar;
+  Scaled::Params iSPar;
+  iDPar.iGoHonest = iSPar.iGoHonest = 0.02;
+  iDPar.iGoDishonest = iSPar.iGoDishonest = 0.05;
+  iDPar.iGoStupid = iSPar.iGoStupid = 0.03;
+  iDPar.iGoStop = iSPar.iGoStop = 0.001;
+  for (int i=0; i<6; i++) {
+    iDPar.aEmitDishonest[i] = iSPar.aEmitDishonest[i] = (i==5 ? 0.5 : 0.1);
+    iDPar.aEmitStupid[i] = iSPar.aEmitStupid[i] = (i==0 ? 0.5 : 0.1);
+  }
+
+  srandom( 1 );
+  char* aSequence = new char[ iLen ];
+  for (int i=0; i<iLen; i++) {
+    aSequence[i] = '1' + random() % 6;
+  }
+
+  Double::CasinoDPTable *pDFW, *pDBW;
+  Scaled::CasinoDPTable *pSFW, *pSBW;
+  Double::CasinoBaumWelch dbw;
+  Scaled::CasinoBaumWelch sbw;
+  double iDProb = Double::Forward( &pDFW, iDPar, aSequence, iLen );
+  Double::Backward( dbw, pDFW, &pDBW, iDPar, aSequence, iLen );
+  xfloat iSProb = Scaled::Forward( &pSFW, iSPar, aSequence, iLen );
+  Scaled::Backward( sbw, pSFW, &pSBW, iSPar, aSequence, iLen );
+  cout << "Double likelihood: " << iDProb << "  scaled: " << iSProb << endl;
+  assert( reldiff( iDProb, iSProb ) < iTolerance );
+
+  double iMaxDiff = 0.0;
+  for (int i=0; i<=iLen; i++) {
+    const char* aState[] = { "honest", "dishonest", "stupid" };
+    for (int j=0; j<3; j++) {
+      double iDPost = pDFW->getProb( aState[j], i ) * pDBW->getProb( aState[j], i ) / iDProb;
+      double iSPost = pSFW->getProb( aState[j], i ) * pSBW->getProb( aState[j], i ) / iSProb;
+      iMaxDiff = max( iMaxDiff, fabs( iDPost - iSPost ) );
+    }
+  }
+  cout << "Largest difference of posteriors: " << iMaxDiff << endl;
+  assert( iMaxDiff < iTolerance );
+
+  iMaxDiff = 0.0;
+  for (int i=0; i<dbw.transitionDimension0; i++) {
+    iMaxDiff = max( iMaxDiff, reldiff( dbw.transitionBaumWelchCount0[i], sbw.transitionBaumWelchCount0[i] ) );
+  }
+  for (int i=0; i<6; i++) {
+    for (int j=0; j<dbw.emissionDimension1; j++) {
+      iMaxDiff = max( iMaxDiff, reldiff( dbw.emissionBaumWelchCount1[i][j], sbw.emissionBaumWelchCount1[i][j] ) );
+    }
+  }
+  cout << "Largest relative difference of Baum-Welch counts: " << iMaxDiff << endl;
+  assert( iMaxDiff < iTolerance );
+
+  cout << "Scaled and double tables agree." << endl;
+
+  delete pDFW; delete pDBW; delete pSFW; delete pSBW;
+  delete[] aSequence;
+}
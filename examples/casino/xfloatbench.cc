@@ -0,0 +1,114 @@
+#include <iostream>
+#include <cstdlib>
+#include <cmath>
+#include <vector>
+#include <sys/time.h>
+
+#include "algebras.h"
+
+//----------------------------------------------------------------------------------------
+// Compares XFloat with BFloat arithmetic.
+//
+// Usage: xfloatbench [count [repeats]]
+//
+// Times products, sums, and the update of a forward recursion, cur += (trans*emit)*prev,
+// on vectors of values that drop smoothly over 1000 orders of magnitude, with neighbours
+// within a factor 150 as in a DP table, and the same update along a
+// chain in which every value depends on the previous one, which underflows a double.  The
+// chain result is compared with an exact sum of logs to show the precision of both types.
+
+static double now() {
+  struct timeval tv;
+  gettimeofday( &tv, 0 );
+  return tv.tv_sec + tv.tv_usec * 1.0e-6;
+}
+
+template<class Real>
+class Bench {
+public:
+  vector<Real> aX, aY;
+  vector<double> aP;
+  Real iCheck;
+  double tProduct, tSum, tUpdate, tChain;
+  double iChainLog;        // error in the log of the result of the chain
+
+  Bench( int iCount ) : aX( iCount ), aY( iCount ), aP( iCount ) {
+    Real aPower[10];
+    aPower[0] = 1.0;
+    for (int k=1; k<10; k++) aPower[k] = aPower[k-1] * 1.0e-100;
+    srand( 1 );
+    for (int i=0; i<iCount; i++) {
+      aX[i] = aPower[ (10 * i) / iCount ] * exp( -230.0 * ((10 * i) % iCount) / iCount - 5.0 * rand() / RAND_MAX );
+      aY[i] = aX[i] * (0.001 + 0.999 * rand() / RAND_MAX);
+      aP[i] = 0.001 + 0.999 * rand() / RAND_MAX;
+    }
+  }
+
+  void run( int iRepeats ) {
+    int iCount = aX.size();
+    double t0 = now();
+    Real iAcc = 0.0;
+    for (int rep=0; rep<iRepeats; rep++)
+      for (int i=0; i<iCount; i++)
+        iAcc += aX[i] * aY[i];
+    double t1 = now();
+    for (int rep=0; rep<iRepeats; rep++)
+      for (int i=0; i<iCount; i++)
+        aX[i] = aX[i] + aY[i] * 1.0e-3;
+    double t2 = now();
+    // as in a forward recursion: a few states, each receiving from all others
+    for (int rep=0; rep<iRepeats; rep++)
+      for (int i=0; i+3<iCount; i+=4) {
+        Real iCur = 0.0;
+        iCur += (aP[i]*aP[i+1]) * aX[i];
+        iCur += (aP[i+1]*aP[i+2]) * aX[i+1];
+        iCur += (aP[i+2]*aP[i+3]) * aX[i+2];
+        iCur += (aP[i+3]*aP[i]) * aX[i+3];
+        aY[i] = iCur;
+      }
+    double t3 = now();
+    // a chain of dependent updates, whose value drops to about 10^-(30 count)
+    Real iPrev = 1.0;
+    for (int i=0; i+1<iCount; i++) {
+      Real iNext = 0.0;
+      iNext += (aP[i] * 1.0e-30) * iPrev;
+      iNext += (aP[i+1] * 1.0e-30) * iPrev;
+      iPrev = iNext;
+    }
+    double t4 = now();
+    long double iLog = 0.0;
+    for (int i=0; i+1<iCount; i++)
+      iLog += log( (aP[i] + aP[i+1]) * 1.0e-30 );
+    iCheck = iAcc + iPrev;
+    tProduct = (t1-t0) / iRepeats;
+    tSum = (t2-t1) / iRepeats;
+    tUpdate = (t3-t2) / iRepeats;
+    tChain = t4-t3;
+    iChainLog = log( iPrev ) - iLog;
+  }
+};
+
+int main(int argc, char** argv) {
+
+  int iCount = 1000000;
+  int iRepeats = 10;
+  if (argc > 1) iCount = atoi( argv[1] );
+  if (argc > 2) iRepeats = atoi( argv[2] );
+
+  Bench<bfloat> iB( iCount );
+  Bench<xfloat> iX( iCount );
+  iB.run( iRepeats );
+  iX.run( iRepeats );
+
+  double n = iCount;
+  cout << "Values of " << sizeof(BFloat) << " (bfloat) and " << sizeof(XFloat) << " (xfloat) bytes; "
+       << iCount << " values, " << iRepeats << " repeats" << endl;
+  cout << "                     bfloat       xfloat       speedup" << endl;
+  cout << "product+sum     " << 1.0e9*iB.tProduct/n << " ns  " << 1.0e9*iX.tProduct/n << " ns  " << iB.tProduct/iX.tProduct << endl;
+  cout << "sum             " << 1.0e9*iB.tSum/n << " ns  " << 1.0e9*iX.tSum/n << " ns  " << iB.tSum/iX.tSum << endl;
+  cout << "forward update  " << 1.0e9*iB.tUpdate/n << " ns  " << 1.0e9*iX.tUpdate/n << " ns  " << iB.tUpdate/iX.tUpdate << endl;
+  cout << "dependent chain " << 1.0e9*iB.tChain/n << " ns  " << 1.0e9*iX.tChain/n << " ns  " << iB.tChain/iX.tChain << endl;
+  cout << "Relative error of the chain: bfloat " << iB.iChainLog << ", xfloat " << iX.iChainLog << endl;
+  cout << "(checksums " << iB.iCheck << " " << iX.iCheck << ")" << endl;
+
+}
@@ -31,7 +31,10 @@
 
 
 #include <map>
+#include <vector>
+#include <algorithm>
 #include <cassert>
+#include <cstring>
 
 // #define STRING2(x) #x
 // #define STRING(x) STRING2(x)
@@ -142,6 +145,7 @@ private:
 public:
   enum { length = size };                                      // to know the size, just in case
   States() { for (int i=0; i<size; i++) data[i]=0; }           // initialization
+  void clear() { for (int i=0; i<size; i++) data[i]=0; }        // re-initialization
   operator double* () { return data; }                         // cast to actual array
   operator const double* () const { return data; }
 };
@@ -153,11 +157,58 @@ private:
 public:
   enum { length = size };                                      // to know the size, just in case
   States() { for (int i=0; i<size; i++) data[i].clear(); }      // initialization
+  void clear() { for (int i=0; i<size; i++) data[i].clear(); }  // re-initialization
   operator Real* () { return data; }                           // cast to actual array
   operator const Real* () const { return data; }
 };
 
 
+// Traceback pointers (numbers of transitions) are stored as small unsigned integers.  Pointers that
+// were not written hold the largest value of the type, which is not the number of a transition
+
+template<class Pointer,int size>
+class _PointerStates {
+private:
+  Pointer data[size];
+public:
+  enum { length = size };
+  static Pointer unset() { return (Pointer)~(Pointer)0; }
+  _PointerStates() { for (int i=0; i<size; i++) data[i]=unset(); }
+  void clear() { for (int i=0; i<size; i++) data[i]=unset(); }
+  operator Pointer* () { return data; }
+  operator const Pointer* () const { return data; }
+};
+
+template<int size>
+class States<unsigned char,size> : public _PointerStates<unsigned char,size> {};
+
+template<int size>
+class States<unsigned short,size> : public _PointerStates<unsigned short,size> {};
+
+
+// Re-initializes an array of states in place.  Arrays of double are zeroed in bulk; other
+// types (e.g. BFloat) are cleared one by one
+
+template<class States>
+inline void _clearStates(States* p, long n) { for (long i=0; i<n; i++) p[i].clear(); }
+
+template<int size>
+inline void _clearStates(States<double,size>* p, long n) { memset( (void*)p, 0, n*sizeof(States<double,size>) ); }
+
+// Re-initializes the array of a DP table.  Define DPTABLE_REALLOCATE to free and reallocate it
+// instead, as clear() used to do; examples/aligner/benchmark.cc compares the two
+
+template<class States>
+inline void _clearTable(States*& p, long n) {
+#ifdef DPTABLE_REALLOCATE
+  delete[] p;
+  p = new States[n];
+#else
+  _clearStates(p, n);
+#endif
+}
+
+
 
 // Define index types to serve as keys to the DP table position
 
@@ -177,8 +228,9 @@ template<> class _index<4> { public: typedef unsigned long long t; };
 // States& write(...)        :   write access to state array
 // void written()            :   signal that write access is finished
 // void allocate(...)        :   inform table about its dimensions; must be called before read/write access
-// void clear()              :   empties the table; keeps its dimensions
-// void clear(int)           :   empties one column of a (folded) DP table
+// void clear()              :   empties the table; keeps its dimensions and memory
+// void clear(int)           :   empties one column of a (folded) DP table, in place
+// void reserve(long)        :   hint at the number of positions that will be written (HashDPTable only)
 // void absolve()            :   ensures that table does not delete its data; another table with reference to the data,
 //                               which is created by the default copy constructor, is now responsible.  Not allowed for
 //                               folded tables
@@ -197,14 +249,17 @@ class _DPT {                            // base class, keeps track of the respon
   void written() {}                     // signal that we're done writing -- used by extensions
 };
 
-template<template<typename,int> class DPTable, class States, int dim>     // Wrapper for memory-efficient Fw/Bw/Baum-Welch
+// Wrapper for memory-efficient Fw/Bw/Baum-Welch.  Keeps two columns, which are allocated once and
+// reset in place when the slowest coordinate advances.
+template<template<typename,int> class DPTable, class States, int dim>
 class _FoldedTable : public _DPT<States> {
  protected:
   DPTable<States,dim-1>* aTables[2];
  public:
   _FoldedTable() { aTables[0] = new DPTable<States,dim-1>(); aTables[1] = new DPTable<States,dim-1>(); }
   ~_FoldedTable() { assert(_DPT<States>::isInCharge); delete aTables[0]; delete aTables[1]; }        // do not allow data to be retained
-  void clear(int i) { aTables[i%2]->clear(); }
+  void clear(int i) { aTables[i&1]->clear(); }    // i&1 is i mod 2, also for i = -1 (backward recursions)
+  void clear() { aTables[0]->clear(); aTables[1]->clear(); }
 };
 
 template<class States, int dim>
@@ -213,9 +268,21 @@ class DPTable {};
 template<class States, int dim>
 class SparseDPTable {};
 
+template<class States, int dim>
+class HashDPTable {};
+
+template<class States, int dim>
+class BandedDPTable {};
+
+template<template<typename,int> class DPTable, class States, int dim>
+class CheckpointTable {};
+
 template<template<typename,int> class DPTable, class States, int dim>
 class FoldedTable {};
 
+template<template<typename,int> class DPTable, class States, int dim>
+class RingTable {};
+
 
 
 // Explicit partial specializations for up to 4 spatial dimensions
@@ -275,6 +342,23 @@ class FoldedTable<DPTable, States, 4> : public _FoldedTable<DPTable, States, 4>
 };
 
 
+// Wrapper for fixed-lag smoothing over a stream.  Keeps the last columns of a 1-dimensional table in
+// a ring, whose size is given to allocate(); columns are reset in place when reused.
+template<template<typename,int> class DPTable, class States>
+class RingTable<DPTable, States, 1> : public _DPT<States> {
+  std::vector<DPTable<States,0>*> aTables;
+  int z;
+  int slot(int a) const { int i = a % (int)aTables.size(); return i<0 ? i+(int)aTables.size() : i; }
+ public:
+  ~RingTable() { assert(_DPT<States>::isInCharge); for (unsigned i=0; i<aTables.size(); i++) delete aTables[i]; }
+  void allocate(int a) { for (int i=0; i<a; i++) { aTables.push_back( new DPTable<States,0>() ); aTables[i]->allocate(); } }
+  void clear(int i) { aTables[slot(i)]->clear(); }
+  const States& read(int a) const { return aTables[slot(a)]->read(); }
+  States& write(int a) { return aTables[z=slot(a)]->write(); }
+  void written() { aTables[z]->written(); }
+};
+
+
 template<class States>
 class DPTable<States,0> : public _DPT<States> {
 private:
@@ -283,7 +367,7 @@ public:
   DPTable() { pTable = 0; };
   ~DPTable() { if (pTable && _DPT<States>::isInCharge) delete pTable; };
   void allocate() { pTable = new States(); };
-  void clear() { delete pTable; allocate(); };
+  void clear() { if (pTable) pTable->clear(); else allocate(); };
   const States& read() const { return *pTable; }
   States& write() { return *pTable; }
 };
@@ -298,7 +382,7 @@ public:
   DPTable() { pTable = 0; }
   ~DPTable() { if (pTable && _DPT<States>::isInCharge ) { delete[] pTable; } }
   void allocate(int a) { maxa = a; pTable = new States[a]; }
-  void clear() { delete[] pTable; allocate(maxa); };
+  void clear() { if (pTable) _clearTable(pTable, maxa); else allocate(maxa); };
   const States& read(int a) const { return pTable[a]; }
   States& write(int a) { return pTable[a]; }
 };
@@ -313,7 +397,7 @@ public:
   DPTable() { pTable = 0; }
   ~DPTable() { if (pTable && _DPT<States>::isInCharge ) { delete[] pTable; } }
   void allocate(int a, int b) { maxa = a; maxb = b; pTable = new States[a*b]; }
-  void clear() { delete[] pTable; allocate(maxa,maxb); };
+  void clear() { if (pTable) _clearTable(pTable, long(maxa)*maxb); else allocate(maxa,maxb); };
   const States& read(int a, int b) const { return pTable[a+maxa*b]; }
   States& write(int a, int b) { return pTable[a+maxa*b]; }
 };
@@ -328,7 +412,7 @@ public:
   DPTable() { pTable = 0; }
   ~DPTable() { if (pTable && _DPT<States>::isInCharge ) { delete[] pTable; } }
   void allocate(int a, int b, int c) { maxa = a; maxb = b; maxc = c; pTable = new States[a*b*c]; }
-  void clear() { delete[] pTable; allocate(maxa,maxb,maxc); };
+  void clear() { if (pTable) _clearTable(pTable, long(maxa)*maxb*maxc); else allocate(maxa,maxb,maxc); };
   const States& read(int a, int b, int c) const { return pTable[a+maxa*(b+maxb*c)]; }
   States& write(int a, int b, int c) { return pTable[a+maxa*(b+maxb*c)]; }
 };
@@ -343,7 +427,7 @@ public:
   DPTable() { pTable = 0; }
   ~DPTable() { if (pTable && _DPT<States>::isInCharge ) { delete[] pTable; } }
   void allocate(int a, int b, int c, int d) { maxa = a; maxb = b; maxc = c; maxd = d; pTable = new States[a*b*c*d]; }
-  void clear() { delete[] pTable; allocate(maxa,maxb,maxc,maxd); };
+  void clear() { if (pTable) _clearTable(pTable, long(maxa)*maxb*maxc*maxd); else allocate(maxa,maxb,maxc,maxd); };
   const States& read(int a, int b, int c, int d) const { return pTable[a+maxa*(b+maxb*(c+maxc*d))]; }
   States& write(int a, int b, int c, int d) { return pTable[a+maxa*(b+maxb*(c+maxc*d))]; }
 };
@@ -438,5 +522,563 @@ public:
 };
 
 
-#endif
+//
+// Sparse DP table using open addressing.  Positions are grouped in pages of 32 consecutive
+// indices, whose states are stored contiguously in a flat pool, in the order in which the pages
+// are first written.  An open-addressing hash table with linear probing, held in two flat arrays,
+// maps page numbers to pages; page numbers are mixed to spread them over the hash table.  Growing
+// doubles the arrays, and clear() only marks the hash table as empty.  A position that is read
+// before it is written reads as zero.
+//
+// Unlike SparseDPTable, growing moves the states, so a reference returned by read() or write()
+// is only valid until the next call to write().  (Generated code re-reads states after each write.)
+//
 
+// Finalizer of MurmurHash3
+inline unsigned long long _mixIndex(unsigned long long x) {
+  x ^= x >> 33;
+  x *= 0xff51afd7ed558ccdULL;
+  x ^= x >> 33;
+  x *= 0xc4ceb9fe1a85ec53ULL;
+  x ^= x >> 33;
+  return x;
+}
+
+template<class States, class idx>
+class _HashDPT : public _DPT<States> {
+private:
+  enum { pageBits = 5, pageSize = 1 << pageBits };
+  idx* keys;                            // page numbers; empty slots hold ~0, which is not a page number
+  unsigned long* slots;                 // page in pool
+  unsigned long mask;                   // capacity-1; the capacity is a power of 2
+  States* pool;
+  unsigned long poolPages;
+  unsigned long count;                  // pages in use, at most half the capacity
+  mutable idx recent[4];                // direct-mapped cache of recently used pages
+  mutable long recentSlot[4];
+  const States zero;
+  static idx empty() { return ~idx(0); }
+  void forget() { for (int i=0; i<4; i++) recent[i] = empty(); }
+  void rehash(unsigned long capacity) {
+    idx* oldKeys = keys;
+    unsigned long* oldSlots = slots;
+    unsigned long oldCapacity = keys ? mask+1 : 0;
+    keys = new idx[capacity];
+    slots = new unsigned long[capacity];
+    mask = capacity-1;
+    memset( (void*)keys, 0xff, capacity*sizeof(idx) );
+    for (unsigned long i=0; i<oldCapacity; i++) {
+      if (oldKeys[i] != empty()) {
+        unsigned long j = _mixIndex(oldKeys[i]) & mask;
+        while (keys[j] != empty()) j = (j+1) & mask;
+        keys[j] = oldKeys[i];
+        slots[j] = oldSlots[i];
+      }
+    }
+    delete[] oldKeys;
+    delete[] oldSlots;
+  }
+  void growPool(unsigned long pages) {
+    States* oldPool = pool;
+    pool = new States[pages << pageBits];
+    for (unsigned long i=0; i < (count << pageBits); i++) pool[i] = oldPool[i];
+    poolPages = pages;
+    delete[] oldPool;
+  }
+  // Returns the page holding a page number, or -1 if there is none
+  long lookup(idx page) const {
+    if (recent[page & 3] == page) return recentSlot[page & 3];
+    if (!keys) return -1;
+    unsigned long j = _mixIndex(page) & mask;
+    while (keys[j] != page) {
+      if (keys[j] == empty()) return -1;
+      j = (j+1) & mask;
+    }
+    recent[page & 3] = page;
+    return recentSlot[page & 3] = slots[j];
+  }
+  long addPage(idx page) {
+    if (!keys || 2*(count+1) > mask+1) rehash( keys ? 2*(mask+1) : 64 );
+    if (count == poolPages) growPool( poolPages ? 2*poolPages : 32 );
+    unsigned long j = _mixIndex(page) & mask;
+    while (keys[j] != empty()) j = (j+1) & mask;
+    keys[j] = page;
+    slots[j] = count;
+    _clearStates( pool + (count << pageBits), pageSize );
+    return count++;
+  }
+protected:
+  States& insert(idx key) {
+    long p = lookup(key >> pageBits);
+    if (p == -1) p = addPage(key >> pageBits);
+    return pool[ (p << pageBits) + (key & (pageSize-1)) ];
+  }
+  const States& find(idx key) const {
+    long p = lookup(key >> pageBits);
+    if (p == -1) return zero;
+    return pool[ (p << pageBits) + (key & (pageSize-1)) ];
+  }
+public:
+  _HashDPT() : keys(0), slots(0), mask(0), pool(0), poolPages(0), count(0), zero() { forget(); }
+  ~_HashDPT() { if (_DPT<States>::isInCharge) { delete[] keys; delete[] slots; delete[] pool; } }
+  void reserve(long n) {
+    unsigned long pages = (n + pageSize-1) >> pageBits;
+    unsigned long c = 64;
+    while (c < 2*pages) c *= 2;
+    if (!keys || c > mask+1) rehash(c);
+    if (pages > poolPages) growPool(pages);
+  }
+  void clear() { if (count) { memset( (void*)keys, 0xff, (mask+1)*sizeof(idx) ); count = 0; forget(); } }
+};
+
+
+template<class States>
+class HashDPTable<States,0> : public DPTable<States,0> {
+public:
+  void reserve(long n) {}
+};
+
+
+template<class States>
+class HashDPTable<States,1> : public _HashDPT<States,_index<1>::t> {
+private:
+  typedef _index<1>::t idx;
+public:
+  void allocate(int a) {};
+  States& write(int a) { return this->insert(idx(a)); }
+  const States& read(int a) const { return this->find(idx(a)); }
+};
+
+
+template<class States>
+class HashDPTable<States,2> : public _HashDPT<States,_index<2>::t> {
+private:
+  typedef _index<2>::t idx;
+  idx maxa;
+public:
+  void allocate(int a, int b) { maxa = a; };
+  States& write(int a, int b) { return this->insert(idx(a)+maxa*idx(b)); }
+  const States& read(int a, int b) const { return this->find(idx(a)+maxa*idx(b)); }
+};
+
+
+template<class States>
+class HashDPTable<States,3> : public _HashDPT<States,_index<3>::t> {
+private:
+  typedef _index<3>::t idx;
+  idx maxa, maxb;
+public:
+  void allocate(int a, int b, int c) { maxa = a; maxb = b; };
+  States& write(int a, int b, int c) { return this->insert(idx(a)+maxa*(idx(b)+maxb*idx(c))); }
+  const States& read(int a, int b, int c) const { return this->find(idx(a)+maxa*(idx(b)+maxb*idx(c))); }
+};
+
+
+template<class States>
+class HashDPTable<States,4> : public _HashDPT<States,_index<4>::t> {
+private:
+  typedef _index<4>::t idx;
+  idx maxa, maxb, maxc;
+public:
+  void allocate(int a, int b, int c, int d) { maxa = a; maxb = b; maxc = c; };
+  States& write(int a, int b, int c, int d) { return this->insert(idx(a)+maxa*(idx(b)+maxb*(idx(c)+maxc*idx(d)))); }
+  const States& read(int a, int b, int c, int d) const { return this->find(idx(a)+maxa*(idx(b)+maxb*(idx(c)+maxc*idx(d)))); }
+};
+
+
+//
+// DP table for banded recursions.  The table is a set of rows along the fastest coordinate, one
+// for every combination of the other coordinates.  Each row stores a contiguous range of
+// positions, which grows (by doubling) to include every position written, so that a band of width
+// w takes O(w) memory per row rather than the full row length.  Rows are stored one after the
+// other in a flat pool; a row that grows while it is the last one is extended in place, otherwise
+// it is moved to the end.  A position outside its row's range reads as zero.
+//
+// The table learns the band from the positions written, rather than from the Banding object, as
+// it is allocated by the generated code before the iteration starts.  As for HashDPTable, a
+// reference returned by read() or write() is only valid until the next call to write().
+//
+
+template<class States>
+class _BandedDPT : public _DPT<States> {
+private:
+  struct Row {
+    long start;                         // first position of the row in the pool
+    int lo;                             // fastest coordinate of first position
+    int width;                          // number of positions
+  };
+  Row* rows;
+  long numRows;
+  int maxa;                             // row length
+  States* pool;
+  long poolSize;
+  long used;
+  long rowsUsed;                        // rows with positions
+  const States zero;
+  // Grows the pool to at least n positions, using the average row width to estimate the final size
+  void reservePool(long n) {
+    if (n <= poolSize) return;
+    long size = std::max( std::max( n + n/2, 1024L ), (used / std::max(rowsUsed,1L)) * numRows * 9/8 );
+    States* oldPool = pool;
+    pool = new States[size];
+    for (long i=0; i<used; i++) pool[i] = oldPool[i];
+    poolSize = size;
+    delete[] oldPool;
+  }
+  // Grows row r to include a, which must be in [0,maxa); returns the position of a in the pool
+  long extend(Row& r, int a) {
+    assert( a >= 0 && a < maxa );
+    int lo, hi;
+    if (r.width == 0) {
+      lo = a; hi = a+1;
+    } else if (a < r.lo) {
+      lo = std::max( 0, std::min( a, r.lo - r.width ) ); hi = r.lo + r.width;
+    } else {
+      lo = r.lo; hi = std::min( maxa, std::max( a+1, r.lo + 2*r.width ) );
+    }
+    if (r.width == 0) rowsUsed++;
+    long start = (r.width > 0 && r.start + r.width == used) ? r.start : used;
+    int shift = r.width > 0 ? r.lo - lo : 0;
+    reservePool( start + (hi - lo) );
+    // copy the old positions, last first as the new range may overlap them
+    for (int i=r.width-1; i>=0; i--) pool[start + shift + i] = pool[r.start + i];
+    _clearStates( pool + start, shift );
+    _clearStates( pool + start + shift + r.width, (hi - lo) - shift - r.width );
+    r.start = start;
+    r.lo = lo;
+    r.width = hi - lo;
+    used = start + r.width;
+    return start + (a - lo);
+  }
+protected:
+  void allocateRows(int a, long n) {
+    maxa = a;
+    numRows = n;
+    rows = new Row[n];
+    memset( (void*)rows, 0, n*sizeof(Row) );
+  }
+  States& at(int a, long row) {
+    Row& r = rows[row];
+    if (unsigned(a - r.lo) < unsigned(r.width)) return pool[r.start + (a - r.lo)];
+    long i = extend( r, a );            // may move the pool
+    return pool[i];
+  }
+  const States& at(int a, long row) const {
+    const Row& r = rows[row];
+    if (unsigned(a - r.lo) < unsigned(r.width)) return pool[r.start + (a - r.lo)];
+    return zero;
+  }
+public:
+  _BandedDPT() : rows(0), numRows(0), maxa(0), pool(0), poolSize(0), used(0), rowsUsed(0), zero() {}
+  ~_BandedDPT() { if (_DPT<States>::isInCharge) { delete[] rows; delete[] pool; } }
+  void clear() { if (rows) memset( (void*)rows, 0, numRows*sizeof(Row) ); used = 0; rowsUsed = 0; }
+};
+
+
+template<class States>
+class BandedDPTable<States,0> : public DPTable<States,0> {};
+
+
+template<class States>
+class BandedDPTable<States,1> : public _BandedDPT<States> {
+public:
+  void allocate(int a) { this->allocateRows(a, 1); }
+  States& write(int a) { return this->at(a, 0); }
+  const States& read(int a) const { return this->at(a, 0); }
+};
+
+
+template<class States>
+class BandedDPTable<States,2> : public _BandedDPT<States> {
+public:
+  void allocate(int a, int b) { this->allocateRows(a, b); }
+  States& write(int a, int b) { return this->at(a, b); }
+  const States& read(int a, int b) const { return this->at(a, b); }
+};
+
+
+template<class States>
+class BandedDPTable<States,3> : public _BandedDPT<States> {
+private:
+  long maxb;
+public:
+  void allocate(int a, int b, int c) { maxb = b; this->allocateRows(a, long(b)*c); }
+  States& write(int a, int b, int c) { return this->at(a, b+maxb*c); }
+  const States& read(int a, int b, int c) const { return this->at(a, b+maxb*c); }
+};
+
+
+template<class States>
+class BandedDPTable<States,4> : public _BandedDPT<States> {
+private:
+  long maxb, maxc;
+public:
+  void allocate(int a, int b, int c, int d) { maxb = b; maxc = c; this->allocateRows(a, long(b)*c*d); }
+  States& write(int a, int b, int c, int d) { return this->at(a, b+maxb*(c+maxc*d)); }
+  const States& read(int a, int b, int c, int d) const { return this->at(a, b+maxb*(c+maxc*d)); }
+};
+
+
+//
+// Checkpointed DP table, for linear-memory recursions (memory="checkpoint").  Positions along the
+// slowest coordinate are grouped in blocks of k (about the square root of the sequence length).  The
+// columns a recursion needs to restart a block, i.e. the last few columns of every block for forward
+// recursions and the first few for backward recursions, are kept as checkpoints; the other columns go
+// to a ring of k columns.  Reading a column that is no longer in the ring recomputes its block from
+// the neighbouring checkpoints, by calling the _Recompute object that the recursion attached to the
+// table.  Tracebacks, sampling and Baum-Welch passes read the table in the direction opposite to the
+// recursion, and recompute every block once.
+//
+// Positions are table indices plus the offset of the clique, so that all checkpointed tables of a DP
+// table class use the same blocks.
+//
+
+// Recomputes a block of positions of all checkpointed tables of one DP table; shared by its tables
+class _Recompute {
+  int refs;
+public:
+  int pass;                             // number of recomputations so far
+  int first, last;                      // block being recomputed
+  bool active;
+  _Recompute() : refs(0), pass(0), active(false) {}
+  virtual ~_Recompute() {}
+  virtual void recompute(int iFirst, int iLast) = 0;
+  void attach() { refs++; }
+  void detach() { if (--refs == 0) delete this; }
+};
+
+template<class Column>
+struct _CheckpointColumns {
+  int offset;                           // position of table index 0
+  int size;                             // number of table indices
+  int depth;                            // checkpoint columns per block
+  int interval;                         // positions per block
+  bool forward;                         // direction of the recursion
+  Column** ring;                        // ring of columns, indexed by position mod interval
+  int* ringPos;                         // position held, or -1
+  int* ringPass;                        // pass in which it was written
+  Column** saved;                       // checkpoint columns, depth per block
+  int* savedPass;
+  int numSaved;
+  Column* scratch;                      // receives writes outside the block being recomputed
+  Column* empty;                        // read at positions that the recursion does not write
+  _Recompute* recompute;                // 0 while the table is being filled
+};
+
+template<template<typename,int> class DPTable, class States, int dim>
+class _CheckpointTable : public _DPT<States> {
+protected:
+  typedef DPTable<States,dim-1> Column;
+  _CheckpointColumns<Column>* c;
+  int pass() const { return c->recompute ? c->recompute->pass : 0; }
+  int savedIndex(int pos) const {
+    int r = pos % c->interval;
+    if (c->forward) r -= c->interval - c->depth;
+    return (r < 0 || r >= c->depth) ? -1 : (pos / c->interval) * c->depth + r;
+  }
+  // Makes the columns; the caller allocates them
+  void init(int length, int size, int offset, int depth, bool forward) {
+    c = new _CheckpointColumns<Column>();
+    c->offset = offset;
+    c->size = size;
+    c->depth = depth;
+    c->interval = 2*depth;
+    while (c->interval * c->interval < length+1) c->interval++;
+    c->forward = forward;
+    c->ring = new Column*[c->interval];
+    c->ringPos = new int[c->interval];
+    c->ringPass = new int[c->interval];
+    for (int i=0; i<c->interval; i++) { c->ring[i] = new Column(); c->ringPos[i] = -1; }
+    c->numSaved = ((size + offset) / c->interval + 1) * depth;
+    c->saved = new Column*[c->numSaved];
+    c->savedPass = new int[c->numSaved];
+    for (int i=0; i<c->numSaved; i++) { c->saved[i] = new Column(); c->savedPass[i] = -1; }
+    c->scratch = new Column();
+    c->empty = new Column();
+    c->recompute = 0;
+  }
+  int numColumns() const { return c->interval + c->numSaved + 2; }
+  Column* column(int i) const {
+    if (i < c->interval) return c->ring[i];
+    if (i < c->interval + c->numSaved) return c->saved[i - c->interval];
+    if (i == c->interval + c->numSaved) return c->scratch;
+    return c->empty;
+  }
+  // Positions outside the table, or that the recursion leaves unwritten (e.g. when the sequence is
+  // empty), read as zero
+  const Column* get(int index) const {
+    if (index < 0 || index >= c->size) return c->empty;
+    int pos = index + c->offset;
+    int i = savedIndex(pos);
+    if (i >= 0) return c->saved[i];
+    int slot = pos % c->interval;
+    if (c->ringPos[slot] != pos) {
+      // recompute the block; the checkpoints it starts from are always available
+      _Recompute* r = c->recompute;
+      assert( r && !r->active );
+      r->first = pos - pos % c->interval;
+      r->last = r->first + c->interval - 1;
+      r->pass++;
+      r->active = true;
+      r->recompute( r->first, r->last );
+      r->active = false;
+      if (c->ringPos[slot] != pos) return c->empty;
+    }
+    return c->ring[slot];
+  }
+  Column* put(int index) {
+    int pos = index + c->offset;
+    if ((index < 0 || index >= c->size) ||
+        (c->recompute && c->recompute->active && (pos < c->recompute->first || pos > c->recompute->last))) {
+      c->scratch->clear();
+      return c->scratch;
+    }
+    int i = savedIndex(pos);
+    if (i >= 0) {
+      if (c->savedPass[i] != pass()) { c->saved[i]->clear(); c->savedPass[i] = pass(); }
+      return c->saved[i];
+    }
+    int slot = pos % c->interval;
+    if (c->ringPos[slot] != pos || c->ringPass[slot] != pass()) {
+      c->ring[slot]->clear();
+      c->ringPos[slot] = pos;
+      c->ringPass[slot] = pass();
+    }
+    return c->ring[slot];
+  }
+public:
+  _CheckpointTable() : c(0) {}
+  ~_CheckpointTable() {
+    if (c && _DPT<States>::isInCharge) {
+      for (int i=0; i<numColumns(); i++) delete column(i);
+      delete[] c->ring; delete[] c->ringPos; delete[] c->ringPass;
+      delete[] c->saved; delete[] c->savedPass;
+      if (c->recompute) c->recompute->detach();
+      delete c;
+    }
+  }
+  // Attaches the object that recomputes blocks; called by the recursion once the table is filled
+  void setRecompute(_Recompute* r) { r->attach(); if (c->recompute) c->recompute->detach(); c->recompute = r; }
+};
+
+
+template<template<typename,int> class DPTable, class States>
+class CheckpointTable<DPTable, States, 1> : public _CheckpointTable<DPTable, States, 1> {
+  int maxa;
+public:
+  void allocate(int a) { maxa = a; }
+  void checkpoint(int length, int offset, int depth, bool forward) {
+    this->init(length, maxa, offset, depth, forward);
+    for (int i=0; i<this->numColumns(); i++) this->column(i)->allocate();
+  }
+  const States& read(int a) const { return this->get(a)->read(); }
+  States& write(int a) { return this->put(a)->write(); }
+};
+
+
+template<template<typename,int> class DPTable, class States>
+class CheckpointTable<DPTable, States, 2> : public _CheckpointTable<DPTable, States, 2> {
+  int maxa, maxb;
+public:
+  void allocate(int a, int b) { maxa = a; maxb = b; }
+  void checkpoint(int length, int offset, int depth, bool forward) {
+    this->init(length, maxb, offset, depth, forward);
+    for (int i=0; i<this->numColumns(); i++) this->column(i)->allocate(maxa);
+  }
+  const States& read(int a, int b) const { return this->get(b)->read(a); }
+  States& write(int a, int b) { return this->put(b)->write(a); }
+};
+
+
+template<template<typename,int> class DPTable, class States>
+class CheckpointTable<DPTable, States, 3> : public _CheckpointTable<DPTable, States, 3> {
+  int maxa, maxb, maxc;
+public:
+  void allocate(int a, int b, int c) { maxa = a; maxb = b; maxc = c; }
+  void checkpoint(int length, int offset, int depth, bool forward) {
+    this->init(length, maxc, offset, depth, forward);
+    for (int i=0; i<this->numColumns(); i++) this->column(i)->allocate(maxa, maxb);
+  }
+  const States& read(int a, int b, int c) const { return this->get(c)->read(a,b); }
+  States& write(int a, int b, int c) { return this->put(c)->write(a,b); }
+};
+
+
+template<template<typename,int> class DPTable, class States>
+class CheckpointTable<DPTable, States, 4> : public _CheckpointTable<DPTable, States, 4> {
+  int maxa, maxb, maxc, maxd;
+public:
+  void allocate(int a, int b, int c, int d) { maxa = a; maxb = b; maxc = c; maxd = d; }
+  void checkpoint(int length, int offset, int depth, bool forward) {
+    this->init(length, maxd, offset, depth, forward);
+    for (int i=0; i<this->numColumns(); i++) this->column(i)->allocate(maxa, maxb, maxc);
+  }
+  const States& read(int a, int b, int c, int d) const { return this->get(d)->read(a,b,c); }
+  States& write(int a, int b, int c, int d) { return this->put(d)->write(a,b,c); }
+};
+
+
+//
+// Expected counts for Baum-Welch training in a single forward pass (memory="linear")
+//
+// For every state s at every position, the vector C(s) holds the expected number of times each counter
+// of the Baum-Welch class is used by the paths ending in s, given the sequence up to that position.  A
+// transition k->s with weight w = f(k)*t*e contributes  w/f(s) * (C(k) + 1_t + 1_e), so that C(end) at
+// the last position holds the posterior counts.  Count vectors are stored in DP tables parallel to the
+// state tables, of which only two columns are kept.
+//
+// begin() starts a position, add() adds a transition into state s, and finish() normalizes the counts of
+// s, once its forward probability is final; end() finishes the remaining states of the position.  The
+// counts are accumulated relative to the largest weight seen, so that they remain in range for any Real.
+//
+
+template<class Real>
+class _ForwardCounts {
+private:
+  int numCounts;
+  int numStates;
+  double* pCell;                  // counts of states at current position
+  Real* aWeight;                  // reference weight of the sum accumulated for each state
+  bool* aDone;                    // normalized
+  void scale(double* c, double x) { for (int i=0; i<numCounts; i++) c[i] *= x; }
+  _ForwardCounts(const _ForwardCounts&);
+public:
+  _ForwardCounts(int iMaxStates, int iNumCounts) : numCounts(iNumCounts), numStates(0), pCell(0) {
+    aWeight = new Real[iMaxStates];
+    aDone = new bool[iMaxStates];
+  }
+  ~_ForwardCounts() { delete[] aWeight; delete[] aDone; }
+  void begin(double* cell, int states) {
+    pCell = cell;
+    numStates = states;
+    memset( (void*)cell, 0, states*numCounts*sizeof(double) );
+    for (int s=0; s<states; s++) { aWeight[s] = 0.0; aDone[s] = false; }
+  }
+  // adds transition with weight w into state s, from a state with counts pFrom; iTrans and iEmit
+  // are the indices of the counters of transition and emission, or -1
+  void add(int s, const Real& w, const double* pFrom, int iTrans, int iEmit) {
+    assert( !aDone[s] );
+    if (!(w > 0.0)) return;
+    double* c = pCell + s*numCounts;
+    double r = 1.0;
+    if (aWeight[s] < w) {
+      if (aWeight[s] > 0.0) scale( c, double(aWeight[s] / w) );
+      aWeight[s] = w;
+    } else {
+      r = double(w / aWeight[s]);
+    }
+    for (int i=0; i<numCounts; i++) c[i] += r * pFrom[i];
+    if (iTrans >= 0) c[iTrans] += r;
+    if (iEmit >= 0) c[iEmit] += r;
+  }
+  void finish(int s, const Real& f) {
+    if (aDone[s]) return;
+    aDone[s] = true;
+    if (aWeight[s] > 0.0) scale( pCell + s*numCounts, double(aWeight[s] / f) );
+  }
+  void end(const Real* f) { for (int s=0; s<numStates; s++) finish(s, f[s]); }
+};
+
+
+
+#endif
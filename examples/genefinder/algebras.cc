@@ -29,9 +29,13 @@
 
 BFMantissa *BFloat::aConversionLookup;           // Actual location of the static members of BFloat class
 double *BFloat::aDoubleConversionLookup;
+double *Logspace::aLog1pExpLookup;
+const double XFloat::aAlignLookup[cXFloatAlignSize] = { 1.0, 8.636168555094445e-78, 7.458340731200207e-155, 0.0 };
+const double XFloat::aScaleLookup[3] = { 1.157920892373162e+77, 1.0, 8.636168555094445e-78 };
 
 
 _BFloatInitialize _dummyInitializer;             // This initializes aConversionLookup and aDoubleConversionLookup
+_LogspaceInitialize _dummyLogspaceInitializer;   // This initializes aLog1pExpLookup
 
 
 _BFloatInitialize::_BFloatInitialize() {
@@ -50,3 +54,46 @@ _BFloatInitialize::_BFloatInitialize() {
   }
 
 }
+
+
+XFloat xfloat_renormalised( XFloat a ) {
+
+  if (a.m == 0.0) {
+    a.e = cXFloatZeroExponent;
+    return a;
+  }
+  if (!(fabs(a.m) < numeric_limits<double>::infinity())) {
+    cerr << "XFloat: Overflow or NaN" << endl;
+    return a;
+  }
+  while (fabs(a.m) >= cXFloatRange) {
+    a.m *= cXFloatRangeInv;
+    a.e++;
+  }
+  while (fabs(a.m) < cXFloatRangeInv) {
+    a.m *= cXFloatRange;
+    a.e--;
+  }
+  return a;
+
+}
+
+
+_LogspaceInitialize::_LogspaceInitialize() {
+
+  // Coefficients of the cubic on each interval, in t = (d - left end) * scale, from the values
+  // f = log(1+exp(-d)) and the derivatives f' = -1/(1+exp(d)) at both ends
+  Logspace::aLog1pExpLookup = new double[4*cLogspaceTableSize];
+  const double h = 1.0 / cLogspaceTableScale;
+  for (int i = 0; i < cLogspaceTableSize; i++) {
+    double d0 = i * h, d1 = (i+1) * h;
+    double f0 = log( 1.0 + exp(-d0) ), f1 = log( 1.0 + exp(-d1) );
+    double g0 = -h / ( 1.0 + exp(d0) ), g1 = -h / ( 1.0 + exp(d1) );
+    double* c = Logspace::aLog1pExpLookup + 4*i;
+    c[0] = f0;
+    c[1] = g0;
+    c[2] = 3.0*(f1-f0) - 2.0*g0 - g1;
+    c[3] = 2.0*(f0-f1) + g0 + g1;
+  }
+
+}
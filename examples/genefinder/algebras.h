@@ -26,6 +26,7 @@
 #define _algebras_h_
 
 #include <cmath>
+#include <cstring>
 #include <iostream>
 #include <limits>
 
@@ -38,12 +39,29 @@ const BFMantissa cBFloatRangeInv = 1.0/cBFloatRange;
 // Aaron E. Darling 6/7/7: need to typecast to avoid compiler warnings about imprecise FP representations
 const BFMantissa cBFloatRangeSqrt    = (BFMantissa)1.0e+18;          // Value between square root of the exponent, and the exponent
 const BFMantissa cBFloatRangeInvSqrt = (BFMantissa)1.0e-18;          // Square of this should still be representable, with full mantissa!
-const BFMantissa logcBFloatRange     = log(cBFloatRange);
+const double logcBFloatRange         = log((double)cBFloatRange);   // in double precision, as exponents can be large
 const int cBFloatDigits              = 7;                 // Number of significant digits for printing (7 for floats, 16 for doubles?)
 const int cBFloatInfinity            = 1000000000;        // Tiniest number representable is cBFloatRangeInv ^ BFloatInfinity
 const int cBFloatConvTableSize       = 100;               // This includes many zero entries, it makes additions a bit faster
 const int cBFloatDoubleConvTableSize = 50;                // Table size for bfloat -> double conversion; cBFloatRange^(-size/2) is double 0
 //#define BFLOAT_CHECK_UOFLOW                             // Don't bother with under- and overflow checking.
+const double cLogspaceCutoff         = 20.0;              // Logspace sums drop terms smaller by more than this (log(1+e^-20) < 2.1e-9)
+const int cLogspaceTableScale        = 16;                // Intervals per unit of the log1p(exp(-d)) interpolation table
+const int cLogspaceTableSize         = 320;               // Number of intervals; cutoff * scale
+//#define LOGSPACE_LIBM                                   // Use log and exp for Logspace sums, instead of the table
+const double cXFloatRange            = 1.157920892373162e+77;   // 2^256; XFloat exponents count this unit, and
+const double cXFloatRangeInv         = 8.636168555094445e-78;   //  mantissas are kept in [2^-256,2^256), or are 0
+const double logcXFloatRange         = 177.445678223346;        // log(2^256)
+const int cXFloatAlignSize           = 4;                 // Alignments for sums; terms 3 or more units apart are dropped
+const long long cXFloatZeroExponent  = -1000000000000000000LL;  // Exponent of 0; sums of a few of these do not overflow
+const int cXFloatDigits              = 15;                // Number of significant digits for printing
+#ifndef INTSCORE_SCALE
+#define INTSCORE_SCALE 1000                               // IntScore units per bit (1000: milli-bits)
+#endif
+const double cIntScoreLogScale       = INTSCORE_SCALE / 0.6931471805599453;  // IntScore units per nat
+const int cIntScoreZero              = -(1<<30);          // Score of probability 0
+const int cIntScoreMin               = -(1<<29);          // Lowest score of a nonzero probability; lower ones become 0
+const int cIntScoreMax               = (1<<29)-1;         // Highest score; sums of two scores do not overflow an int
 
 
 //
@@ -159,13 +177,13 @@ static inline void DoubleNormalise(double& f, int& e)
 };
 
 // Logarithm of a BFloat
-static inline double bfloat_doublelog( const BFloat& a ) { return a.e*logcBFloatRange+log(a.f); }
+static inline double bfloat_doublelog( const BFloat& a ) { return a.e*logcBFloatRange+log((double)a.f); }
 
 // BFloat exp of a double
 static inline BFloat bfloat_doubleexp( double iA ) 
 {
-  int iE = (int)floor( iA / log(cBFloatRange) );
-  iA -= iE * log(cBFloatRange);
+  int iE = (int)floor( iA / logcBFloatRange );
+  iA -= iE * logcBFloatRange;
   BFloat iX( exp(iA), iE );
   BFloatNormalise( iX );
   return iX;
@@ -320,7 +338,7 @@ static inline ostream& bfloat_print( ostream& out, const BFloat& x )
   if (x.e == -cBFloatInfinity) {
     out << 1.0 << "e-Inf";
   } else {
-    double iM = (log(x.f) + log(cBFloatRange)*(double)x.e) / log10;
+    double iM = (log(x.f) + logcBFloatRange*(double)x.e) / log10;
     long iExp = long(floor(iM));
     iM = exp((iM - iExp) * log10);
     if (iM > maxmantisse) {
@@ -362,25 +380,296 @@ struct BFloatMethods
 };
 
 
+//
+// XFloats: extended-range doubles.
+//
+// Value is m * 2^(256 e).  Mantissas are renormalised only when they leave [2^-256,2^256), so
+// products of two mantissas never under- or overflow, aligned terms of sums are never denormal
+// (which is slow), and terms that are dropped are below 2^-256 of the sum.  Normalisation is a
+// single well-predicted comparison, and sums align the smaller term through a table.
+// struct{ double + int64 } is 16 bytes, twice a BFloat, but with the precision of a double.  The
+// size makes XFloats slower than BFloats; use them for precision, not for speed.
+//
+class XFloat {
+ public:
+  static const double aAlignLookup[cXFloatAlignSize];  // used by addition; 2^(-256 i), and 0 from i=3
+  static const double aScaleLookup[3];                 // used by multiplication; 2^256, 1, 2^-256
+  double m;
+  long long e;
+ public:
+  XFloat(double iM, long long iE) : m(iM), e(iE) {};
+  XFloat() {};
+  void clear() { m=0.0; e=cXFloatZeroExponent; }
+};
+
+
+// Brings the mantissa back into range; out of line, as it is rarely needed.  (Passing by value
+// keeps the caller's XFloat in registers; XFloat has no destructor for the same reason.)
+XFloat xfloat_renormalised( XFloat a );
+
+// Biased IEEE exponent of a double
+static inline unsigned long long xfloat_ieee_exponent( double m )
+{
+  unsigned long long iBits;
+  memcpy( &iBits, &m, sizeof(iBits) );
+  return (iBits >> 52) & 0x7ff;
+}
+
+// True if 2^-256 <= |m| < 2^256, i.e. if the biased IEEE exponent is in [767,1279); a single comparison
+static inline bool xfloat_inrange( double m )
+{
+  return xfloat_ieee_exponent( m ) - 767 < 512;
+}
+
+static inline void XFloatNormalise( XFloat& a )
+{
+  if (!xfloat_inrange( a.m )) {
+    if (a.m == 0.0)
+      a.e = cXFloatZeroExponent;
+    else
+      a = xfloat_renormalised( a );
+  }
+}
+
+// After a product or quotient of normalised mantissas, 2^-512 < |m| < 2^512 (or m is 0), and a single
+// step renormalises it.  The check is well predicted when multiplying by probabilities; products of
+// two DP values leave the range often, so the step is inline and without further branches.  The
+// exponent of 0 is kept from overflowing
+static inline void XFloatNormaliseProduct( XFloat& a )
+{
+  unsigned long long iE = xfloat_ieee_exponent( a.m );
+  if (iE - 767 >= 512) {
+    int k = (iE >= 1279) - (iE < 767);
+    a.m *= XFloat::aScaleLookup[ k+1 ];
+    a.e += k;
+    a.e = a.e < cXFloatZeroExponent ? cXFloatZeroExponent : a.e;
+  }
+}
+
+// Index into the alignment table of an exponent below the maximum iE
+static inline long long xfloat_align( long long iE, long long iMaxE )
+{
+  long long d = iMaxE - iE;
+  return d < cXFloatAlignSize-1 ? d : cXFloatAlignSize-1;
+}
+
+static inline double xfloat_doublelog( const XFloat& a ) { return a.e*logcXFloatRange+log(a.m); }
+
+static inline XFloat xfloat_doubleexp( double iA )
+{
+  if (iA == -numeric_limits<double>::infinity())
+    return XFloat( 0.0, cXFloatZeroExponent );
+  long long iE = (long long)floor( iA / logcXFloatRange );
+  XFloat iX( exp( iA - iE * logcXFloatRange ), iE );
+  XFloatNormalise( iX );
+  return iX;
+}
+
+static inline double xfloat2double( const XFloat& a )
+{
+  if (a.e > 4) return a.m * numeric_limits<double>::infinity();
+  if (a.e < -5) return 0.0;
+  double iM = a.m;
+  for (long long i = a.e; i > 0; i--) iM *= cXFloatRange;
+  for (long long i = a.e; i < 0; i++) iM *= cXFloatRangeInv;
+  return iM;
+}
+
+static inline XFloat double2xfloat( double prob )
+{
+  XFloat a( prob, 0 );
+  XFloatNormalise( a );
+  return a;
+}
+
+static inline XFloat xfloat_pr_product( const XFloat& a, const XFloat& b )
+{
+  XFloat p( a.m*b.m, a.e+b.e );
+  XFloatNormaliseProduct( p );
+  return p;
+}
+
+// A double in [2^-256,2^256), such as a probability, acts as a normalised mantissa; others are
+// first brought in range
+static inline XFloat xfloat_pr_double_product( const XFloat& a, double b )
+{
+  if (!xfloat_inrange( b )) return xfloat_pr_product( a, double2xfloat( b ) );
+  XFloat p( a.m*b, a.e );
+  XFloatNormaliseProduct( p );
+  return p;
+}
+
+static inline void xfloat_pr_product_accum( XFloat& a, const XFloat& b )
+{
+  a.m *= b.m; a.e += b.e;
+  XFloatNormaliseProduct( a );
+}
+
+static inline void xfloat_pr_double_product_accum( XFloat& a, double b )
+{
+  a = xfloat_pr_double_product( a, b );
+}
+
+static inline XFloat xfloat_pr_quotient( const XFloat& a, const XFloat& b )
+{
+  XFloat q( a.m/b.m, a.e-b.e );
+  XFloatNormaliseProduct( q );
+  return q;
+}
+
+static inline void xfloat_pr_quotient_accum( XFloat& a, const XFloat& b )
+{
+  a.m /= b.m; a.e -= b.e;
+  XFloatNormaliseProduct( a );
+}
+
+// The smaller term is aligned through a table, without further branches.  The comparison of the
+// exponents is well predicted, as a unit spans 77 orders of magnitude; the larger term is then
+// not delayed by the alignment, which matters for accumulators
+static inline XFloat xfloat_pr_sum( const XFloat& a, const XFloat& b )
+{
+  XFloat s;
+  if (a.e >= b.e)
+    s = XFloat( a.m + b.m * XFloat::aAlignLookup[ xfloat_align( b.e, a.e ) ], a.e );
+  else
+    s = XFloat( b.m + a.m * XFloat::aAlignLookup[ xfloat_align( a.e, b.e ) ], b.e );
+  XFloatNormalise( s );
+  return s;
+}
+
+static inline void xfloat_pr_sum_accum( XFloat& a, const XFloat& b )
+{
+  a = xfloat_pr_sum( a, b );
+}
+
+static inline XFloat xfloat_pr_diff( const XFloat& a, const XFloat& b )
+{
+  return xfloat_pr_sum( a, XFloat( -b.m, b.e ) );
+}
+
+static inline bool xfloat_less( const XFloat& a, const XFloat& b )
+{
+  long long iE = a.e > b.e ? a.e : b.e;
+  return a.m * XFloat::aAlignLookup[ xfloat_align( a.e, iE ) ] < b.m * XFloat::aAlignLookup[ xfloat_align( b.e, iE ) ];
+}
+
+static inline bool xfloat_equal( const XFloat& a, const XFloat& b )
+{
+  long long iE = a.e > b.e ? a.e : b.e;
+  return a.m * XFloat::aAlignLookup[ xfloat_align( a.e, iE ) ] == b.m * XFloat::aAlignLookup[ xfloat_align( b.e, iE ) ];
+}
+
+static inline bool xfloat_lessequal( const XFloat& a, const XFloat& b )
+{
+  long long iE = a.e > b.e ? a.e : b.e;
+  return a.m * XFloat::aAlignLookup[ xfloat_align( a.e, iE ) ] <= b.m * XFloat::aAlignLookup[ xfloat_align( b.e, iE ) ];
+}
+
+static inline ostream& xfloat_print( ostream& out, const XFloat& x )
+{
+  static const double log10 = log(10.0);
+  static const double maxmantisse = 10.0 * (1.0 - 0.55 * exp(-cXFloatDigits * log10));
+  out.precision( cXFloatDigits );
+  if (x.m == 0.0) {
+    out << 0.0;
+  } else {
+    double iM = (log(fabs(x.m)) + logcXFloatRange*(double)x.e) / log10;
+    long iExp = long(floor(iM));
+    iM = exp((iM - iExp) * log10);
+    if (iM > maxmantisse) {
+      iExp += 1;
+      iM = 1.0;
+    }
+    out << (x.m < 0.0 ? -iM : iM) << ( iExp<0 ? "e" : "e+" ) << iExp;
+  }
+  out.precision( 6 );           // default
+  return out;
+}
+
+
+//
+// Wrapper to allow XFloats to be used by Algebra template
+//
+struct XFloatMethods
+{
+  typedef XFloat Value;
+  static inline double to_prob (XFloat iX) { return xfloat2double(iX); }
+  static inline XFloat from_prob (double iP) { return double2xfloat(iP); }
+  static inline XFloat pmul( XFloat iX, XFloat iY) { return xfloat_pr_product(iX,iY); }
+  static inline XFloat pmuldouble( XFloat iX, double iY) { return xfloat_pr_double_product(iX,iY); }
+  static inline XFloat pdiv( XFloat iX, XFloat iY) { return xfloat_pr_quotient(iX,iY); }
+  static inline XFloat psum( XFloat iX, XFloat iY) { return xfloat_pr_sum(iX,iY); }
+  static inline XFloat pdiff( XFloat iX, XFloat iY) { return xfloat_pr_diff(iX,iY); }
+  static inline XFloat doubleexp( double iX) { return xfloat_doubleexp(iX); }
+  static inline double doublelog( XFloat iX) { return xfloat_doublelog(iX); }
+  static inline void pmulacc( XFloat& iX, XFloat iY) { xfloat_pr_product_accum(iX,iY); }
+  static inline void pmulaccdouble( XFloat& iX, double iY) { xfloat_pr_double_product_accum(iX,iY); }
+  static inline void pdivacc( XFloat& iX, XFloat iY) { xfloat_pr_quotient_accum(iX,iY); }
+  static inline void psumacc( XFloat& iX, XFloat iY) { xfloat_pr_sum_accum(iX,iY); }
+  static inline void pdiffacc( XFloat& iX, XFloat iY) { iX = xfloat_pr_diff(iX,iY); }
+  static inline bool less( XFloat iX, XFloat iY) { return xfloat_less(iX,iY); }
+  static inline bool equal( XFloat iX, XFloat iY) { return xfloat_equal(iX,iY); }
+  static inline bool lessequal( XFloat iX, XFloat iY) { return xfloat_lessequal(iX,iY); }
+  static inline ostream& print( ostream& iOut, XFloat iX ) { return xfloat_print( iOut, iX ); }
+};
+
+
 //
 // Simple log-space numbers - don't use, except possibly for Viterbi
 //
 class Logspace {
   double x;
  public:
+  static double* aLog1pExpLookup;                    // used by addition
   Logspace( double x ) : x(x) {}
   Logspace() {}
   operator double&(){ return x; }
   void clear() {x=-1.0e+300;}
 };
 
-inline Logspace logspace_addsmall( Logspace iX, Logspace iY ) {
+//
+// dummy class to initialise Logspace lookup table
+//
+class _LogspaceInitialize {
+public:
+  _LogspaceInitialize();
+};
+
+// Reference version, using libm
+inline Logspace logspace_addsmall_libm( Logspace iX, Logspace iY ) {
   if (iX - iY > 36.7) return iX;
   return iX + log(1.0+exp(iY-iX));
 }
 
+// log(1+exp(-d)) for d >= 0, interpolated by the cubic through the values and derivatives at the ends
+// of each interval of width h=1/16.  As the fourth derivative is at most 1/8, the error is below
+// h^4/384/8 < 5e-9; together with the cutoff, sums are accurate to 5e-9 in the log, i.e. a relative
+// 5e-9 in the probability.  Returns 0 for NaN, which arises when adding two -infinities, i.e. log(0)
+inline double logspace_log1pexp( double d ) {
+  if (!(d < cLogspaceCutoff)) return 0.0;
+  d *= cLogspaceTableScale;
+  int i = (int)d;
+  double t = d - i;
+  const double* c = Logspace::aLog1pExpLookup + 4*i;
+  return c[0] + t*(c[1] + t*(c[2] + t*c[3]));
+}
+
+inline Logspace logspace_addsmall( Logspace iX, Logspace iY ) {
+#ifdef LOGSPACE_LIBM
+  return logspace_addsmall_libm( iX, iY );
+#else
+  return iX + logspace_log1pexp( iX - iY );
+#endif
+}
+
+// The larger term and the absolute difference are selected without branches
 inline Logspace logspace_add( Logspace iX, Logspace iY ) {
+#ifdef LOGSPACE_LIBM
   if (iX>iY) return logspace_addsmall(iX,iY); else return logspace_addsmall(iY,iX);
+#else
+  double d = iX - iY;
+  return (d > 0.0 ? (double)iX : (double)iY) + logspace_log1pexp( fabs( d ) );
+#endif
 }
 
 struct LogspaceMethods
@@ -407,6 +696,75 @@ struct LogspaceMethods
 };
 
 
+//
+// Integer log-odds scores, for Viterbi only: the max-plus algebra on scaled integer logarithms.
+//
+// Products are saturating integer additions, and sums are maxima, so that only the Viterbi
+// recursion and traceback give meaningful results, but these are exact: ties and the traceback
+// compare integers.  Scores below cIntScoreMin, about -5.4e5 bits, become 0.
+//
+class IntScore {
+  int s;
+ public:
+  IntScore( int s ) : s(s) {}
+  IntScore() {}
+  operator int&(){ return s; }
+  void clear() {s=cIntScoreZero;}
+};
+
+// Clamps the result of one addition or subtraction of scores; selected without branches
+inline IntScore intscore_saturate( int iS ) {
+  iS = iS < cIntScoreMin ? cIntScoreZero : iS;
+  return iS > cIntScoreMax ? cIntScoreMax : iS;
+}
+
+// Score of a natural logarithm, rounded to the nearest unit (without calling floor)
+inline IntScore intscore_doubleexp( double iX ) {
+  double iS = iX * cIntScoreLogScale;
+  if (!(iS >= cIntScoreMin)) return cIntScoreZero;           // includes log(0) and NaN
+  if (iS > cIntScoreMax) return cIntScoreMax;
+  return (int)(iS < 0.0 ? iS - 0.5 : iS + 0.5);
+}
+
+inline double intscore_doublelog( IntScore iX ) {
+  if (iX == cIntScoreZero) return -numeric_limits<double>::infinity();
+  return iX / cIntScoreLogScale;
+}
+
+inline IntScore intscore_from_prob( double iP ) {
+  if (!(iP > 0.0)) return cIntScoreZero;
+  return intscore_doubleexp( log(iP) );
+}
+
+inline ostream& intscore_print( ostream& iOut, IntScore iX ) {
+  if (iX == cIntScoreZero) return iOut << 0.0;
+  return bfloat_print( iOut, bfloat_doubleexp( iX / cIntScoreLogScale ) );
+}
+
+struct IntScoreMethods
+{
+  typedef IntScore Value;
+  static inline double to_prob (Value iX) { return exp( intscore_doublelog(iX) ); }
+  static inline Value from_prob (double iP) { return intscore_from_prob(iP); }
+  static inline Value pmul( Value iX, Value iY) { return intscore_saturate(iX+iY); }
+  static inline Value pmuldouble( Value iX, double iY) { return intscore_saturate(iX+intscore_from_prob(iY)); }
+  static inline Value pdiv( Value iX, Value iY) { return intscore_saturate(iX-iY); }
+  static inline Value psum( Value iX, Value iY) { return iX>iY ? iX : iY; }
+  static inline Value pdiff( Value iX, Value iY) { cerr << "IntScore pdiff: Not implemented." << endl; return cIntScoreZero; }
+  static inline Value doubleexp( double iX) { return intscore_doubleexp(iX); }
+  static inline double doublelog( Value iX) { return intscore_doublelog(iX); }
+  static inline void pmulacc( Value& iX, Value iY) { iX = intscore_saturate(iX+iY); }
+  static inline void pmulaccdouble( Value& iX, double iY) { iX = intscore_saturate(iX+intscore_from_prob(iY)); }
+  static inline void pdivacc( Value& iX, Value iY) { iX = intscore_saturate(iX-iY); }
+  static inline void psumacc( Value& iX, Value iY) { if (iX<iY) iX=iY; }
+  static inline void pdiffacc( Value& iX, Value iY) { cerr << "IntScore pdiffacc: Not implemented." << endl; }
+  static inline bool less( Value iX, Value iY) { return iX<iY; }
+  static inline bool equal( Value iX, Value iY) { return iX==iY; }
+  static inline bool lessequal( Value iX, Value iY) { return iX<=iY; }
+  static inline ostream& print( ostream& iOut, Value iX ) { return intscore_print( iOut, iX ); }
+};
+
+
 //
 // Algebra class - Wrapper for overloading all arithmetic operators to use a different algebra.
 //
@@ -464,7 +822,7 @@ public:
 
   // miscellaneous operators
   inline friend double log( const Algebra& lx ) { return doublelog( lx.val ); }
-  inline friend Algebra exp( const Algebra& px ) { return doubleexp( to_prob(px) ); }
+  inline friend Algebra exp( const Algebra& px ) { return from_log( doubleexp( to_prob(px.val) ) ); }
   
   // increment & decremement
   Algebra& operator++() { *this += 1.; return *this; }
@@ -540,4 +898,8 @@ public:
 
 #define logspace Algebra<LogspaceMethods>
 
+#define xfloat Algebra<XFloatMethods>
+
+#define intscore Algebra<IntScoreMethods>
+
 #endif
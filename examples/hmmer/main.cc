@@ -102,22 +102,56 @@ double forward( vector<char> iSeq1 ) {
 }
 
 
+//
+// The striped versions return the natural log of the likelihood
+//
+
+double stripedViterbi( vector<char> iSeq1 ) {
+
+  cout << "Striped Viterbi recursion..." << endl;
+  double viterbi = ViterbiStriped16( iE, iT, iSeq1 );
+
+  cout << viterbi << endl;
+
+  return viterbi;
+
+}
+
+
+double stripedForward( vector<char> iSeq1 ) {
+
+  cout << "Striped Forward recursion..." << endl;
+  double forward = ForwardStriped( iE, iT, iSeq1 );
+
+  cout << forward << endl;
+
+  return forward;
+
+}
+
+
 
 int main(int argc, char** argv) {
 
   char* file = "sequence.fa";
   bool runviterbi = false;
+  bool runstriped = false;
 
   int fileidx = 1;
 
-  if (argc >= 2 && strcmp(argv[1],"--viterbi")==0) {
+  if (argc >= fileidx+1 && strcmp(argv[fileidx],"--striped")==0) {
+    runstriped = true;
+    fileidx += 1;
+  }
+
+  if (argc >= fileidx+1 && strcmp(argv[fileidx],"--viterbi")==0) {
     runviterbi = true;
     fileidx += 1;
   }
 
   if (fileidx != argc-1) {
 
-    cout << "Usage: " << argv[0] << " [--viterbi] file.fa \n" << endl;
+    cout << "Usage: " << argv[0] << " [--striped] [--viterbi] file.fa \n" << endl;
     return 1;
 
   }
@@ -139,7 +173,13 @@ int main(int argc, char** argv) {
 
     if (iSeq1.size() > 0) {
 
-      if (runviterbi) {
+      if (runstriped) {
+	if (runviterbi) {
+	  stripedViterbi( iSeq1 );
+	} else {
+	  stripedForward( iSeq1 );
+	}
+      } else if (runviterbi) {
 	viterbi( iSeq1 );
       } else {
 	forward( iSeq1 );
@@ -409,7 +409,11 @@ def generatexml( hmm, basename ):
     #
     # make alphabet tag
     #
-    alphabettag = "<alphabet id=\"hmmer_alphabet\"> %s </alphabet>\n" % (' '.join(alphabet))
+    # The symbols are the indices of the residues, not the residue letters.  The sequence the
+    # HMM reads is iTranslatedSequence1, which holds indices, and iE[][] is indexed by them.  The
+    # striped profile reads iE[][] for every symbol of the alphabet, and the scalar recursions
+    # use the first symbol as a dummy at position 0; with letters, both index iE[][] out of range
+    alphabettag = "<alphabet id=\"hmmer_alphabet\"> <range from=\"0\" to=\"%s\"/> </alphabet>\n" % len(alphabet)
 
     ############################
     #
@@ -496,9 +500,29 @@ def generatexml( hmm, basename ):
 </viterbi>
 
 
+<!-- Striped vector versions; these return the log probability or score only -->
+
+<forward striped="yes" name="ForwardStriped" id="forwardstriped">
+  <hmm idref="hmmer_hmm"/>
+</forward>
+
+
+<viterbi striped="yes" name="ViterbiStriped" id="viterbistriped">
+  <hmm idref="hmmer_hmm"/>
+</viterbi>
+
+
+<viterbi striped="int16" name="ViterbiStriped16" id="viterbistriped16">
+  <hmm idref="hmmer_hmm"/>
+</viterbi>
+
+
 <codeGeneration realtype="%s" file="%s.cc" header="%s.h" language="C++">
   <forward idref="forward"/>
   <viterbi idref="viterbi"/>
+  <forward idref="forwardstriped"/>
+  <viterbi idref="viterbistriped"/>
+  <viterbi idref="viterbistriped16"/>
 </codeGeneration>
 
 
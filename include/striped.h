@@ -0,0 +1,471 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+//
+// striped.h - striped vector recursions for profile HMMs (striped="yes" or "int16")
+//
+// The match, insert and delete states of node k of a profile of K nodes are kept in lane k/Q of
+// vector k%Q of a row of Q vectors (Farrar's striped layout).  The predecessor k-1 of a node is
+// then in the same lane of the previous vector, except for the first vector, which takes it
+// from the last vector shifted by one lane.  Delete-to-delete chains cross lanes too, and are
+// completed by the 'lazy F' passes of StripedProfile::deletes.
+//
+// Vectors are SSE2 or AVX2 registers when the compiler targets these (and STRIPED_PORTABLE
+// is not defined), and small arrays otherwise.  A semiring supplies the arithmetic:
+//
+//   StripedSum       floats, sums of products; rows are rescaled to keep them in range (Forward)
+//   StripedMax       floats, maxima of sums of natural logs (Viterbi)
+//   StripedMaxInt16  16-bit saturated integers, STRIPED_INT16_SCALE units per bit (Viterbi)
+//
+
+#ifndef _striped_h_
+#define _striped_h_
+
+#include <cmath>
+#include <cstdlib>
+#include <limits>
+
+#if !defined(STRIPED_PORTABLE) && defined(__AVX2__)
+#define STRIPED_AVX2
+#include <immintrin.h>
+#elif !defined(STRIPED_PORTABLE) && defined(__SSE2__)
+#define STRIPED_SSE2
+#include <emmintrin.h>
+#endif
+
+#ifndef STRIPED_INT16_SCALE
+#define STRIPED_INT16_SCALE 500                            // StripedMaxInt16 units per bit
+#endif
+const double cStripedInt16LogScale = STRIPED_INT16_SCALE / 0.6931471805599453;  // units per nat
+const int cStripedInt16Zero        = -32768;               // Score of probability 0
+const int cStripedInt16Max         = 32767;
+const float cStripedMaxZero        = -1.0e30f;             // StripedMax score of probability 0; finite, so that
+                                                           //  -ffast-math code can rely on it
+const int cStripedAlign            = 64;                   // Alignment of vector arrays, in bytes
+
+
+//
+// Vector primitives.  sf_ work on floats, ss_ on shorts; _shift moves every lane up by one,
+// and fills lane 0; _any is true if a > b in some lane
+//
+
+#if defined(STRIPED_AVX2)
+
+typedef __m256 StripedFloats;
+typedef __m256i StripedShorts;
+const int cStripedFloatLanes = 8;
+const int cStripedShortLanes = 16;
+
+inline StripedFloats sf_set( float a ) { return _mm256_set1_ps( a ); }
+inline StripedFloats sf_add( StripedFloats a, StripedFloats b ) { return _mm256_add_ps( a, b ); }
+inline StripedFloats sf_mul( StripedFloats a, StripedFloats b ) { return _mm256_mul_ps( a, b ); }
+inline StripedFloats sf_max( StripedFloats a, StripedFloats b ) { return _mm256_max_ps( a, b ); }
+inline bool sf_any( StripedFloats a, StripedFloats b ) { return _mm256_movemask_ps( _mm256_cmp_ps( a, b, _CMP_GT_OQ ) ) != 0; }
+inline StripedFloats sf_shift( StripedFloats a, float fill ) {
+  StripedFloats r = _mm256_permutevar8x32_ps( a, _mm256_setr_epi32( 7, 0, 1, 2, 3, 4, 5, 6 ) );
+  return _mm256_blend_ps( r, _mm256_set1_ps( fill ), 1 );
+}
+inline float sf_sum( StripedFloats a ) {
+  __m128 s = _mm_add_ps( _mm256_castps256_ps128( a ), _mm256_extractf128_ps( a, 1 ) );
+  s = _mm_add_ps( s, _mm_movehl_ps( s, s ) );
+  s = _mm_add_ss( s, _mm_shuffle_ps( s, s, 1 ) );
+  return _mm_cvtss_f32( s );
+}
+inline float sf_hmax( StripedFloats a ) {
+  __m128 s = _mm_max_ps( _mm256_castps256_ps128( a ), _mm256_extractf128_ps( a, 1 ) );
+  s = _mm_max_ps( s, _mm_movehl_ps( s, s ) );
+  s = _mm_max_ss( s, _mm_shuffle_ps( s, s, 1 ) );
+  return _mm_cvtss_f32( s );
+}
+
+inline StripedShorts ss_set( short a ) { return _mm256_set1_epi16( a ); }
+inline StripedShorts ss_adds( StripedShorts a, StripedShorts b ) { return _mm256_adds_epi16( a, b ); }
+inline StripedShorts ss_max( StripedShorts a, StripedShorts b ) { return _mm256_max_epi16( a, b ); }
+inline bool ss_any( StripedShorts a, StripedShorts b ) { return _mm256_movemask_epi8( _mm256_cmpgt_epi16( a, b ) ) != 0; }
+inline StripedShorts ss_shift( StripedShorts a ) {
+  // the low half moves into the high half across the 128-bit boundary; lane 0 becomes -32768
+  StripedShorts r = _mm256_alignr_epi8( a, _mm256_permute2x128_si256( a, a, 0x08 ), 14 );
+  return _mm256_or_si256( r, _mm256_setr_epi16( -32768, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 ) );
+}
+inline short ss_hmax( StripedShorts a ) {
+  __m128i s = _mm_max_epi16( _mm256_castsi256_si128( a ), _mm256_extracti128_si256( a, 1 ) );
+  s = _mm_max_epi16( s, _mm_srli_si128( s, 8 ) );
+  s = _mm_max_epi16( s, _mm_srli_si128( s, 4 ) );
+  s = _mm_max_epi16( s, _mm_srli_si128( s, 2 ) );
+  return (short)_mm_extract_epi16( s, 0 );
+}
+
+#elif defined(STRIPED_SSE2)
+
+typedef __m128 StripedFloats;
+typedef __m128i StripedShorts;
+const int cStripedFloatLanes = 4;
+const int cStripedShortLanes = 8;
+
+inline StripedFloats sf_set( float a ) { return _mm_set1_ps( a ); }
+inline StripedFloats sf_add( StripedFloats a, StripedFloats b ) { return _mm_add_ps( a, b ); }
+inline StripedFloats sf_mul( StripedFloats a, StripedFloats b ) { return _mm_mul_ps( a, b ); }
+inline StripedFloats sf_max( StripedFloats a, StripedFloats b ) { return _mm_max_ps( a, b ); }
+inline bool sf_any( StripedFloats a, StripedFloats b ) { return _mm_movemask_ps( _mm_cmpgt_ps( a, b ) ) != 0; }
+inline StripedFloats sf_shift( StripedFloats a, float fill ) {
+  StripedFloats r = _mm_castsi128_ps( _mm_slli_si128( _mm_castps_si128( a ), 4 ) );
+  return _mm_move_ss( r, _mm_set_ss( fill ) );
+}
+inline float sf_sum( StripedFloats a ) {
+  a = _mm_add_ps( a, _mm_movehl_ps( a, a ) );
+  a = _mm_add_ss( a, _mm_shuffle_ps( a, a, 1 ) );
+  return _mm_cvtss_f32( a );
+}
+inline float sf_hmax( StripedFloats a ) {
+  a = _mm_max_ps( a, _mm_movehl_ps( a, a ) );
+  a = _mm_max_ss( a, _mm_shuffle_ps( a, a, 1 ) );
+  return _mm_cvtss_f32( a );
+}
+
+inline StripedShorts ss_set( short a ) { return _mm_set1_epi16( a ); }
+inline StripedShorts ss_adds( StripedShorts a, StripedShorts b ) { return _mm_adds_epi16( a, b ); }
+inline StripedShorts ss_max( StripedShorts a, StripedShorts b ) { return _mm_max_epi16( a, b ); }
+inline bool ss_any( StripedShorts a, StripedShorts b ) { return _mm_movemask_epi8( _mm_cmpgt_epi16( a, b ) ) != 0; }
+inline StripedShorts ss_shift( StripedShorts a ) {
+  return _mm_or_si128( _mm_slli_si128( a, 2 ), _mm_setr_epi16( -32768, 0, 0, 0, 0, 0, 0, 0 ) );
+}
+inline short ss_hmax( StripedShorts a ) {
+  a = _mm_max_epi16( a, _mm_srli_si128( a, 8 ) );
+  a = _mm_max_epi16( a, _mm_srli_si128( a, 4 ) );
+  a = _mm_max_epi16( a, _mm_srli_si128( a, 2 ) );
+  return (short)_mm_extract_epi16( a, 0 );
+}
+
+#else
+
+// Portable fallback; the compiler may still vectorize the loops
+const int cStripedFloatLanes = 4;
+const int cStripedShortLanes = 8;
+struct StripedFloats { float v[cStripedFloatLanes]; };
+struct StripedShorts { short v[cStripedShortLanes]; };
+
+inline StripedFloats sf_set( float a ) { StripedFloats r; for (int i=0; i<cStripedFloatLanes; i++) r.v[i] = a; return r; }
+inline StripedFloats sf_add( StripedFloats a, StripedFloats b ) { for (int i=0; i<cStripedFloatLanes; i++) a.v[i] += b.v[i]; return a; }
+inline StripedFloats sf_mul( StripedFloats a, StripedFloats b ) { for (int i=0; i<cStripedFloatLanes; i++) a.v[i] *= b.v[i]; return a; }
+inline StripedFloats sf_max( StripedFloats a, StripedFloats b ) { for (int i=0; i<cStripedFloatLanes; i++) if (b.v[i] > a.v[i]) a.v[i] = b.v[i]; return a; }
+inline bool sf_any( StripedFloats a, StripedFloats b ) { bool r = false; for (int i=0; i<cStripedFloatLanes; i++) r |= a.v[i] > b.v[i]; return r; }
+inline StripedFloats sf_shift( StripedFloats a, float fill ) {
+  for (int i=cStripedFloatLanes-1; i>0; i--) a.v[i] = a.v[i-1];
+  a.v[0] = fill;
+  return a;
+}
+inline float sf_sum( StripedFloats a ) { float r = 0.0f; for (int i=0; i<cStripedFloatLanes; i++) r += a.v[i]; return r; }
+inline float sf_hmax( StripedFloats a ) { float r = a.v[0]; for (int i=1; i<cStripedFloatLanes; i++) if (a.v[i] > r) r = a.v[i]; return r; }
+
+inline StripedShorts ss_set( short a ) { StripedShorts r; for (int i=0; i<cStripedShortLanes; i++) r.v[i] = a; return r; }
+inline StripedShorts ss_adds( StripedShorts a, StripedShorts b ) {
+  for (int i=0; i<cStripedShortLanes; i++) {
+    int s = a.v[i] + b.v[i];
+    a.v[i] = (short)(s < cStripedInt16Zero ? cStripedInt16Zero : (s > cStripedInt16Max ? cStripedInt16Max : s));
+  }
+  return a;
+}
+inline StripedShorts ss_max( StripedShorts a, StripedShorts b ) { for (int i=0; i<cStripedShortLanes; i++) if (b.v[i] > a.v[i]) a.v[i] = b.v[i]; return a; }
+inline bool ss_any( StripedShorts a, StripedShorts b ) { bool r = false; for (int i=0; i<cStripedShortLanes; i++) r |= a.v[i] > b.v[i]; return r; }
+inline StripedShorts ss_shift( StripedShorts a ) {
+  for (int i=cStripedShortLanes-1; i>0; i--) a.v[i] = a.v[i-1];
+  a.v[0] = (short)cStripedInt16Zero;
+  return a;
+}
+inline short ss_hmax( StripedShorts a ) { short r = a.v[0]; for (int i=1; i<cStripedShortLanes; i++) if (a.v[i] > r) r = a.v[i]; return r; }
+
+#endif
+
+
+//
+// Semirings.  'plus' combines alternative paths, 'times' extends a path; 'norm' returns the
+// factor that rescales a row whose total is the argument, and 'lognorm' the log of the
+// inverse of that factor, which is added to the result.  cMax is true if plus is a maximum,
+// so that the lazy-F loop can stop at the first vector it does not improve.
+//
+
+struct StripedSum {
+  typedef StripedFloats Vec;
+  typedef float Lane;
+  typedef float Score;
+  static const int cLanes = cStripedFloatLanes;
+  static const bool cMax = false;
+  static inline Score zero() { return 0.0f; }
+  static inline Score one() { return 1.0f; }
+  static inline Score fromProb( double p ) { return (float)p; }
+  static inline Score plus( Score a, Score b ) { return a + b; }
+  static inline Score times( Score a, Score b ) { return a * b; }
+  static inline Score norm( Score t ) { return t > 0.0f ? 1.0f / t : 1.0f; }
+  static inline double lognorm( Score t ) { return t > 0.0f ? log( (double)t ) : 0.0; }
+  static inline double toLog( Score a ) { return a > 0.0f ? log( (double)a ) : -std::numeric_limits<double>::infinity(); }
+  static inline Vec vset( Score a ) { return sf_set( a ); }
+  static inline Vec vplus( Vec a, Vec b ) { return sf_add( a, b ); }
+  static inline Vec vtimes( Vec a, Vec b ) { return sf_mul( a, b ); }
+  static inline Vec vshift( Vec a ) { return sf_shift( a, 0.0f ); }
+  static inline bool vany( Vec a, Vec b ) { return sf_any( a, b ); }
+  static inline Score vreduce( Vec a ) { return sf_sum( a ); }
+};
+
+struct StripedMax {
+  typedef StripedFloats Vec;
+  typedef float Lane;
+  typedef float Score;
+  static const int cLanes = cStripedFloatLanes;
+  static const bool cMax = true;
+  static inline Score zero() { return cStripedMaxZero; }
+  static inline Score one() { return 0.0f; }
+  static inline Score fromProb( double p ) { return p > 0.0 ? (float)log( p ) : cStripedMaxZero; }
+  static inline Score plus( Score a, Score b ) { return a > b ? a : b; }
+  static inline Score times( Score a, Score b ) { return a + b; }
+  static inline Score norm( Score t ) { return t > 0.5f * cStripedMaxZero ? -t : 0.0f; }
+  static inline double lognorm( Score t ) { return t > 0.5f * cStripedMaxZero ? (double)t : 0.0; }
+  static inline double toLog( Score a ) { return a > 0.5f * cStripedMaxZero ? (double)a : -std::numeric_limits<double>::infinity(); }
+  static inline Vec vset( Score a ) { return sf_set( a ); }
+  static inline Vec vplus( Vec a, Vec b ) { return sf_max( a, b ); }
+  static inline Vec vtimes( Vec a, Vec b ) { return sf_add( a, b ); }
+  static inline Vec vshift( Vec a ) { return sf_shift( a, cStripedMaxZero ); }
+  static inline bool vany( Vec a, Vec b ) { return sf_any( a, b ); }
+  static inline Score vreduce( Vec a ) { return sf_hmax( a ); }
+};
+
+// Scores are kept as ints outside the vectors, and saturated when stored in a lane.  Rows are
+// rescaled so that their best score is 0, which leaves the range for the differences within a
+// row, and for the scores of one step.  Rounding errors add up over the path, so that results
+// are approximate, as for HMMER's 16-bit Viterbi filter.
+struct StripedMaxInt16 {
+  typedef StripedShorts Vec;
+  typedef short Lane;
+  typedef int Score;
+  static const int cLanes = cStripedShortLanes;
+  static const bool cMax = true;
+  static inline Score zero() { return cStripedInt16Zero; }
+  static inline Score one() { return 0; }
+  static inline Score clamp( int s ) { return s < cStripedInt16Zero ? cStripedInt16Zero : (s > cStripedInt16Max ? cStripedInt16Max : s); }
+  static inline Score fromProb( double p ) {
+    if (!(p > 0.0)) return cStripedInt16Zero;
+    double s = log( p ) * cStripedInt16LogScale;
+    if (s <= cStripedInt16Zero) return cStripedInt16Zero;
+    if (s >= cStripedInt16Max) return cStripedInt16Max;
+    return s < 0.0 ? -(int)(0.5 - s) : (int)(s + 0.5);
+  }
+  static inline Score plus( Score a, Score b ) { return a > b ? a : b; }
+  static inline Score times( Score a, Score b ) { return (a == cStripedInt16Zero || b == cStripedInt16Zero) ? cStripedInt16Zero : clamp( a + b ); }
+  static inline Score norm( Score t ) { return t > cStripedInt16Zero ? -t : 0; }
+  static inline double lognorm( Score t ) { return t > cStripedInt16Zero ? t / cStripedInt16LogScale : 0.0; }
+  static inline double toLog( Score a ) { return a > cStripedInt16Zero ? a / cStripedInt16LogScale : -std::numeric_limits<double>::infinity(); }
+  static inline Vec vset( Score a ) { return ss_set( (short)a ); }
+  static inline Vec vplus( Vec a, Vec b ) { return ss_max( a, b ); }
+  static inline Vec vtimes( Vec a, Vec b ) { return ss_adds( a, b ); }
+  static inline Vec vshift( Vec a ) { return ss_shift( a ); }
+  static inline bool vany( Vec a, Vec b ) { return ss_any( a, b ); }
+  static inline Score vreduce( Vec a ) { return ss_hmax( a ); }
+};
+
+
+//
+// Aligned array of vectors, all initialized to one value
+//
+
+template<class S>
+class StripedArray {
+  char* pMemory;
+public:
+  typename S::Vec* aV;
+  StripedArray( int iSize, typename S::Score iValue ) {
+    pMemory = (char*)malloc( iSize * sizeof( typename S::Vec ) + cStripedAlign );
+    aV = (typename S::Vec*)(pMemory + cStripedAlign - ((size_t)pMemory % cStripedAlign));
+    typename S::Vec v = S::vset( iValue );
+    for (int i=0; i<iSize; i++) aV[i] = v;
+  }
+  ~StripedArray() { free( pMemory ); }
+private:
+  StripedArray( const StripedArray& );
+  void operator=( const StripedArray& );
+};
+
+
+//
+// One row of the recursion: the match, insert and delete states of all nodes
+//
+
+template<class S>
+class StripedRow {
+public:
+  int iSegments;
+  StripedArray<S> aMatch, aInsert, aDelete;
+  StripedRow( int iSegs ) : iSegments( iSegs ), aMatch( iSegs, S::zero() ), aInsert( iSegs, S::zero() ), aDelete( iSegs, S::zero() ) {}
+  void clear() {
+    typename S::Vec v = S::vset( S::zero() );
+    for (int q=0; q<iSegments; q++) aMatch.aV[q] = aInsert.aV[q] = aDelete.aV[q] = v;
+  }
+};
+
+
+//
+// Transitions and emissions of the nodes of a profile, in striped order, and the recursions
+// over one row.  Transitions are stored with the node they go into: for instance cMM at node
+// k holds the transition from match state k-1 to match state k, and cMI at node k the one from
+// match state k to insert state k.  B is the state that enters the profile, E the one that
+// leaves it.  Nodes, transitions and emissions that are not set are 0.
+//
+
+template<class S>
+class StripedProfile {
+public:
+  typedef typename S::Vec Vec;
+  typedef typename S::Score Score;
+  enum { cBM, cMM, cIM, cDM, cMI, cII, cMD, cDD, cBD, cME, cDE, cNumTransitions };
+  int iNodes;
+  int iSegments;
+  int iSymbols;
+private:
+  StripedArray<S> aTrans;          // iSegments vectors for each type of transition
+  StripedArray<S> aMatchEmit;      // iSegments vectors for each symbol
+  StripedArray<S> aInsertEmit;
+  int* aLane;                      // position of each node in a row of vectors, as an array of lanes
+  int iBeginDeletes;               // number of leading segments with transitions from B into deletes
+  bool bDeleteEnd;                 // whether any delete state goes into E
+  // the lane of the array of vectors v that holds node iNode
+  typename S::Lane& lane( Vec* v, int iNode ) { return ((typename S::Lane*)v)[ aLane[iNode] ]; }
+  StripedProfile( const StripedProfile& );
+  void operator=( const StripedProfile& );
+public:
+  StripedProfile( int iNumNodes, int iNumSymbols ) :
+    iNodes( iNumNodes ),
+    iSegments( iNumNodes > 0 ? (iNumNodes + S::cLanes - 1) / S::cLanes : 1 ),
+    iSymbols( iNumSymbols ),
+    aTrans( cNumTransitions * iSegments, S::zero() ),
+    aMatchEmit( iNumSymbols * iSegments, S::zero() ),
+    aInsertEmit( iNumSymbols * iSegments, S::zero() ),
+    iBeginDeletes( 0 ),
+    bDeleteEnd( false ) {
+    aLane = new int[ iNumNodes > 0 ? iNumNodes : 1 ];
+    for (int k=0; k<iNumNodes; k++) aLane[k] = (k % iSegments) * S::cLanes + k / iSegments;
+  }
+  ~StripedProfile() { delete[] aLane; }
+
+  void setTransition( int iType, int iNode, double iProb ) {
+    lane( aTrans.aV + iType*iSegments, iNode ) = (typename S::Lane)S::fromProb( iProb );
+    if (iProb > 0.0 && iType == cBD && iNode % iSegments >= iBeginDeletes) iBeginDeletes = iNode % iSegments + 1;
+    if (iProb > 0.0 && iType == cDE) bDeleteEnd = true;
+  }
+  void setMatchEmission( int iSymbol, int iNode, double iProb ) { lane( aMatchEmit.aV + iSymbol*iSegments, iNode ) = (typename S::Lane)S::fromProb( iProb ); }
+  void setInsertEmission( int iSymbol, int iNode, double iProb ) { lane( aInsertEmit.aV + iSymbol*iSegments, iNode ) = (typename S::Lane)S::fromProb( iProb ); }
+
+  // Match and insert states at the next position, which emits symbol iSymbol, from the states
+  // in r; B is the begin state at the previous position.  All values are multiplied by iNorm.
+  // Also starts the delete states, along the segments from the new match states; deletes()
+  // completes them.  Returns the total of the transitions from match states into E, and the
+  // total of the match and insert states of the row
+  void matchInsert( StripedRow<S>& r, int iSymbol, Score iBegin, Score iNorm, Score& iEnd, Score& iTotal ) const {
+    const Vec* tBM = aTrans.aV + cBM*iSegments;
+    const Vec* tMM = aTrans.aV + cMM*iSegments;
+    const Vec* tIM = aTrans.aV + cIM*iSegments;
+    const Vec* tDM = aTrans.aV + cDM*iSegments;
+    const Vec* tMI = aTrans.aV + cMI*iSegments;
+    const Vec* tII = aTrans.aV + cII*iSegments;
+    const Vec* tMD = aTrans.aV + cMD*iSegments;
+    const Vec* tDD = aTrans.aV + cDD*iSegments;
+    const Vec* tME = aTrans.aV + cME*iSegments;
+    const Vec* eM = aMatchEmit.aV + iSymbol*iSegments;
+    const Vec* eI = aInsertEmit.aV + iSymbol*iSegments;
+    Vec* aM = r.aMatch.aV;
+    Vec* aI = r.aInsert.aV;
+    Vec* aD = r.aDelete.aV;
+    Vec vB = S::vset( iBegin );
+    Vec vNorm = S::vset( iNorm );
+    Vec vEnd = S::vset( S::zero() );
+    Vec vTotal = vEnd;
+    // the predecessors of the first vector are in the last one, one lane down
+    Vec mpv = S::vshift( aM[iSegments-1] );
+    Vec ipv = S::vshift( aI[iSegments-1] );
+    Vec dpv = S::vshift( aD[iSegments-1] );
+    // new match and delete states of the previous vector
+    Vec mnv = vEnd;
+    Vec dnv = vEnd;
+    for (int q=0; q<iSegments; q++) {
+      Vec sv = S::vtimes( vB, tBM[q] );
+      sv = S::vplus( sv, S::vtimes( mpv, tMM[q] ) );
+      sv = S::vplus( sv, S::vtimes( ipv, tIM[q] ) );
+      sv = S::vplus( sv, S::vtimes( dpv, tDM[q] ) );
+      sv = S::vtimes( S::vtimes( sv, eM[q] ), vNorm );
+      mpv = aM[q];
+      ipv = aI[q];
+      dpv = aD[q];
+      Vec iv = S::vplus( S::vtimes( mpv, tMI[q] ), S::vtimes( ipv, tII[q] ) );
+      iv = S::vtimes( S::vtimes( iv, eI[q] ), vNorm );
+      dnv = S::vplus( S::vtimes( mnv, tMD[q] ), S::vtimes( dnv, tDD[q] ) );
+      aM[q] = sv;
+      aI[q] = iv;
+      aD[q] = dnv;
+      mnv = sv;
+      vEnd = S::vplus( vEnd, S::vtimes( sv, tME[q] ) );
+      vTotal = S::vplus( vTotal, S::vplus( sv, iv ) );
+    }
+    iEnd = S::vreduce( vEnd );
+    iTotal = S::vreduce( vTotal );
+  }
+
+  // Completes the delete states of r, after matchInsert or clear, with the paths that cross
+  // from one lane into the next and with B at the same position, which must be scaled like r.
+  // Returns the total of the transitions from delete states into E
+  void deletes( StripedRow<S>& r, Score iBegin, Score& iEnd ) const {
+    const Vec* tMD = aTrans.aV + cMD*iSegments;
+    const Vec* tDD = aTrans.aV + cDD*iSegments;
+    const Vec* tBD = aTrans.aV + cBD*iSegments;
+    const Vec* tDE = aTrans.aV + cDE*iSegments;
+    Vec* aM = r.aMatch.aV;
+    Vec* aD = r.aDelete.aV;
+    Vec vB = S::vset( iBegin );
+    // lazy F: carry the contributions of the last vector into the first, one lane on, until
+    // they no longer change the row.  dcv is the path value that entered the previous vector.
+    // The first pass also adds the last match states and B
+    Vec dcv = S::vshift( aD[iSegments-1] );
+    Vec mcv = S::vtimes( S::vshift( aM[iSegments-1] ), tMD[0] );
+    for (int j=0; j<S::cLanes; j++) {
+      bool bChanged = false;
+      for (int q=0; q<iSegments; q++) {
+        dcv = S::vtimes( dcv, tDD[q] );
+        if (j == 0) {
+          if (q == 0) dcv = S::vplus( dcv, mcv );
+          if (q < iBeginDeletes) dcv = S::vplus( dcv, S::vtimes( vB, tBD[q] ) );
+        }
+        Vec dv = S::vplus( aD[q], dcv );
+        if (S::vany( dv, aD[q] )) {
+          bChanged = true;
+          aD[q] = dv;
+        } else if (S::cMax && (j > 0 || q >= iBeginDeletes)) {
+          // contributions further down are dominated by the ones already there
+          j = S::cLanes;
+          break;
+        }
+      }
+      if (!bChanged) break;
+      dcv = S::vshift( dcv );
+    }
+    Vec vEnd = S::vset( S::zero() );
+    if (bDeleteEnd) {
+      for (int q=0; q<iSegments; q++) {
+        vEnd = S::vplus( vEnd, S::vtimes( aD[q], tDE[q] ) );
+      }
+    }
+    iEnd = S::vreduce( vEnd );
+  }
+};
+
+#endif
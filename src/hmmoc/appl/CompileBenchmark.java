@@ -0,0 +1,501 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.appl;
+
+
+import java.io.*;
+import java.util.*;
+
+import hmmoc.code.Text;
+import hmmoc.util.Graph;
+import hmmoc.util.GraphBenchmark;
+import hmmoc.xml.Code;
+import hmmoc.xml.SnippetLibrary;
+
+
+//
+// Measures how compile time scales with model size, on synthetic models.
+//
+// Usage: java hmmoc.appl.CompileBenchmark [maxlength [filter]]
+//
+// The full pipeline (parsing, code generation and writing, as done by hmmoc) is timed on three
+// families of models, generated as XML text: profile HMMs (match, insert and delete states per
+// position, as made by examples/hmmer/parse-hmmer.py) of 10 up to maxlength positions; pair
+// profile HMMs, whose match states emit to two sequences; and fully connected higher-order models
+// like the cpgislands example.  Micro-benchmarks time Code.bind, Text.getFormattedString and
+// Graph.sortGraph on inputs of matching sizes.  Only benchmarks whose name contains filter are run.
+//
+// Each benchmark is warmed up and then run in batches of at least 0.2 s; the time per operation is
+// reported as the mean and standard deviation over the batches.  The exponent column estimates how
+// time grows with size since the previous size (1 is linear); larger values point at hot spots.
+//
+
+public class CompileBenchmark {
+
+    static int warmupBatches = 2;
+    static int measuredBatches = 5;
+    static long minBatchNanos = 200000000L;
+
+    static PrintStream out;              // results; System.out receives the compiler's messages
+    static SnippetLibrary snippets;
+    static File directory;               // directory for models and generated code
+
+
+    static abstract class Benchmark {
+
+        String name;
+        int size;
+
+        Benchmark( String name0, int size0 ) {
+            name = name0;
+            size = size0;
+        }
+
+        void setup() throws IOException {
+        }
+
+        abstract void run() throws IOException;
+    }
+
+
+    //
+    // Synthetic models
+    //
+
+    static void header( StringBuffer s, int outputs ) {
+
+        s.append( "<?xml version=\"1.0\"?>\n<hml>\n<alphabet id=\"dna\"> ACGT </alphabet>\n" );
+        for (int o=1; o<=outputs; o++) {
+            s.append( "<output id=\"seq" + o + "\"><alphabet idref=\"dna\"/>" );
+            s.append( "<identifier type=\"length\" value=\"iLen" + o + "\"/><identifier type=\"sequence\" value=\"iSeq" + o + "\"/>" );
+            s.append( "<code type=\"parameter\" value=\"char* iSeq" + o + "\"/><code type=\"parameter\" value=\"int iLen" + o + "\"/></output>\n" );
+        }
+    }
+
+
+    static void hmmHeader( StringBuffer s, String id, int outputs ) {
+
+        s.append( "<hmm id=\"" + id + "\">\n<description> Synthetic " + id + " model </description>\n<outputs>" );
+        for (int o=1; o<=outputs; o++) {
+            s.append( "<output idref=\"seq" + o + "\"/>" );
+        }
+        s.append( "</outputs>\n<clique id=\"block1\"><state id=\"start\"/></clique>\n" );
+    }
+
+
+    // Ends the hmm, and generates forward, backward and viterbi code for it
+    static void footer( StringBuffer s, String id, String file ) {
+
+        s.append( "<clique id=\"block3\"><state id=\"end\"/></clique>\n" );
+        s.append( "<graph><clique idref=\"block1\"/><clique idref=\"block2\"/><clique idref=\"block3\"/></graph>\n" );
+        s.append( "<emission id=\"empty\"><probability><code type=\"expression\"> 1.0 </code></probability></emission>\n" );
+        s.append( "</hmm>\n" );
+        s.append( "<forward outputTable=\"yes\" name=\"Forward\" id=\"fw\"><hmm idref=\"" + id + "\"/></forward>\n" );
+        s.append( "<backward outputTable=\"yes\" baumWelch=\"yes\" name=\"Backward\" id=\"bw\"><hmm idref=\"" + id + "\"/></backward>\n" );
+        s.append( "<viterbi name=\"Viterbi\" id=\"vit\"><hmm idref=\"" + id + "\"/></viterbi>\n" );
+        s.append( "<codeGeneration realtype=\"bfloat\" file=\"" + file + ".cc\" header=\"" + file + ".h\" language=\"C++\">\n" );
+        s.append( "<forward idref=\"fw\"/><backward idref=\"bw\"/><viterbi idref=\"vit\"/>\n</codeGeneration>\n</hml>\n" );
+    }
+
+
+    static void transition( StringBuffer s, String from, String to, int index, String emission ) {
+
+        s.append( "<transition from=\"" + from + "\" to=\"" + to + "\" probability=\"p" + index + "\"" );
+        if (emission != null) {
+            s.append( " emission=\"" + emission + "\"" );
+        }
+        s.append( "/>\n" );
+    }
+
+
+    static void probabilities( StringBuffer s, int transitions ) {
+
+        for (int i=0; i<transitions; i++) {
+            s.append( "<probability id=\"p" + i + "\"><code type=\"expression\"><code type=\"parameter\" value=\"double* iT\"/> iT[" + i + "] </code></probability>\n" );
+        }
+    }
+
+
+    // Profile HMM with given number of positions.  If pair is true, match states emit to two sequences,
+    // and delete states emit to the second sequence; otherwise, delete states are silent.
+    static String profileModel( int positions, boolean pair, String file ) {
+
+        StringBuffer s = new StringBuffer();
+        int outputs = pair ? 2 : 1;
+        header( s, outputs );
+        hmmHeader( s, "profile", outputs );
+
+        s.append( "<clique id=\"block2\">\n" );
+        for (int k=0; k<positions; k++) {
+            s.append( "<state id=\"M" + k + "\" emission=\"eM" + k + "\"/><state id=\"I" + k + "\" emission=\"eI" + k + "\"/>" );
+            s.append( pair ? "<state id=\"D" + k + "\" emission=\"eD" + k + "\"/>\n" : "<state id=\"D" + k + "\"/>\n" );
+        }
+        s.append( "</clique>\n" );
+
+        for (int k=0; k<positions; k++) {
+            s.append( "<emission id=\"eM" + k + "\"><output idref=\"seq1\"/>" + (pair ? "<output idref=\"seq2\"/>" : "") );
+            s.append( "<probability><code type=\"expression\"><identifier output=\"seq1\" value=\"iS1\"/>" );
+            if (pair) {
+                s.append( "<identifier output=\"seq2\" value=\"iS2\"/>" );
+            }
+            s.append( "<code type=\"parameter\" value=\"double* iE\"/> iE[" + (3*k) + "*16+(iS1&amp;3)" + (pair ? "*4+(iS2&amp;3)" : "") + "] </code></probability></emission>\n" );
+            s.append( "<emission id=\"eI" + k + "\"><output idref=\"seq1\"/><probability><code type=\"expression\"><identifier output=\"seq1\" value=\"iS1\"/>" );
+            s.append( " iE[" + (3*k+1) + "*16+(iS1&amp;3)] </code></probability></emission>\n" );
+            if (pair) {
+                s.append( "<emission id=\"eD" + k + "\"><output idref=\"seq2\"/><probability><code type=\"expression\"><identifier output=\"seq2\" value=\"iS2\"/>" );
+                s.append( " iE[" + (3*k+2) + "*16+(iS2&amp;3)] </code></probability></emission>\n" );
+            }
+        }
+
+        // transitions into silent states need an empty emission
+        String toD = pair ? null : "empty";
+        int n = 0;
+        s.append( "<transitions>\n" );
+        transition( s, "start", "M0", n++, null );
+        transition( s, "start", "D0", n++, toD );
+        for (int k=0; k<positions; k++) {
+            String nextM = (k+1 < positions) ? "M" + (k+1) : "end";
+            String nextD = (k+1 < positions) ? "D" + (k+1) : "end";
+            String toM = (k+1 < positions) ? null : "empty";
+            String toNextD = (k+1 < positions) ? toD : "empty";
+            transition( s, "M" + k, nextM, n++, toM );
+            transition( s, "M" + k, "I" + k, n++, null );
+            transition( s, "M" + k, nextD, n++, toNextD );
+            transition( s, "I" + k, "I" + k, n++, null );
+            transition( s, "I" + k, nextM, n++, toM );
+            transition( s, "D" + k, nextM, n++, toM );
+            if (k+1 < positions) {
+                transition( s, "D" + k, nextD, n++, toNextD );
+            }
+        }
+        s.append( "</transitions>\n" );
+        probabilities( s, n );
+        footer( s, "profile", file );
+        return s.toString();
+    }
+
+
+    static void orderEmission( StringBuffer s, String id, int k, int order ) {
+
+        s.append( "<emission id=\"" + id + "\"><output idref=\"seq1\"/><probability><code type=\"statement\">" );
+        s.append( "<identifier type=\"result\" value=\"iProb\"/>" );
+        StringBuffer index = new StringBuffer( String.valueOf( k ) );
+        for (int d=0; d<=order; d++) {
+            s.append( "<identifier output=\"seq1\" depth=\"" + d + "\" value=\"iS" + d + "\"/>" );
+            index.append( "*4+(iS" + d + "&amp;3)" );
+        }
+        s.append( "<code type=\"parameter\" value=\"double* iE\"/> iProb = iE[" + index + "]; </code></probability></emission>\n" );
+    }
+
+
+    // Fully connected model with given number of states, which emit depending on the previous symbols.
+    // The first symbols are emitted by a chain of states of increasing order.  (An emission can only
+    // depend on as many symbols as the order of the state the transition comes from.)
+    static String orderModel( int states, int order, String file ) {
+
+        StringBuffer s = new StringBuffer();
+        header( s, 1 );
+        hmmHeader( s, "order", 1 );
+
+        s.append( "<clique id=\"block2\">\n" );
+        for (int j=0; j<order; j++) {
+            s.append( "<state id=\"R" + j + "\" emission=\"r" + j + "\"><order output=\"seq1\" depth=\"" + (j+1) + "\"/></state>\n" );
+        }
+        for (int k=0; k<states; k++) {
+            s.append( "<state id=\"S" + k + "\" emission=\"e" + k + "\"><order output=\"seq1\" depth=\"" + order + "\"/></state>\n" );
+        }
+        s.append( "</clique>\n" );
+
+        for (int j=0; j<order; j++) {
+            orderEmission( s, "r" + j, states + j, j );
+        }
+        for (int k=0; k<states; k++) {
+            orderEmission( s, "e" + k, k, order );
+        }
+
+        int n = 0;
+        s.append( "<transitions>\n" );
+        transition( s, "start", "R0", n++, null );
+        for (int j=0; j+1<order; j++) {
+            transition( s, "R" + j, "R" + (j+1), n++, null );
+        }
+        for (int k=0; k<states; k++) {
+            transition( s, "R" + (order-1), "S" + k, n++, null );
+            for (int j=0; j<states; j++) {
+                transition( s, "S" + k, "S" + j, n++, null );
+            }
+            transition( s, "S" + k, "end", n++, "empty" );
+        }
+        s.append( "</transitions>\n" );
+        probabilities( s, n );
+        footer( s, "order", file );
+        return s.toString();
+    }
+
+
+    //
+    // Benchmarks
+    //
+
+    // Full pipeline on a model, written to a file
+    static Benchmark pipeline( String name, int size, final String model ) {
+
+        return new Benchmark( name, size ) {
+
+            String file;
+
+            void setup() throws IOException {
+                File f = new File( directory, name + size + ".xml" );
+                Writer w = new OutputStreamWriter( new FileOutputStream( f ), "UTF-8" );
+                w.write( model );
+                w.close();
+                file = f.getPath();
+            }
+
+            void run() {
+                hmmoc.compile( file, snippets );
+            }
+        };
+    }
+
+
+    // Binds the snippet listing all identifiers of an HMM with the given number of states
+    static Benchmark bind( int states ) {
+
+        return new Benchmark( "Code.bind", states ) {
+
+            Code code;
+            String[] args = new String[9];
+
+            void setup() {
+                code = (Code)snippets.instantiate().objects.get( "hmlHMMIdentifiers" );
+                StringBuffer ids = new StringBuffer();
+                for (int k=0; k<size; k++) {
+                    ids.append( (k==0 ? "" : ",") + "\"S" + k + "\"" );
+                }
+                args[0] = "bench";
+                for (int i=1; i<args.length; i++) {
+                    args[i] = ids.toString();
+                }
+            }
+
+            void run() {
+                code.bind( args[0], args[1], args[2], args[3], args[4], args[5], args[6], args[7], args[8] );
+            }
+        };
+    }
+
+
+    // Formats the code generated for a profile model as one text
+    static Benchmark format( int positions ) {
+
+        return new Benchmark( "Text.getFormattedString", positions ) {
+
+            Text text;
+
+            void setup() throws IOException {
+                String file = new File( directory, "format" + size ).getPath();
+                Benchmark compile = pipeline( "format", size, profileModel( size, false, file ) );
+                compile.setup();
+                compile.run();
+                Reader r = new InputStreamReader( new FileInputStream( file + ".cc" ), "UTF-8" );
+                StringBuffer s = new StringBuffer();
+                char[] buffer = new char[8192];
+                int n;
+                while ((n = r.read( buffer )) != -1) {
+                    s.append( buffer, 0, n );
+                }
+                r.close();
+                text = new Text( s.toString() );
+            }
+
+            void run() {
+                text.getFormattedString( 0 );
+            }
+        };
+    }
+
+
+    // Sorts the state graph of a profile model
+    static Benchmark sort( int positions ) {
+
+        return new Benchmark( "Graph.sortGraph", positions ) {
+
+            List graph;
+
+            void setup() {
+                graph = GraphBenchmark.profileGraph( size );
+            }
+
+            void run() {
+                Graph.sortGraph( graph );
+            }
+        };
+    }
+
+
+    //
+    // Measurement
+    //
+
+    static long time( Benchmark b, int ops ) throws IOException {
+
+        long t0 = System.nanoTime();
+        for (int i=0; i<ops; i++) {
+            b.run();
+        }
+        return System.nanoTime() - t0;
+    }
+
+
+    // Returns mean and standard deviation of time per operation, in ns
+    static double[] measure( Benchmark b ) throws IOException {
+
+        b.setup();
+        // warm up, and find number of operations per batch
+        int ops = 1;
+        long t = time( b, ops );
+        while (t < minBatchNanos) {
+            ops = (int)Math.min( 2L*ops, Math.max( ops+1L, (long)ops * minBatchNanos / Math.max( t, 1 ) ) );
+            t = time( b, ops );
+        }
+        for (int i=1; i<warmupBatches; i++) {
+            time( b, ops );
+        }
+        double sum = 0, sum2 = 0;
+        for (int i=0; i<measuredBatches; i++) {
+            double perOp = (double)time( b, ops ) / ops;
+            sum += perOp;
+            sum2 += perOp * perOp;
+        }
+        double mean = sum / measuredBatches;
+        double sd = Math.sqrt( Math.max( 0, sum2 / measuredBatches - mean * mean ) );
+        return new double[] { mean, sd, ops };
+    }
+
+
+    static String format( double x, int decimals ) {
+
+        double scale = Math.pow( 10, decimals );
+        String s = String.valueOf( Math.round( x * scale ) / scale );
+        return (x < 0 && s.charAt(0) != '-') ? "-" + s : s;
+    }
+
+
+    static void report( List benchmarks ) throws IOException {
+
+        out.println( "benchmark\tsize\tus/op\t+-\tops/batch\texponent" );
+        String previous = null;
+        double previousTime = 0;
+        int previousSize = 0;
+        for (int i=0; i<benchmarks.size(); i++) {
+            Benchmark b = (Benchmark)benchmarks.get(i);
+            double[] m = measure( b );
+            String exponent = "";
+            if (b.name.equals( previous )) {
+                exponent = format( Math.log( m[0] / previousTime ) / Math.log( (double)b.size / previousSize ), 2 );
+            }
+            out.println( b.name + "\t" + b.size + "\t" + format( m[0] / 1e3, 1 ) + "\t" + format( m[1] / 1e3, 1 ) + "\t" +
+                         (int)m[2] + "\t" + exponent );
+            previous = b.name;
+            previousTime = m[0];
+            previousSize = b.size;
+        }
+    }
+
+
+    static void delete( File f ) {
+
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            for (int i=0; i<files.length; i++) {
+                delete( files[i] );
+            }
+        }
+        f.delete();
+    }
+
+
+    public static void main( String[] args ) throws IOException {
+
+        int maxLength = 1000;
+        String filter = "";
+        if (args.length > 0) {
+            maxLength = Integer.parseInt( args[0] );
+        }
+        if (args.length > 1) {
+            filter = args[1];
+        }
+
+        out = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+                public void write( int b ) {
+                }
+                public void write( byte[] b, int off, int len ) {
+                }
+            } ) );
+
+        snippets = hmmoc.loadSnippets();
+        directory = File.createTempFile( "hmmoc-benchmark", "" );
+        directory.delete();
+        directory.mkdir();
+
+        try {
+
+            int[] lengths = new int[] { 10, 30, 100, 300, 1000, 3000, 5000 };
+            List benchmarks = new ArrayList();
+            for (int i=0; i<lengths.length && lengths[i] <= maxLength; i++) {
+                String file = new File( directory, "profile" + lengths[i] ).getPath();
+                benchmarks.add( pipeline( "profile", lengths[i], profileModel( lengths[i], false, file ) ) );
+            }
+            for (int i=0; i<lengths.length && lengths[i] <= maxLength; i++) {
+                // pair HMMs are a tenth of the length, as their code is larger
+                String file = new File( directory, "pair" + lengths[i]/10 ).getPath();
+                benchmarks.add( pipeline( "pair", lengths[i]/10, profileModel( lengths[i]/10, true, file ) ) );
+            }
+            for (int states=2; states<=Math.min( 32, maxLength ); states *= 2) {
+                String file = new File( directory, "order" + states ).getPath();
+                benchmarks.add( pipeline( "order", states, orderModel( states, 2, file ) ) );
+            }
+            for (int i=0; i<lengths.length && lengths[i] <= maxLength; i++) {
+                benchmarks.add( bind( 3 * lengths[i] + 2 ) );
+            }
+            for (int i=0; i<lengths.length && lengths[i] <= maxLength; i++) {
+                benchmarks.add( format( lengths[i] ) );
+            }
+            for (int i=0; i<lengths.length && lengths[i] <= maxLength; i++) {
+                benchmarks.add( sort( lengths[i] ) );
+            }
+
+            List selected = new ArrayList();
+            for (int i=0; i<benchmarks.size(); i++) {
+                Benchmark b = (Benchmark)benchmarks.get(i);
+                if (b.name.indexOf( filter ) != -1) {
+                    selected.add( b );
+                }
+            }
+            report( selected );
+
+        } finally {
+
+            delete( directory );
+
+        }
+    }
+}
@@ -18,40 +18,65 @@
 \*/
 package hmmoc.appl;
 
+import java.io.*;
 import java.net.URL;
-import java.util.TreeMap;
+import java.util.*;
 import hmmoc.xml.ParseDoc;
+import hmmoc.xml.SnippetLibrary;
+import hmmoc.xml.Context;
+import hmmoc.xml.FragmentCache;
+import hmmoc.util.Profile;
 
 
 
 public class hmmoc {
 
 
-    public static void main(String[] args) {
-  
-        if (args.length != 1) {
+    static void usage() {
 
-	    System.out.println("HMMoC version 1.3  --  a Hidden Markov Model compiler  --  Copyright (C) 2007 Gerton Lunter, Oxford university");
-            System.out.println("HMMoC is released under the GNU General Public License, see accompanying file for details.");
-	    System.out.println("This product includes software developed by the JDOM Project (http://www.jdom.org/)");
-            System.out.println("\nUsage:  hmmoc file.xml");
-	    return;
+	System.out.println("HMMoC version 1.3  --  a Hidden Markov Model compiler  --  Copyright (C) 2007 Gerton Lunter, Oxford university");
+	System.out.println("HMMoC is released under the GNU General Public License, see accompanying file for details.");
+	System.out.println("This product includes software developed by the JDOM Project (http://www.jdom.org/)");
+	System.out.println("\nUsage:  hmmoc file.xml");
+	System.out.println("        hmmoc file.xml|directory|@listfile ...   (batch mode)");
+	System.out.println("        hmmoc -                                  (server mode; reads file names from standard input)");
+
+    }
 
-        } 
 
-	ParseDoc initDocument;
-	String snippets = "snippets.xml";
-	URL initURL = hmmoc.class.getResource(snippets);
+    // Loads the library of code snippets.  Compilations work on a copy, so it only needs to be loaded once.
+    // The compiled library (made when building the jar) is used, unless it is out of date, or the user
+    // has supplied an own library through the hmmoc.snippets property.
+    static SnippetLibrary loadSnippets() throws IOException {
+
+	String userSnippets = System.getProperty("hmmoc.snippets");
+	if (userSnippets != null) {
+	    return SnippetLibrary.load( new File(userSnippets).toURL(), null );
+	}
+	URL initURL = hmmoc.class.getResource("snippets.xml");
 	if (initURL==null) {
 	    throw new Error("Urgh... Cannot load resource. Don't know what to do.");
 	}
-	initDocument = new ParseDoc(initURL, "snippets", new TreeMap() );
-	initDocument.parseCode();
+	return SnippetLibrary.load( initURL, hmmoc.class.getResource("snippets.bin") );
+
+    }
+
+
+    // Compiles one file.  Output files are written relative to the current directory, as usual.
+    static void compile(String file, SnippetLibrary snippets) {
+
+	// Start from a clean slate - nothing is carried over from previous compilations
+	Context.enter( new Context() );
+	Profile.setFile( file );
+
+	long[] profile = Profile.start();
+	ParseDoc initDocument = snippets.instantiate();
+	Profile.stop( profile, "snippets.instantiate", "", initDocument.objects.size() );
 
 	ParseDoc hmlDocument;
         try {
 
-	    hmlDocument = new ParseDoc( args[0], "hml", initDocument.idMap );
+	    hmlDocument = new ParseDoc( file, "hml", initDocument.idMap );
 
 	} catch (Error e) {
 
@@ -67,8 +92,160 @@ public class hmmoc {
 	// (Not before parseCode, since otherwise idref's are considered redefinitions, generating messages about shadowing)
 	hmlDocument.parseIdRef();
 	hmlDocument.parseCodeGeneration();
-	    
+
     }
-}
 
 
+    // Compiles one file in batch or server mode; reports, rather than throws, errors.  Returns true on success
+    static boolean compileReporting(String file, SnippetLibrary snippets) {
+
+	try {
+
+	    compile(file, snippets);
+	    return true;
+
+	} catch (Error e) {
+
+	    if (e.getMessage() != null) {
+		System.out.println( e.getMessage() );
+	    }
+
+	} catch (RuntimeException e) {
+
+	    System.out.println( e.toString() );
+
+	}
+	System.out.println("Error compiling " + file);
+	return false;
+
+    }
+
+
+    // Expands command line arguments into list of files to compile
+    static List getFiles(String[] args) throws IOException {
+
+	List files = new ArrayList();
+	for (int i=0; i<args.length; i++) {
+	    File f = new File(args[i]);
+	    if (args[i].startsWith("@")) {
+		// file with list of file names, one per line
+		BufferedReader in = new BufferedReader( new FileReader( args[i].substring(1) ) );
+		String line;
+		while ((line = in.readLine()) != null) {
+		    line = line.trim();
+		    if (line.length() > 0 && !line.startsWith("#")) {
+			files.add( line );
+		    }
+		}
+		in.close();
+	    } else if (f.isDirectory()) {
+		// all .xml files in directory
+		String[] names = f.list();
+		Arrays.sort( names );
+		for (int j=0; j<names.length; j++) {
+		    if (names[j].endsWith(".xml")) {
+			files.add( new File(f, names[j]).getPath() );
+		    }
+		}
+	    } else {
+		files.add( args[i] );
+	    }
+	}
+	return files;
+
+    }
+
+
+    // Server mode: reads names of files to compile from standard input, one per line, until end of input.
+    // After each file, reports "done <file>" or "failed <file>" on a line by itself.  Standard output
+    // carries only these replies; the compiler's messages go to standard error.
+    static void serve(SnippetLibrary snippets) throws IOException {
+
+	PrintStream replies = System.out;
+	System.setOut( System.err );
+	try {
+
+	    BufferedReader in = new BufferedReader( new InputStreamReader( System.in ) );
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0) {
+		    continue;
+		}
+		if (compileReporting(line, snippets)) {
+		    replies.println("done " + line);
+		} else {
+		    replies.println("failed " + line);
+		}
+		replies.flush();
+	    }
+
+	} finally {
+
+	    System.setOut( replies );
+
+	}
+
+    }
+
+
+    public static void main(String[] args) throws IOException {
+  
+        if (args.length == 0) {
+
+	    usage();
+	    return;
+
+        } 
+
+	// Record time and memory used by the phases of compilation
+	String report = System.getProperty("hmmoc.profile");
+	if (report != null) {
+	    Profile.open( report );
+	}
+
+	long[] profile = Profile.start();
+	SnippetLibrary snippets = loadSnippets();
+	Profile.stop( profile, "snippets.load", "", 0 );
+
+	// Keep generated code of algorithms in a cache directory, to recompile incrementally
+	String cache = System.getProperty("hmmoc.cache");
+	if (cache != null) {
+	    FragmentCache.open( cache, snippets.getChecksum() );
+	}
+
+	try {
+
+	    if (args.length == 1 && args[0].equals("-")) {
+
+		serve(snippets);
+
+	    } else if (args.length == 1 && !args[0].startsWith("@") && !new File(args[0]).isDirectory()) {
+
+		compile(args[0], snippets);
+
+	    } else {
+
+		List files = getFiles(args);
+		int failed = 0;
+		for (int i=0; i<files.size(); i++) {
+		    if (!compileReporting( (String)files.get(i), snippets )) {
+			failed += 1;
+		    }
+		}
+		if (failed > 0) {
+		    System.out.println(failed + " of " + files.size() + " files failed to compile");
+		    Profile.report();
+		    System.exit(1);
+		}
+
+	    }
+
+	} finally {
+
+	    Profile.report();
+
+	}
+	    
+    }
+}
@@ -19,9 +19,11 @@
 package hmmoc.code;
 
 
+import java.io.*;
 import java.util.*;
 
 import hmmoc.xml.Code;
+import hmmoc.util.Profile;
 
 
 public class Book {
@@ -32,6 +34,9 @@ public class Book {
     TreeMap scopeMap;
     int stackPointer;
     TreeMap objects;
+    Book origin;          // book this one was forked from, if any
+    Text[] originTexts;   // text elements of origin at time of forking, and their copies, last one first
+    Text[] forkTexts;
 
     public class Scope {
 
@@ -58,8 +63,152 @@ public class Book {
     }
 
 
+    Book() {
+    }
+
+
+    //
+    // Returns a copy of this book, in which code can be written independently of this book (e.g. by
+    // another thread).  The code written to the copy is moved into this book by join().
+    //
+    public Book fork() {
+
+        ArrayList texts = new ArrayList();
+        for (Text t = root; t != null; t = t.parent) {
+            texts.add(t);
+        }
+        Book b = new Book();
+        b.objects = objects;
+        b.origin = this;
+        b.originTexts = (Text[]) texts.toArray(new Text[texts.size()]);
+        b.forkTexts = new Text[texts.size()];
+        IdentityHashMap copies = new IdentityHashMap();
+        for (int i = texts.size() - 1; i >= 0; i--) {
+            Text t = b.originTexts[i];
+            Text c = new Text(t.getRawText());
+            c.depth = t.depth;
+            c.line = t.line;
+            c.scope = t.scope;
+            if (i + 1 < texts.size()) {
+                c.parent = b.forkTexts[i + 1];
+            }
+            b.forkTexts[i] = c;
+            copies.put(t, c);
+        }
+        b.root = b.forkTexts[0];
+        b.cursor = (Text) copies.get(cursor);
+        // copy scopes, keeping scopes on the stack identical to those in the map
+        IdentityHashMap scopes = new IdentityHashMap();
+        b.stack = new ArrayList(0);
+        for (int i = 0; i < stack.size(); i++) {
+            b.stack.add(copyScope((Scope) stack.get(i), copies, scopes));
+        }
+        b.scopeMap = new TreeMap();
+        Iterator i = scopeMap.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry) i.next();
+            b.scopeMap.put(entry.getKey(), copyScope((Scope) entry.getValue(), copies, scopes));
+        }
+        b.stackPointer = stackPointer;
+        return b;
+    }
+
+
+    Scope copyScope(Scope s, IdentityHashMap copies, IdentityHashMap scopes) {
+
+        Scope c = (Scope) scopes.get(s);
+        if (c == null) {
+            c = new Scope(s.pointers.length, s.label);
+            for (int i = 0; i < s.pointers.length; i++) {
+                c.pointers[i] = (Text) copies.get(s.pointers[i]);
+            }
+            scopes.put(s, c);
+        }
+        return c;
+    }
+
+
+    //
+    // Moves the code written to a forked book into this book.  Code is only ever inserted, so every
+    // text element of the fork that was not copied from this book was inserted before the next copied
+    // element; it is moved to before the corresponding element of this book, after any code inserted
+    // there since forking.  Forks are joined in order to get the same result as writing to this book.
+    //
+    public void join(Book b) {
+
+        if (b.origin != this) {
+            throw new Error("join: Book was not forked from this book.");
+        }
+        if (b.stackPointer != stackPointer) {
+            throw new Error("join: Forked book has unclosed scopes.");
+        }
+        Text t = b.root;
+        int k = 0;
+        while (t != null) {
+            Text last = t.parent;
+            Text first = null;
+            Text s = last;
+            while (s != null && (k + 1 == b.forkTexts.length || s != b.forkTexts[k + 1])) {
+                first = s;
+                s = s.parent;
+            }
+            if (first != null) {
+                first.parent = b.originTexts[k].parent;
+                b.originTexts[k].parent = last;
+            }
+            k += 1;
+            t = s;
+        }
+        if (k != b.forkTexts.length) {
+            throw new Error("join: Text elements of forked book out of order.");
+        }
+        b.origin = null;
+    }
+
+
+    //
+    // Returns the code written to a forked book: for every text element copied from the original
+    // book (last one first), the text elements inserted before it, in order.
+    //
+    public Text[][] getForkedText() {
+
+        Text[][] segments = new Text[forkTexts.length][];
+        ArrayList segment = new ArrayList();
+        Text t = root;
+        for (int k = 0; k < forkTexts.length; k++) {
+            segment.clear();
+            Text s = t.parent;
+            while (s != null && (k + 1 == forkTexts.length || s != forkTexts[k + 1])) {
+                segment.add(s);
+                s = s.parent;
+            }
+            Collections.reverse(segment);
+            segments[k] = (Text[]) segment.toArray(new Text[segment.size()]);
+            t = s;
+        }
+        return segments;
+    }
+
+
+    // Inserts code, as returned by getForkedText, into a forked book with the same number of text elements
+    public void addForkedText(Text[][] segments) {
+
+        if (segments.length != forkTexts.length) {
+            throw new Error("addForkedText: Book has different structure.");
+        }
+        for (int k = 0; k < segments.length; k++) {
+            for (int i = 0; i < segments[k].length; i++) {
+                forkTexts[k].insert(segments[k][i]);
+            }
+        }
+    }
+
+
     // Adds a line at the 'cursor'
     public Text add(Text t) {
+        if (stackPointer > 0) {
+            t.scope = ((Scope) stack.get(stackPointer - 1)).label;
+        }
         cursor.insert(t);
         return t;
     }
@@ -78,6 +227,7 @@ public class Book {
         for (int i = 0; i < num; i++) {
 
             Text open = ((Code) objects.get("hmlScopeOpen")).bind(label + i);
+            open.scope = label;
             where.insert(open);
             s.pointers[i] = open;
 
@@ -117,6 +267,7 @@ public class Book {
             throw new Error("Adding to " + num + "th clique in linear scope '" + label + "' which only has " + scope.pointers.length + " blocks.");
         }
 
+        text.scope = label;
         scope.pointers[num].insert(text);
     }
 
@@ -202,6 +353,7 @@ public class Book {
 
         Scope scope = (Scope) scopeMap.get(label);
 
+        init.scope = label;
         scope.pointers[0].insert(init);
 
     }
@@ -215,6 +367,7 @@ public class Book {
 
         Scope scope = (Scope) scopeMap.get(label);
 
+        exit.scope = label;
         scope.pointers[1].insert(exit);
 
     }
@@ -232,122 +385,111 @@ public class Book {
     }
 
 
-    String getWord(StringBuffer in, int iPos) {
+    // Writes content of book to out, selecting the part for the given define (_HEADER_ or _BODY_).
+    // Text elements are formatted and preprocessed one by one, without building the whole content.
+    public void writeContent(String define, Writer out) throws IOException {
 
-        while (iPos < in.length() && (in.charAt(iPos) == ' ' || in.charAt(iPos) == '\t')) {
-            iPos++;
+        long[] profile = Profile.start();
+        // create a list of text elements that can be traversed in the forward direction
+        ArrayList textList = new ArrayList();
+        Text t = root;
+        while (t != null) {
+            textList.add(t);
+            t = t.parent;
         }
-        int iEnd = iPos;
-        while ((iEnd < in.length()) && (in.charAt(iEnd)) != ' ' && (in.charAt(iEnd) != '\n') && (in.charAt(iEnd) != '\t'))
-        {
-            iEnd++;
+        // write content in forward order, doing a simple preprocessing - removing unnecessary class definitions
+        PreProcessor processed = new PreProcessor(out, define);
+        // when profiling, count the lines written per scope
+        LineCounter counter = new LineCounter(processed);
+        Writer target = (profile == null) ? (Writer) processed : counter;
+        TreeMap scopeLines = new TreeMap();
+        int depth = 0;
+        for (int i = textList.size() - 1; i >= 0; i--) {
+            t = (Text) textList.get(i);
+            int lines = counter.lines;
+            depth += t.format(depth, target);
+            if (counter.lines > lines) {
+                String label = (t.scope == null) ? "(none)" : t.scope;
+                Integer n = (Integer) scopeLines.get(label);
+                scopeLines.put(label, new Integer((n == null ? 0 : n.intValue()) + counter.lines - lines));
+            }
+        }
+        // check indentation
+        if (depth != 0) {
+            System.out.println("Warning - unbalanced curly braces in output.");
+        }
+        // finished
+        processed.finish();
+        if (profile != null) {
+            Iterator i = scopeLines.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry e = (Map.Entry) i.next();
+                Profile.countLines((String) e.getKey(), ((Integer) e.getValue()).intValue());
+            }
+            Profile.stop(profile, "Book.writeContent", define, counter.lines);
         }
-        return in.substring(iPos, iEnd);
     }
 
 
-    StringBuffer simplePreProcess(StringBuffer in, String mydefine) {
-
-        StringBuffer processed = new StringBuffer();
-        HashSet defines = new HashSet();
-        String endif = new String("#endif");
-        String ifndef = new String("#ifndef");
-        String define = new String("#define");
-        boolean preprocess = true;  // for debugging purposes only - output doesn't actually quite work
-
-        if (define != null) {
-            // Use this to choose the _HEADER_ or the _BODY_
-            defines.add(mydefine);
-        }
-
-        int iPos = 0;
-        int iIfLevel = 0;
-        int iWriteLevel = 0;   // if lower than iIfLevel, no writing
-        do {
-            String iWord = getWord(in, iPos);
-            int iEnd = iPos;
-            while (iEnd < in.length() && in.charAt(iEnd) != '\n')
-                iEnd++;
-            // skip over eoln
-            if (iEnd < in.length())
-                iEnd++;
-            if (iWord.length() > 1 && iWord.charAt(0) == '#') {
-                if (iWord.compareTo(endif) == 0 && preprocess) {
-                    iIfLevel--;
-                    if (iWriteLevel > iIfLevel) {
-                        iWriteLevel = iIfLevel;
-                    }
-                } else if (iWord.compareTo(define) == 0 && preprocess) {
-                    if (iWriteLevel == iIfLevel) {
-                        defines.add(getWord(in, iPos + 7));
-                    }
-                } else if (iWord.compareTo(ifndef) == 0 && preprocess) {
-                    if (defines.contains(getWord(in, iPos + 7))) {
-                        // no-go
-                        iIfLevel++;
-                    } else {
-                        // okay
-                        if (iWriteLevel == iIfLevel)
-                            iWriteLevel++;
-                        iIfLevel++;
-                    }
-                } else {
-                    // let all (other) preprocessor lines (#include etc.) through
-                    // Make them lowercase, so that we can use #DEFINE etc to bypass this preprocessor
-                    if (iWriteLevel == iIfLevel) {
-                        for (int i = 0; i < iWord.length(); i++) {
-                            processed.append(Character.toLowerCase(iWord.charAt(i)));
-                        }
-                        processed.append(in.substring(iPos + iWord.length(), iEnd));
-                    } else {
-                        //processed.append( "// "+in.substring(iPos,iEnd) );
-                    }
+    // Passes output on, counting the lines
+    static class LineCounter extends Writer {
+
+        Writer out;
+        int lines = 0;
+
+        LineCounter(Writer out0) {
+            out = out0;
+        }
+
+        public void write(char[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    lines += 1;
                 }
-            } else {
-                if (iWriteLevel == iIfLevel) {
-                    processed.append(in.substring(iPos, iEnd));
-                } else {
-                    //processed.append( "// "+in.substring(iPos,iEnd) );
+            }
+            out.write(b, off, len);
+        }
+
+        public void write(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) == '\n') {
+                    lines += 1;
                 }
             }
-            iPos = iEnd;
-        } while (iPos < in.length());
-        if (iIfLevel != 0) {
-            System.out.println("ERROR -- Improperly nested #if and #endif statements\n");
+            out.write(s);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
         }
 
-        return processed;
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+
+    // Returns number of text elements in book
+    public int size() {
+
+        int n = 0;
+        for (Text t = root; t != null; t = t.parent) {
+            n += 1;
+        }
+        return n;
     }
 
 
     // Returns entire content of book
     public StringBuffer getContent(String define) {
 
-        // create a list of text elements that can be traversed in the forward direction
-        LinkedList textList = new LinkedList();
-        Text t = root;
-        while (t != null) {
-            textList.addFirst(t);
-            t = t.parent;
-        }
-        // add content in forward order
-        StringBuffer textContent = new StringBuffer();
-        Iterator i = textList.iterator();
-        int depth = 0;
-        while (i.hasNext()) {
-            t = (Text) i.next();
-            textContent.append(t.getFormattedString(depth));
-            depth += t.deltaDepth();
+        StringWriter textContent = new StringWriter();
+        try {
+            writeContent(define, textContent);
+        } catch (IOException e) {
+            throw new Error("Book: unexpected I/O error", e);
         }
-        // check indentation
-        if (depth != 0) {
-            System.out.println("Warning - unbalanced curly braces in output.");
-        }
-        // do a simple preprocessing - removing unnecessary class definitions
-        textContent = simplePreProcess(textContent, define);
-        // finished
-        return textContent;
+        return textContent.getBuffer();
     }
 
 }
-	
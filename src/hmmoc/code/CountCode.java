@@ -23,6 +23,7 @@ package hmmoc.code;
 import hmmoc.xml.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -40,6 +41,8 @@ public class CountCode extends Generator {
     SymbolCode symbolCode;
     boolean countEmissions;
     boolean countTransitions;
+    HashMap offsets = null;          // position of each counter array in a flat array of all counters, by type and signature
+    int numCounts;                   // size of this flat array
 
 
     public CountCode( HMM himamo, Book book, SymbolCode symbolCode0, String decl0, String classdef0, String hmmid0, boolean countEmissions0, boolean countTransitions0 ) {
@@ -55,6 +58,63 @@ public class CountCode extends Generator {
     }
 
 
+    // Lays out the counter arrays one after the other, in the order in which the class declares them.  A
+    // forward Baum-Welch recursion (memory="linear") keeps its counts in such flat arrays
+    void layout() {
+
+	if (offsets != null)
+	    return;
+	offsets = new HashMap();
+	numCounts = 0;
+	if (countTransitions) {
+	    Iterator i = hmm.transSignatures.keySet().iterator();
+	    while (i.hasNext()) {
+		String sign = (String)i.next();
+		List transitions = (List)hmm.transSignatures.get(sign);
+		Transition tr = (Transition)hmm.objects.get(transitions.get(0));
+		State st = (State)hmm.objects.get(tr.from);
+		offsets.put( transLabel + sign, new Integer( numCounts ) );
+		numCounts += transitions.size() * numSymbolCombinations( st.order, null );
+	    }
+	}
+	if (countEmissions) {
+	    Iterator i = hmm.emitSignatures.keySet().iterator();
+	    while (i.hasNext()) {
+		String sign = (String)i.next();
+		List emissions = (List)hmm.emitSignatures.get(sign);
+		Emission em = (Emission)hmm.objects.get(emissions.get(0));
+		offsets.put( emitLabel + sign, new Integer( numCounts ) );
+		numCounts += emissions.size() * numSymbolCombinations( em.order, em.outputVec.v );
+	    }
+	}
+
+    }
+
+
+    // Number of combinations of the symbols that select a counter
+    int numSymbolCombinations( int[] order, int[] emitvec ) {
+
+	int n = 1;
+	for (int j=0; j<hmm.numOutputs; j++) {
+	    Output o = (Output)hmm.objects.get( hmm.outputs[j] );
+	    for (int k=0; k<order[j] + (emitvec == null ? 0 : emitvec[j]); k++) {
+		n *= o.alphabet.getSize();
+	    }
+	}
+	return n;
+
+    }
+
+
+    // Total number of counters
+    public int getNumCounts() {
+
+	layout();
+	return numCounts;
+
+    }
+
+
     void declare() {
 
 	if (declared)
@@ -76,10 +136,13 @@ public class CountCode extends Generator {
 	*/
 
 	book.addToLinearScope(classdefinition,0,getCode("hmlCountClassA").bind(hmmid));
-	book.openLinearScopeAtInit("defineclassfunc",5,"subroutines");
+	book.openLinearScopeAtInit("defineclassfunc",9,"subroutines");
 	book.addToLinearScope("defineclassfunc",0,getCode("hmlCountClassBA").bind(hmmid));
 	book.addToLinearScope("defineclassfunc",2,getCode("hmlCountClassCA").bind(hmmid));
-	book.addToLinearScope("defineclassfunc",4,getCode("hmlCountClassCC").bind(hmmid));
+	book.addToLinearScope("defineclassfunc",4,getCode("hmlCountClassFA").bind(hmmid));
+	book.addToLinearScope("defineclassfunc",6,getCode("hmlCountClassGA").bind(hmmid));
+	book.addToLinearScope("defineclassfunc",8,getCode("hmlCountClassCC").bind(hmmid));
+	layout();
 	
 	// Make code for alphabet symbols
 	//
@@ -125,6 +188,9 @@ public class CountCode extends Generator {
             }
             book.addToLinearScope("defineclassfunc", 0, getCode("hmlCountClassB").bind(type, sign, dim, symloopcode, symbolsB, idents, hmmid));
             book.addToLinearScope("defineclassfunc", 3, getCode("hmlCountClassCB").bind(type, sign, dim, symloopcode, symbolsB, idents, hmmid));
+            book.addToLinearScope("defineclassfunc", 5, getCode("hmlCountClassFB").bind(type, sign, dim, symloopcode, symbolsB));
+            book.addToLinearScope("defineclassfunc", 7, getCode("hmlCountClassGB").bind(type, sign,
+                    String.valueOf(transitions.size() * numSymbolCombinations(order, null)), offsets.get(type + sign).toString()));
             book.addToLinearScope(classdefinition, 2, getCode("hmlCountClassC").bind(type, sign, dim, symbolsC));
             book.addToLinearScope("defineclassfunc", 1, getCode("hmlCountClassE").bind(type, sign, dim, hmmid));
         }
@@ -160,6 +226,9 @@ public class CountCode extends Generator {
 	    }
 	    book.addToLinearScope("defineclassfunc",0,getCode("hmlCountClassB").bind(type,sign,dim,symloopcode,symbolsB,idents,hmmid));
 	    book.addToLinearScope("defineclassfunc",3,getCode("hmlCountClassCB").bind(type,sign,dim,symloopcode,symbolsB,idents,hmmid));
+	    book.addToLinearScope("defineclassfunc",5,getCode("hmlCountClassFB").bind(type,sign,dim,symloopcode,symbolsB));
+	    book.addToLinearScope("defineclassfunc",7,getCode("hmlCountClassGB").bind(type,sign,
+		    String.valueOf(emissions.size() * numSymbolCombinations(order, emitvec)), offsets.get(type + sign).toString()));
 	    book.addToLinearScope(classdefinition,2,getCode("hmlCountClassC").bind(type,sign,dim,symbolsC));
 	    book.addToLinearScope("defineclassfunc",1,getCode("hmlCountClassE").bind(type,sign,dim,hmmid));
 	}
@@ -169,7 +238,8 @@ public class CountCode extends Generator {
 	book.addToLinearScope("defineclassfunc",1,getCode("hmlCountClassEZ").bind(hmmid));
 	book.addToLinearScope(classdefinition,3,getCode("hmlCountClassD").bind(hmmid,
 									       String.valueOf(hmm.transitions.length),
-									       String.valueOf(hmm.emissions.length)));
+									       String.valueOf(hmm.emissions.length),
+									       String.valueOf(numCounts)));
 	Code c = getCode("hmlInitCount");
 	book.addInitText(declare, c.bind(hmmid) );
 
@@ -177,15 +247,10 @@ public class CountCode extends Generator {
 
 
 
-    // Expression referring to transition counts
-    public String getText( Transition t, boolean forward ) {
+    // Indices of the symbols that select the counter of a transition
+    List getSymbols( Transition t, boolean forward ) {
 
-	declare();
-	String sign = t.getSignature(hmm);
-	String idx = String.valueOf(t.sigIdx);
-
-	// Next, build string indexing the counter referring to the current state configuration
-	String symbols = "";
+	List symbols = new ArrayList();
 	Emission emission = (Emission)objects.get( t.emission );
 	State from = (State)objects.get( t.from);
 
@@ -205,27 +270,18 @@ public class CountCode extends Generator {
 		// Get symbol at this position
 		String symbol = symbolCode.getText( outputIdx, depth-offset );
 		// Translate symbol into index
-		String index = symbolCode.getAlphabetCode(outputIdx).getIndex( symbol );
-		// Add index to array specifier
-		symbols += "[" + index + "]";
+		symbols.add( symbolCode.getAlphabetCode(outputIdx).getIndex( symbol ) );
 	    }
 	}
-
-	return getCode("hmlRefCount").bind(transLabel,sign, symbols, idx).toString();
+	return symbols;
 
     }
 
 
+    // Indices of the symbols that select the counter of an emission
+    List getSymbols( Emission e, boolean forward ) {
 
-    // Expression referring to emission counts
-    public String getText( Emission e, boolean forward ) {
-
-	declare();
-	String sign = e.getSignature(hmm);
-	String idx = String.valueOf(e.sigIdx);
-
-	// Next, build string indexing the counter referring to the current state configuration
-	String symbols = "";
+	List symbols = new ArrayList();
 
 	for (int outputIdx=0; outputIdx<e.outputVec.v.length; outputIdx++) {
 	    
@@ -242,13 +298,87 @@ public class CountCode extends Generator {
 		// Get symbol at this position
 		String symbol = symbolCode.getText( outputIdx, depth-offset );
 		// Translate symbol into index
-		String index = symbolCode.getAlphabetCode(outputIdx).getIndex( symbol );
-		// Add index to array specifier
-		symbols += "[" + index + "]";
+		symbols.add( symbolCode.getAlphabetCode(outputIdx).getIndex( symbol ) );
+	    }
+	}
+	return symbols;
+
+    }
+
+
+    // Array specifier, e.g. [i][j], selecting the counters of the symbols
+    static String arraySpecifier( List symbols ) {
+
+	String s = "";
+	for (int i=0; i<symbols.size(); i++) {
+	    s += "[" + symbols.get(i) + "]";
+	}
+	return s;
+
+    }
+
+
+    // Expression for the position of a counter in the flat array of all counters (see layout); the counter
+    // arrays are indexed by the symbols, and then by the transitions or emissions of the signature
+    String getIndex( String type, String sign, List symbols, int outputs[], int dim, int idx ) {
+
+	declare();
+	String index = "0";
+	int k = 0;
+	for (int j=0; j<hmm.numOutputs; j++) {
+	    Output o = (Output)hmm.objects.get( hmm.outputs[j] );
+	    for (int n=0; n<outputs[j]; n++) {
+		index = "(" + index + ")*" + o.alphabet.getSize() + "+(" + symbols.get(k++) + ")";
 	    }
 	}
+	return offsets.get( type + sign ) + "+(" + index + ")*" + dim + "+" + idx;
+
+    }
+
+
+    // Expression referring to transition counts
+    public String getText( Transition t, boolean forward ) {
+
+	declare();
+	String sign = t.getSignature(hmm);
+	String idx = String.valueOf(t.sigIdx);
+	return getCode("hmlRefCount").bind(transLabel,sign, arraySpecifier( getSymbols( t, forward ) ), idx).toString();
+
+    }
+
+
+    // Position of the counter of a transition in the flat array of all counters
+    public String getIndex( Transition t, boolean forward ) {
+
+	String sign = t.getSignature(hmm);
+	State from = (State)objects.get( t.from );
+	return getIndex( transLabel, sign, getSymbols( t, forward ), from.order,
+			 ((List)hmm.transSignatures.get(sign)).size(), t.sigIdx );
+
+    }
+
+
+    // Expression referring to emission counts
+    public String getText( Emission e, boolean forward ) {
 
-	return getCode("hmlRefCount").bind(emitLabel,sign, symbols, idx).toString();
+	declare();
+	String sign = e.getSignature(hmm);
+	String idx = String.valueOf(e.sigIdx);
+	return getCode("hmlRefCount").bind(emitLabel,sign, arraySpecifier( getSymbols( e, forward ) ), idx).toString();
+
+    }
+
+
+    // Position of the counter of an emission in the flat array of all counters
+    public String getIndex( Emission e, boolean forward ) {
+
+	String sign = e.getSignature(hmm);
+	int[] outputs = new int[ hmm.numOutputs ];
+	for (int j=0; j<hmm.numOutputs; j++) {
+	    outputs[j] = e.order[j] + e.outputVec.v[j];
+	}
+	return getIndex( emitLabel, sign, getSymbols( e, forward ), outputs,
+			 ((List)hmm.emitSignatures.get(sign)).size(), e.sigIdx );
 
     }
 
@@ -40,6 +40,8 @@ public class EmissionCode extends Generator {
     Emission[] emArr;
     TemporariesCode temporariesCode;
     boolean cacheValues;
+    String scale = null;       // factor for emissions along the slowest output (realtype 'scaled')
+    boolean scaling;           // true if the current emission vector is scaled
 
     public EmissionCode( HMM himamo, Book book, TreeMap objs, boolean forward0, boolean backTrace0, String declare0, boolean cachevalues ) {
 
@@ -128,10 +130,20 @@ public class EmissionCode extends Generator {
     
     
     
+    // Multiplies the emissions that move along the slowest output by 'factor', which scales the
+    // values read from the previous column of the DP table to those of the current one
+    public void setScale( String factor ) {
+
+	scale = factor;
+
+    }
+
+
     public void init( IntVec emVec, Clique toClique, SymbolCode symbolCode, TemporariesCode tempCode, 
 	              PositionCode positionCode, String init ) {
 	
 	temporariesCode = tempCode;
+	scaling = scale != null && emVec.v[ emVec.v.length-1 ] != 0;
 	
 	emArr = toClique.getEmissions(forward,emVec,objects);
 	if (emArr.length == 0)
@@ -154,7 +166,7 @@ public class EmissionCode extends Generator {
 		// Now write code.  First emit code that actually calculates the probability
 		book.addInitText(init, p.getInitText( objects, temporariesCode ));
 		// Then bind reference to result to emission initialization code and emit resulting code
-		book.addInitText( init, c.bind( String.valueOf(i), p.getResult( temporariesCode ) ) );
+		book.addInitText( init, c.bind( String.valueOf(i), scaled( p.getResult( temporariesCode ) ) ) );
 	    }
         }
 	
@@ -176,7 +188,7 @@ public class EmissionCode extends Generator {
 	    
 		    bindProbability( p, symbolCode, positionCode, em );
 		    book.addInitText( init, p.getInitText( objects, temporariesCode ));
-		    return p.getResult( temporariesCode );
+		    return scaled( p.getResult( temporariesCode ) );
 		    
 		} else {
 
@@ -193,6 +205,13 @@ public class EmissionCode extends Generator {
 
 
 
+    String scaled( String emission ) {
+
+	return scaling ? "(" + emission + ")*" + scale : emission;
+
+    }
+
+
     public void exit() {
 
         Code c;
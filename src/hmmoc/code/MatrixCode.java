@@ -22,6 +22,7 @@ package hmmoc.code;
 
 
 import hmmoc.xml.Code;
+import hmmoc.xml.Context;
 import hmmoc.xml.HMM;
 
 
@@ -29,7 +30,6 @@ import hmmoc.xml.HMM;
 public class MatrixCode extends Generator {
 
     static final String matrixId = "matrix";
-    static int uniqueId = 0;
 
     String matrixName;
     String matrixInvName;
@@ -45,11 +45,10 @@ public class MatrixCode extends Generator {
 
 	super (himamo, book, himamo.objects);
 
-	matrixName = matrixId + uniqueId;
+	// Numbered per context, i.e. per generated algorithm
+	matrixName = matrixId + Context.get().nextMatrixId();
 	matrixInvName = matrixName + "inv";
 
-	uniqueId += 1;
-
     }
 
 
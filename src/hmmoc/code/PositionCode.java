@@ -45,6 +45,11 @@ public class PositionCode extends Generator {
 	Banding linkedbanding = null;
 	Text positioned = null;     // used to keep track of initialization of previous-column variable, 
 	                            // used for clearing folded memory; see StateCode.
+	String blockFirst = null;   // if not null, restricts the slowest variable of an outer loop to
+	String blockLast = null;    //  [blockFirst,blockLast], to recompute a block of a checkpointed table
+	String prevSlowCoord = null; // if not null, value of the previous slow coordinate when entering the block
+	Text columnStart = null;    // if not null, statements at the start and end of every iteration of the
+	Text columnEnd = null;      //  loop over the slowest variable, outside the loops over the others
 	
 	
 	public PositionCode( HMM himamo, Book book, TreeMap objs ) {
@@ -89,16 +94,60 @@ public class PositionCode extends Generator {
 		
 	}
 	
+	
+	// Restricts the loop over the slowest variable to a block; call before init
+	public void setBlock( String first, String last ) {
+
+		blockFirst = first;
+		blockLast = last;
+
+	}
+
+
+	// Adds statements that run at the start and at the end of every column, i.e. every iteration of the
+	// loop over the slowest variable (either may be null); call before init
+	public void setColumnCode( Text start, Text end ) {
+
+		columnStart = start;
+		columnEnd = end;
+
+	}
+
+
+	// As above, for a block that continues a folded table: prev is the slow coordinate of the column
+	// preceding the block, so that the column of the first position is cleared before use
+	public void setBlock( String first, String last, String prev ) {
+
+		setBlock( first, last );
+		prevSlowCoord = prev;
+
+	}
+	
 		
 	
-	Text getGenLoopText(String idLoop, String idSingle, String idInner) {
+	Text getGenLoopText(String idLoop, String idSingle, String idInner, boolean closing) {
+		
+		Text t = new Text("");
+		// HMM has already ordered the outputs from fastest (0, shortest, inner loop) to slowest (longest, outer loop)
+		for (int i=hmm.numOutputs-1; i>=0; --i) {
+			// (the braces are anonymous, so the last one closes the loop over the slowest variable)
+			if (closing && i == 0 && columnEnd != null)
+				t.append( columnEnd );
+			t.append( getLoopText( i, idLoop, idSingle, idInner ) );
+			if (!closing && i == hmm.numOutputs-1 && columnStart != null)
+				t.append( columnStart );
+		}
+		return t;
+	}
+	
+	
+	Text getLoopText(int i, String idLoop, String idSingle, String idInner) {
 		
 		Text t = new Text("");
 		IntVec start = range.getStart();
 		IntVec end = range.getEnd();
 		Code c;
-		// HMM has already ordered the outputs from fastest (0, shortest, inner loop) to slowest (longest, outer loop)
-		for (int i=hmm.numOutputs-1; i>=0; --i) {
+		{
 			Output o = (Output)objects.get(hmm.outputs[i]);
 			String startString = "";
 			String endString = "";
@@ -114,6 +163,17 @@ public class PositionCode extends Generator {
 				startString = o.lenId + "+";
 			if (!range.relStartTo[i])
 				endString = o.lenId + "+";
+			if (blockFirst != null && outerPosition == null && i==hmm.numOutputs-1) {
+				// Loop over the part of the range that lies in the block (possibly none)
+				String s = startString + Integer.toString(start.v[i]);
+				String e = endString + Integer.toString(end.v[i] + 1);
+				String l = blockLast + "+1";
+				c = getCode(idLoop);
+				t.append( c.bind( o.getPosId(),
+						  "(" + s + ">" + blockFirst + " ? " + s + " : " + blockFirst + ")",
+						  "(" + e + "<" + l + " ? " + e + " : " + l + ")" ) );
+				return t;
+			}
 			// See if this position corresponds to a linked loop
 			if (outerPosition != null && i==hmm.numOutputs-1) {
 				// add inner loop code
@@ -188,9 +248,9 @@ public class PositionCode extends Generator {
 		
 		if (banding==null) {
 			if (forward)
-				book.addExitText(position, getGenLoopText("hmlLoopEnd1","hmlSingleEnd1","hmlInnerLoopEnd"));
+				book.addExitText(position, getGenLoopText("hmlLoopEnd1","hmlSingleEnd1","hmlInnerLoopEnd",true));
 			else
-				book.addExitText(position, getGenLoopText("hmlLoopEnd1Backward","hmlSingleEnd1Backward","hmlInnerLoopEnd"));
+				book.addExitText(position, getGenLoopText("hmlLoopEnd1Backward","hmlSingleEnd1Backward","hmlInnerLoopEnd",true));
 		}
 		
 	}
@@ -200,7 +260,12 @@ public class PositionCode extends Generator {
 
 	    // add code to track slowest variable - but only for the outer position code
 		if (outerPosition == null) {
-			Text t = getCode( "hmlResetSlowCoord" ).getText();
+			Text t;
+			if (prevSlowCoord != null) {
+				t = getCode( "hmlResetSlowCoordTo" ).bind( prevSlowCoord );
+			} else {
+				t = getCode( "hmlResetSlowCoord" ).getText();
+			}
 			book.addInitText( position, t );
 		}
 
@@ -208,9 +273,9 @@ public class PositionCode extends Generator {
 		
 		if (banding==null) {
 			if (forward)
-				book.addInitText( position, getGenLoopText("hmlLoopStart1","hmlSingleStart1",linkedBanding));
+				book.addInitText( position, getGenLoopText("hmlLoopStart1","hmlSingleStart1",linkedBanding,false));
 			else
-				book.addInitText( position, getGenLoopText("hmlLoopStart1Backward","hmlSingleStart1Backward",linkedBanding));
+				book.addInitText( position, getGenLoopText("hmlLoopStart1Backward","hmlSingleStart1Backward",linkedBanding,false));
 		} else {
 			emitBandingLoopText(book, position, clique, range);
 		}
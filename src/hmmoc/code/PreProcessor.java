@@ -0,0 +1,148 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.code;
+
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Simple preprocessor, used to select the _HEADER_ or _BODY_ part of a book, and to remove
+// unnecessary class definitions.  Understands #ifndef, #define and #endif; all other
+// preprocessor lines are passed on, with their directive converted to lowercase (so that
+// #DEFINE etc. can be used to bypass this preprocessor).
+//
+// Text is processed line by line as it is written, and passed on to the underlying writer.
+//
+
+class PreProcessor extends Writer {
+
+    static final String endif = "#endif";
+    static final String ifndef = "#ifndef";
+    static final String define = "#define";
+
+    Writer out;
+    StringBuffer line = new StringBuffer();
+    HashSet defines = new HashSet();
+    int ifLevel = 0;
+    int writeLevel = 0;   // if lower than ifLevel, no writing
+
+
+    PreProcessor( Writer out0, String mydefine ) {
+
+        out = out0;
+        // Use this to choose the _HEADER_ or the _BODY_
+        defines.add( mydefine );
+    }
+
+
+    public void write( char[] cbuf, int off, int len ) throws IOException {
+
+        for (int i=off; i<off+len; i++) {
+            line.append( cbuf[i] );
+            if (cbuf[i] == '\n') {
+                processLine();
+            }
+        }
+    }
+
+
+    // Returns first word of line, starting from position pos
+    String getWord( int pos ) {
+
+        while (pos < line.length() && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t')) {
+            pos++;
+        }
+        int end = pos;
+        while ((end < line.length()) && (line.charAt(end)) != ' ' && (line.charAt(end) != '\n') && (line.charAt(end) != '\t'))
+        {
+            end++;
+        }
+        return line.substring(pos, end);
+    }
+
+
+    void processLine() throws IOException {
+
+        String word = getWord(0);
+        if (word.length() > 1 && word.charAt(0) == '#') {
+            if (word.equals(endif)) {
+                ifLevel--;
+                if (writeLevel > ifLevel) {
+                    writeLevel = ifLevel;
+                }
+            } else if (word.equals(define)) {
+                if (writeLevel == ifLevel) {
+                    defines.add(getWord(7));
+                }
+            } else if (word.equals(ifndef)) {
+                if (defines.contains(getWord(7))) {
+                    // no-go
+                    ifLevel++;
+                } else {
+                    // okay
+                    if (writeLevel == ifLevel)
+                        writeLevel++;
+                    ifLevel++;
+                }
+            } else {
+                // let all (other) preprocessor lines (#include etc.) through
+                if (writeLevel == ifLevel) {
+                    for (int i = 0; i < word.length(); i++) {
+                        out.write(Character.toLowerCase(word.charAt(i)));
+                    }
+                    out.write(line.substring(word.length()));
+                }
+            }
+        } else {
+            if (writeLevel == ifLevel) {
+                out.write(line.toString());
+            }
+        }
+        line.setLength(0);
+    }
+
+
+    // Processes any unterminated last line, and checks nesting.  Does not close the underlying writer.
+    void finish() throws IOException {
+
+        if (line.length() != 0) {
+            processLine();
+        }
+        if (ifLevel != 0) {
+            System.out.println("ERROR -- Improperly nested #if and #endif statements\n");
+        }
+        out.flush();
+    }
+
+
+    public void flush() throws IOException {
+
+        out.flush();
+    }
+
+
+    public void close() throws IOException {
+
+        finish();
+        out.close();
+    }
+
+}
@@ -126,6 +126,21 @@ public class RangeCode extends Generator {
 		return relStartFrom[pos] == relStartTo[pos];
 
     }
+
+
+    // True if the range along output pos starts (or ends) at an offset from the end of the sequence
+    public boolean startsAtEnd( int pos ) {
+
+		return !relStartFrom[pos];
+
+    }
+
+
+    public boolean endsAtEnd( int pos ) {
+
+		return !relStartTo[pos];
+
+    }
 	
 	
 	public boolean hasSameLoopVariables( RangeCode r ) {
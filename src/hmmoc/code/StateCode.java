@@ -24,6 +24,7 @@ import hmmoc.util.IntVec;
 import hmmoc.xml.*;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
 
 
@@ -54,6 +55,9 @@ public class StateCode extends Generator {
     Text stateVectored;
     Text intermediated;
     Text cleared;
+    Text countDeclared;
+    Text countInited;
+    Text countVectored;
     String constMode;
     String twocolMode;
     StateCode toState;
@@ -62,6 +66,9 @@ public class StateCode extends Generator {
     boolean forward;
     boolean twocolumns;
     boolean fold;
+    boolean checkpoint;            // table class keeps checkpoints of looping cliques (memory="checkpoint")
+    boolean traceback;             // table holds Viterbi traceback pointers rather than probabilities
+    boolean ring;                  // folded table keeps a ring of columns, for fixed-lag smoothing
     boolean noinit;
     String secondary;
     Code dptable;
@@ -69,6 +76,14 @@ public class StateCode extends Generator {
 	
     public StateCode( HMM himamo, Book book, TreeMap objs, Clique block0, String declare0, boolean forward0, 
 		      boolean fold0, boolean twocolumns0, boolean noinit0 ) {
+
+		this( himamo, book, objs, block0, declare0, forward0, fold0, twocolumns0, noinit0, false );
+
+	}
+
+
+    public StateCode( HMM himamo, Book book, TreeMap objs, Clique block0, String declare0, boolean forward0, 
+		      boolean fold0, boolean twocolumns0, boolean noinit0, boolean checkpoint0 ) {
 		
 		super (himamo, book, objs);
 		clique = block0;
@@ -77,10 +92,13 @@ public class StateCode extends Generator {
 		twocolumns = twocolumns0;
                 fold = fold0;
 		noinit = noinit0;
+		checkpoint = checkpoint0;
 		declared = null;
 		intermediated = null;
 		dptable = block0.dptable;
-		if (twocolumns) {
+		if (checkpoint) {
+		    twocolMode = "Checkpoint";
+		} else if (twocolumns) {
 		    twocolMode = "Folded";
 		} else {
 		    twocolMode = "";
@@ -89,6 +107,41 @@ public class StateCode extends Generator {
 	}
 	
 	
+	// Makes this code access a table of Viterbi traceback pointers (traceback="pointers"), instead of
+	// probabilities.  The table is never folded, and is not initialized
+	public void setTraceback() {
+
+		traceback = true;
+		twocolMode = "Traceback";
+		fold = twocolumns = false;
+		noinit = true;
+
+	}
+
+
+	// Pointer access, used to record the transitions taken out of the states that are being updated
+	public void initTraceback( PositionCode pos0, String define0, String definemember0, String init0, String stateVector0 ) {
+
+		initTo( pos0, null, define0, definemember0, init0, stateVector0, null, null );
+		stateMode = "Pointer";
+		secondary = "Traceback";
+
+	}
+
+
+	// Type of the traceback pointers; they hold transition numbers, and the largest value marks a pointer
+	// that was not written
+	String getPointerType() {
+
+		if (hmm.transitions.length < 256)
+			return "unsigned char";
+		if (hmm.transitions.length < 65536)
+			return "unsigned short";
+		throw new Error("HMM '"+hmm.id+"' has too many transitions for traceback pointers");
+
+	}
+	
+	
 	// First-time init; used to declare and access states that are being updated
 	// If define==null, signal not to create class definition, or create/initialize DP table......
 	public void initTo( PositionCode pos0, TemporariesCode temp0, String define0, String definemember0, String init0, String stateVector0, String positionScope0, String clearTableScope0 ) {
@@ -174,6 +227,27 @@ public class StateCode extends Generator {
 	
 	
 	
+	// Makes the folded tables keep a ring of columns rather than two (lag="...")
+	public void setRing() {
+
+		ring = true;
+		twocolMode = "Ring";
+
+	}
+	
+	
+	// Access to the table of a streaming recursion, which is a member of the stream class; used to copy
+	// its last column into, or back from, a checkpoint
+	public void initStream( PositionCode pos0, String stateVector0, boolean write ) {
+
+		initSecondary( pos0, null, stateVector0 );
+		stateMode = "Stream";
+		secondary = "";
+		constMode = (write ? "" : "const");
+
+	}
+	
+	
 	// Adds a typedef (only for toState; and only for FW/BW/Viterbi-DP algorithms, not sample/Viterbi-traceback)
 	void defineStateVector() {
 		
@@ -183,8 +257,12 @@ public class StateCode extends Generator {
 			return;
 		toState.defined = book.getScope(toState.define);
 		
-		Code c = getCode("hmlStateVectorDefine");
 		String numStates = Integer.toString(clique.states.size());
+		if (traceback) {
+			book.addToLinearScope( toState.define, 0, getCode("hmlTracebackStatesDefine").bind(clique.id, numStates, getPointerType()));
+			return;
+		}
+		Code c = getCode("hmlStateVectorDefine");
 		book.addToLinearScope( toState.define, 0, c.bind(clique.id, numStates));
 	}
 	
@@ -214,8 +292,13 @@ public class StateCode extends Generator {
 			return;
 		declared = book.getScope(declare);
 		
-		Code c = getCode("hmlConstCurStateMemoryDeclare");    // declare var to point to state memory    	
-		Text t = c.bind(clique.id, stateMode, constMode);
+		Text t;
+		if (traceback) {
+			t = getCode("hmlConstCurTracebackMemoryDeclare").bind(clique.id, stateMode, constMode, getPointerType());
+		} else {
+			Code c = getCode("hmlConstCurStateMemoryDeclare");    // declare var to point to state memory    	
+			t = c.bind(clique.id, stateMode, constMode);
+		}
 		book.addInitText( declare, t );
 	}
 	
@@ -229,24 +312,13 @@ public class StateCode extends Generator {
 			return;
 		toState.inited = book.getScope(toState.init);
 		
-		Code cd = getCode(fold ? "hmlStateMemoryDeclareFolded" : "hmlStateMemoryDeclare1");    
+		Code cd = getCode(traceback ? "hmlTracebackMemoryDeclare" : (fold ? (ring ? "hmlStateMemoryDeclareRing" : "hmlStateMemoryDeclareFolded") : 
+				  (isCheckpointed() ? "hmlStateMemoryDeclareCheckpoint" : "hmlStateMemoryDeclare1")));
 		Code ca = getCode("hmlStateMemoryAlloc");
-		IntVec start = clique.getStart(objects);
-		IntVec end = clique.getEnd(objects);
 		IntVec mask = clique.getMask(objects);
 		
-		ArrayList dims = new ArrayList();
-		int outputs = 0;
-		for (int i=0; i<hmm.numOutputs; i++) {
-			if (mask.v[i]!=0) {
-				outputs += 1;
-				String iLenString = Integer.toString(end.v[i] - start.v[i] + 1);
-				// If interval is variable length, add in the sequence length
-				if (mask.v[i] == 3)
-					iLenString += "+" + position.getLen(i);
-				dims.add( iLenString );
-			}
-		}
+		ArrayList dims = getDimensions();
+		int outputs = dims.size();
 		
 		// declaration for actual state memory
 		Text t = cd.bind(clique.id, stateMode, Integer.toString(outputs), dptable.getText().toString() );
@@ -302,6 +374,26 @@ public class StateCode extends Generator {
 	}
 
 	
+	// Sizes of the dimensions of the table of this clique
+	ArrayList getDimensions() {
+
+		IntVec start = clique.getStart(objects);
+		IntVec end = clique.getEnd(objects);
+		IntVec mask = clique.getMask(objects);
+		ArrayList dims = new ArrayList();
+		for (int i=0; i<hmm.numOutputs; i++) {
+			if (mask.v[i]!=0) {
+				String iLenString = Integer.toString(end.v[i] - start.v[i] + 1);
+				// If interval is variable length, add in the sequence length
+				if (mask.v[i] == 3)
+					iLenString += "+" + position.getLen(i);
+				dims.add( iLenString );
+			}
+		}
+		return dims;
+	}
+
+	
 	void setPosVar(boolean write) {
 
 		if (!write)
@@ -332,10 +424,11 @@ public class StateCode extends Generator {
 			return;
 		toState.cleared = book.getScope(toState.clearTableScope);
 
-		// Clear columns of folded memory
+		// Clear columns of folded memory (which are folded on the table index, not the position)
+		int slowest = hmm.numOutputs-1;
 		book.addInitText( toState.clearTableScope, 
-				getCode("hmlClearFoldedMemoryPerTable").bind( position.getPos(hmm.numOutputs-1),
-						clique.id ) );
+				getCode("hmlClearFoldedMemoryPerTable").bind( position.getPos(slowest),
+						clique.id, getIndex( position.getPos(slowest), slowest ) ) );
     }
 		
 	
@@ -351,9 +444,6 @@ public class StateCode extends Generator {
 	Code c = getCode("hml"+secondary+"StateMemoryAccess"+rw);
 	Code d = getCode("hml"+secondary+"StateMemoryAccess"+rw+"End");
 	
-	ArrayList access = new ArrayList();
-	IntVec mask = clique.getMask(objects);
-	
 	/*
 	  if (write && twocolumns) {
 	  book.addInitText( stateVector, getCode("hmlClearFoldedMemoryA").bind( position.getPos(hmm.numOutputs-1), clique.id ));
@@ -361,15 +451,25 @@ public class StateCode extends Generator {
 	  }
 	*/
 	
+	String access = getAccess();
+	c.bind( clique.id, stateMode, access );
+	d.bind( clique.id, stateMode, access );
+	book.addInitText( stateVector, c.getText() );
+	book.addExitText( stateVector, d.getText() );
+    }
+
+
+    // Indices into the table of this clique, of the current position shifted by the emission vector
+    String getAccess() {
+
+	ArrayList access = new ArrayList();
+	IntVec mask = clique.getMask(objects);
 	for (int i=0; i<hmm.numOutputs; i++) {
 	    if (mask.v[i]!=0) {
 		access.add( getIndex( position.getPos(i)+ "-(" + Integer.toString(emissionVec.v[i]) + ")",i ) );
 	    }
 	}
-	c.bind( clique.id, stateMode, Generator.makeCommaList(access) );
-	d.bind( clique.id, stateMode, Generator.makeCommaList(access) );
-	book.addInitText( stateVector, c.getText() );
-	book.addExitText( stateVector, d.getText() );
+	return Generator.makeCommaList(access);
     }
 	
 	
@@ -445,6 +545,65 @@ public class StateCode extends Generator {
 	
 	
 	
+	//
+	// Expected counts of a forward Baum-Welch recursion that keeps no tables (memory="linear").  The count
+	// tables parallel the state tables, but are local to the recursion, and only keep two columns if the
+	// slowest variable loops.  Writing a position starts its counts, which are normalized when the state
+	// vector scope closes.
+	//
+	
+	public String getCounts( State s, boolean write ) {
+
+		// make sure the state vector is accessed; the counts are normalized by its probabilities
+		getState( s, "", 1, write );
+		declareCountMemory();
+		initCountMemory();
+		accessCountVector( write );
+		return getCode("hmlCountAccess").bind( clique.id+stateMode, String.valueOf(s.number) ).toString();
+
+	}
+
+
+	void declareCountMemory() {
+
+		if (book.getScope(declare) == countDeclared)
+			return;
+		countDeclared = book.getScope(declare);
+		book.addInitText( declare, getCode("hmlConstCurCountMemoryDeclare").bind(clique.id, stateMode, constMode) );
+
+	}
+
+
+	void initCountMemory() {
+
+		if (book.getScope(toState.init) == toState.countInited)
+			return;
+		toState.countInited = book.getScope(toState.init);
+		boolean foldCounts = hmm.numOutputs > 0 && !clique.range.isFixedRange( hmm.numOutputs-1 );
+		ArrayList dims = getDimensions();
+		Code c = getCode(foldCounts ? "hmlCountMemoryDeclareFolded" : "hmlCountMemoryDeclare1");
+		book.addInitText( toState.init, c.bind( clique.id, Integer.toString(clique.states.size()),
+				Integer.toString(dims.size()), Generator.makeCommaList(dims) ) );
+
+	}
+
+
+	void accessCountVector( boolean write ) {
+
+		if (book.getScope(stateVector) == countVectored)
+			return;
+		countVectored = book.getScope(stateVector);
+		if (write) {
+			book.addInitText( stateVector, getCode("hmlCountMemoryAccessWrite").bind( clique.id, stateMode, getAccess(),
+					Integer.toString(clique.states.size()) ) );
+			book.addExitText( stateVector, getCode("hmlCountMemoryAccessWriteEnd").bind( clique.id, stateMode ) );
+		} else {
+			book.addInitText( stateVector, getCode("hmlCountMemoryAccess").bind( clique.id, stateMode, getAccess() ) );
+		}
+
+	}
+	
+	
 	// helper - build parameter string for getState function
 	String getGetStatePars(PositionCode positionCode) {
 		
@@ -476,7 +635,7 @@ public class StateCode extends Generator {
 			pars = ","+pars;
 			pars2 = ","+pars2;
 		}
-		book.add( getCode("hmlGetStateFuncDef").bind(hmm.id, twocolMode, "iState", pars, pars2 ) );
+		book.add( getCode("hmlGetStateFuncDef").bind(hmm.id, twocolMode, "iState", pars, pars2, getValueType(), getGetter() ) );
 		
 		// make arrays to translate global state id to clique and local state id
 		
@@ -511,6 +670,8 @@ public class StateCode extends Generator {
 			int blockId = ((Integer)blockNum.get(blockStr)).intValue();
 			Clique clique = (Clique)objects.get( blockStr );
 			StateCode stateCode = new StateCode(hmm, book, objects, clique, "gssdeclare", false, false, false, false);
+			if (traceback)
+				stateCode.setTraceback();
 			
 			book.add( getCode("hmlSampleCase").bind( String.valueOf(blockId) ) );
 			book.openScope("gssposition");
@@ -524,7 +685,12 @@ public class StateCode extends Generator {
 			// Make sure "this->" DPTable is referred to, instead of "dp2".
 			stateCode.secondary = "This";
 			
-			book.add( new Text("return "+stateCode.getState("stateTable[iState]","",0,false)+";") );
+			String value = stateCode.getState("stateTable[iState]","",0,false);
+			if (isScaled( hmm ) && !traceback) {
+				value = getCode("hmlScaledValue").bind( value,
+						"aLogScale[" + positionCode.getPos( hmm.numOutputs-1 ) + "]" ).toString().trim();
+			}
+			book.add( new Text("return "+value+";") );
 			
 			book.closeScope("gssstatevector");
 			book.closeScope("gssposition");
@@ -540,6 +706,76 @@ public class StateCode extends Generator {
 	
 	
 	
+	// Builds the member function of stream class 'name' that copies the columns of its table from position
+	// 'first' up to the current one into a checkpoint, or (resume) back from one, after which the statements
+	// 'resumed' run.  The columns hold the states of the cliques listed
+	public static void buildStreamCopy( String name, List cliques, HMM hmm, Book book, TreeMap objects, boolean resume,
+					    String first, String resumed ) {
+
+		PositionCode positionCode = new PositionCode( hmm, book, objects );
+		positionCode.init();
+
+		book.openScopeAtInit( "streamcopy", "subroutines" );
+		if (resume) {
+			book.add( getCode("hmlStreamResume",objects).bind( name, positionCode.getPos(0) ) );
+		} else {
+			book.add( getCode("hmlStreamCheckpoint",objects).bind( name, positionCode.getPos(0), first ) );
+		}
+		copyStreamColumn( cliques, hmm, book, objects, positionCode, resume ? "hmlStreamRestore" : "hmlStreamSave", resume );
+		if (resume) {
+			book.add( getCode("hmlStreamResumeEnd",objects).bind( resumed ) );
+		} else {
+			book.add( getCode("hmlStreamCheckpointEnd",objects).getText() );
+		}
+		book.closeScope( "streamcopy" );
+
+	}
+
+
+	// Emits code that sets the states of the listed cliques to one, in the column following the block of a
+	// backward recursion over a stream, which thereby leaves the symbols after the block unconstrained
+	public static void fillStreamColumn( List cliques, HMM hmm, Book book, TreeMap objects ) {
+
+		PositionCode positionCode = new PositionCode( hmm, book, objects );
+		positionCode.init();
+
+		book.openScope( "streamfill" );
+		book.add( getCode("hmlStreamFill",objects).bind( positionCode.getPos(0) ) );
+		copyStreamColumn( cliques, hmm, book, objects, positionCode, "hmlStreamOne", true );
+		book.add( getCode("hmlStreamFillEnd",objects).getText() );
+		book.closeScope( "streamfill" );
+
+	}
+
+
+	// Applies statement 'op' to all states of the listed cliques, in the column of the stream table at the
+	// position of positionCode
+	static void copyStreamColumn( List cliques, HMM hmm, Book book, TreeMap objects, PositionCode positionCode,
+				      String op, boolean write ) {
+
+		IntVec zeroVec = new IntVec( hmm.numOutputs );
+		book.openScope( "streamdeclare" );
+		for (int i=0; i<cliques.size(); i++) {
+			Clique clique = (Clique)cliques.get(i);
+			book.openScope( "streamposition" );
+			RangeCode allRange = new RangeCode( hmm, book );
+			allRange.initAnything();
+			allRange.checkRange( zeroVec, clique.range, positionCode, "streamposition" );
+			book.openScope( "streamstatevector" );
+			StateCode stateCode = new StateCode( hmm, book, objects, clique, "streamdeclare", true, false, true, false );
+			stateCode.initStream( positionCode, "streamstatevector", write );
+			for (int j=0; j<clique.states.size(); j++) {
+				String stateRef = stateCode.getState( (State)objects.get( clique.states.get(j) ), "", 1, write );
+				book.add( getCode(op,objects).bind( stateRef ) );
+			}
+			book.closeScope( "streamstatevector" );
+			book.closeScope( "streamposition" );
+		}
+		book.closeScope( "streamdeclare" );
+
+	}
+	
+	
 	// Do the per-class portion of the initialisation
 	// (Use the position parameter supplied instead of in-class one, to use initClass before StateCode.initTo() etc.)
 	
@@ -552,7 +788,8 @@ public class StateCode extends Generator {
 		String pars = getGetStatePars(null);
 		if (pars.length() != 0)
 			pars = ","+pars;
-		book.addToLinearScope(classdefinition,2,getCode("hmlDPTableC").bind(hmmid, twocolMode, hmm.getLengthIds("int "), "iState", pars));
+		book.addToLinearScope(classdefinition,2,getCode("hmlDPTableC").bind(hmmid, twocolMode, hmm.getLengthIds("int "), "iState", pars,
+				getValueType(), getGetter()));
 		book.addToLinearScope(memberdefinition,0,getCode("hmlDPTableD").bind(hmmid, twocolMode, hmm.getLengthIds("int ")));
 		book.addToLinearScope(memberdefinition,1,getCode("hmlDPTableE").bind(hmmid+twocolMode));
 		book.addToLinearScope(memberdefinition,2,getCode("hmlDPTableF").bind(hmmid+twocolMode));
@@ -562,12 +799,77 @@ public class StateCode extends Generator {
 			t = getCode("hmlDPTableLenInit").bind( pos.getLen(i) );
 			book.addToLinearScope( memberdefinition, 0, t );
 		}
+		if (isScaled( hmm ) && !traceback) {
+			book.addToLinearScope( classdefinition, 1, getCode("hmlDPTableScaleDecl").getText() );
+		}
 		
 		buildGetStateFunc();
 		
 	}
 	
 	
+	// True if the DP tables hold doubles, each column of the slowest variable scaled by a factor whose log
+	// is kept in the table (realtype="scaled").  Tables of HMMs without outputs are a single column
+	public static boolean isScaled( HMM hmm ) {
+
+		return hmm.numOutputs > 0 && "scaled".equals( HasIdentifiers.getGlobalIdentifier("_realtype_") );
+
+	}
+
+
+	// Type and name of the member function of the table class that reads the table
+	String getValueType() {
+
+		return traceback ? "int" : "_extreal_";
+
+	}
+
+
+	String getGetter() {
+
+		return traceback ? "getPointer" : "getProb";
+
+	}
+	
+	
+	public String getCliqueId() {
+
+		return clique.id;
+
+	}
+
+
+	// True if the table of this clique is checkpointed, i.e. the class keeps checkpoints and the slowest
+	// variable loops
+	public boolean isCheckpointed() {
+
+		return checkpoint && hmm.numOutputs > 0 && !clique.range.isFixedRange( hmm.numOutputs-1 );
+
+	}
+
+
+	// Sets up the checkpoints of the table of this clique, for a recursion in direction fw
+	public void initCheckpoint( String init, boolean fw ) {
+
+		if (!isCheckpointed())
+			return;
+		int slowest = hmm.numOutputs-1;
+		String len = ((Output)objects.get( hmm.outputs[slowest] )).lenId;
+		// position of table index 0 (see getIndex; looping ranges start relative to the start)
+		IntVec start = clique.getStart(objects);
+		String offset = Integer.toString( start.v[slowest] );
+		// columns to keep, i.e. the furthest a transition reaches back along the slowest variable
+		int depth = 1;
+		for (int i=0; i<hmm.emissions.length; i++) {
+			Emission em = (Emission)objects.get( hmm.emissions[i] );
+			depth = Math.max( depth, em.outputVec.v[slowest] );
+		}
+		book.addInitText( init, getCode("hmlStateMemoryAllocCheckpoint").bind( clique.id,
+				len + "," + offset + "," + depth + "," + fw ) );
+
+	}
+
+
 	// Do the per-class portion of the initialisation, when DP tables are supplied by caller
 	public static void initDPInput(String init, String hmmid, Book book, TreeMap objects, boolean secondary ) {
 		
@@ -576,15 +878,26 @@ public class StateCode extends Generator {
 	}
 	
 	
+	// Declares the table of traceback pointers
+	public static void initTracebackTable(String init, HMM hmm, Book book, TreeMap objects) {
+
+		String lengths = hmm.getLengthIds("", false);
+		if (lengths.length() != 0)
+			lengths = "(" + lengths + ")";
+		book.addInitText( init, getCode("hmlTracebackTableInit",objects).bind(hmm.id,lengths) );
+
+	}
+	
+	
 	// Do the per-class portion of the initialisation
-	public static void initDPTable(String init, HMM hmm, Book book, TreeMap objects, boolean twocols) {
+	public static void initDPTable(String init, HMM hmm, Book book, TreeMap objects, String twocolMode) {
 		
 		// Declare and initialize state memory (but for start/end state, which is done by StateCode)
-		String lengths = hmm.getLengthIds("", twocols);
+		String lengths = hmm.getLengthIds("", twocolMode.equals("Folded"));
 		// This is necessary since "Type var()" is not a valid constructor invocation for a class that does not take init arguments.
 		if (lengths.length() != 0)
 			lengths = "(" + lengths + ")";
-		book.addInitText( init, getCode("hmlDPTableInit",objects).bind(hmm.id+(twocols ? "Folded" : ""),lengths) );
+		book.addInitText( init, getCode("hmlDPTableInit",objects).bind(hmm.id+twocolMode,lengths) );
 		
 	}
 	
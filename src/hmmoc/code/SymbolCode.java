@@ -51,6 +51,8 @@ public class SymbolCode extends Generator {
     RangeCode curRangeCode;
     PositionCode positionCode;
     TreeMap symbolMap;
+    boolean stream = false;        // symbols are read from the window of a streaming recursion
+    int maxDepth = 0;
 
     public SymbolCode( HMM himamo, Book book, TreeMap objs, String declare0, String init0 ) {
 
@@ -94,9 +96,27 @@ public class SymbolCode extends Generator {
     }
 
 
+    // Reads symbols from the window of symbols kept by a streaming recursion, instead of the sequence
+    public void setStream() {
+
+        stream = true;
+
+    }
+
+
+    // Largest depth of the symbols read so far, i.e. how far the recursion looks back along the sequence
+    public int getMaxDepth() {
+
+        return maxDepth;
+
+    }
+
+
     // Returns code evaluating to sequence symbol, by global output identifier and position code. [internal]
     String getSequenceSymbol( int id, String pos ) {
 
+        if (stream)
+            return getCode("hmlStreamSymbol").bind( pos ).toString().trim();
         return getSequence(id) + "[" + pos + "]";
 
     }
@@ -108,6 +128,7 @@ public class SymbolCode extends Generator {
         String label = String.valueOf(output)+":"+String.valueOf(depth);
         if (symbolMap.containsKey(label))
             return label;
+        maxDepth = Math.max( maxDepth, depth );
 
         // Compute offset for symbol, and build offset vector; also build RangeCode representing sequence range
         // See TransitionCode for remarks on how the offset depends on forward/backward and fillin/traceback.
@@ -155,7 +176,7 @@ public class SymbolCode extends Generator {
 
     public List getAlphabets() {
 
-        Set alphabets = new HashSet();
+        Set alphabets = new LinkedHashSet();
         for (int output=0; output < hmm.numOutputs; output++) {
             alphabets.add( getAlphabetCode(output).alphabet);
         }
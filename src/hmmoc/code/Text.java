@@ -19,6 +19,7 @@
 package hmmoc.code;
 
 
+import java.io.*;
 import java.util.*;
 import hmmoc.xml.Code;
 
@@ -31,6 +32,7 @@ public class Text {
     Text parent = null;
     int depth;
     boolean line = true;
+    String scope;         // label of the Book scope the text was written to, if any
 
     
     public Text( String s ) {
@@ -72,6 +74,27 @@ public class Text {
     }
 
 
+    public boolean isLine() {
+    	return line;
+    }
+
+
+    public String getScopeLabel() {
+    	return scope;
+    }
+
+
+    public void setScopeLabel( String label ) {
+    	scope = label;
+    }
+
+
+    // Returns the text as it was given, i.e. not formatted as by toString()
+    public String getRawText() {
+    	return text.toString();
+    }
+
+
     public void changeDepth( int i ) {
     	depth += i;
     }
@@ -79,15 +102,22 @@ public class Text {
 
     public int deltaDepth() {
 
-    	return deltaDepth( null, null );
+    	try {
+    		return format( 0, null );
+    	} catch (IOException e) {
+    		throw new Error("Text: unexpected I/O error", e);
+    	}
 
     }
 
 
-    int deltaDepth( List lines, List deltas ) {
-    	// Parses text, and counts number of {s and }s.
+    // Parses text, and counts number of {s and }s.  If out is not null, also writes the text to out,
+    // line by line, indented according to the given depth and the braces in the text.
+    int format( int indent, Writer out ) throws IOException {
     	String t = toString();
     	int delta = 0;
+    	int prevDelta = 0;
+    	boolean firstLine = true;
     	boolean isWhiting = true;
     	boolean inComment = false;
     	boolean inLineComment = false;
@@ -152,13 +182,13 @@ public class Text {
     			}
     		}
 
-    		if (lines != null) {
+    		if (out != null) {
 		
     			if ((!isWhiting)||(c=='\n'))
     				line.append(c);
     			if ((c=='\n') && (!inComment) && (!inSQuote) && (!inDQuote)) {
-    				lines.add( line.toString() );
-    				deltas.add( new Integer(delta) );
+    				prevDelta = writeLine( out, line, firstLine, indent, prevDelta, delta );
+    				firstLine = false;
     				line.setLength(0);
     			}
     		}
@@ -171,9 +201,8 @@ public class Text {
     		line.append('\n');
     	}
 
-    	if ((lines != null) && (line.length() != 0)) {
-    		lines.add( line.toString() );
-    		deltas.add( new Integer(delta) );
+    	if ((out != null) && (line.length() != 0)) {
+    		writeLine( out, line, firstLine, indent, prevDelta, delta );
     	}
 
     	if (inSQuote) {
@@ -203,39 +232,33 @@ public class Text {
     }
 
 
-    public String getFormattedString( int indent ) {
-
-    	StringBuffer result = new StringBuffer();
-    	ArrayList lines = new ArrayList(0);
-    	ArrayList deltas = new ArrayList(0);
-    	deltaDepth( lines, deltas );
-    	int i;
+    // Writes one line, indented by the depth before or after it, whichever is less; returns depth after line
+    int writeLine( Writer out, StringBuffer line, boolean firstLine, int indent, int prevDelta, int newDelta ) throws IOException {
 
     	// Skip first line of whitespace, if it exists
-    	if ((!lines.isEmpty()) && (((String)lines.get(0)).length()!=0) && (((String)lines.get(0)).charAt(0) == '\n'))
-    		i = 1;
-    	else
-    		i = 0;
+    	if (firstLine && (line.length()!=0) && (line.charAt(0) == '\n'))
+    		return prevDelta;
 
-    	// Now loop the text and add whitespace
-    	int prevDelta = 0;
-    	while (i<lines.size()) {
-
-    		int newDelta = ((Integer)deltas.get(i)).intValue();
-    		if (newDelta < prevDelta)
-    			prevDelta = newDelta;
-    		String s = (String)lines.get(i);
-    		if ((s.length()!=0) && s.charAt(0)!='#') {
-    			result.append( getIndent( indent + prevDelta ) + s );
-    		} else {
-    			// Do not add whitespace to lines meant for preprocessor (#defines etc)
-    			result.append( s );
-    		}
+    	if (newDelta < prevDelta)
     		prevDelta = newDelta;
-    		i += 1;
-
+    	if ((line.length()!=0) && line.charAt(0)!='#') {
+    		out.write( getIndent( indent + prevDelta ) );
     	}
+    	// Do not add whitespace to lines meant for preprocessor (#defines etc)
+    	out.write( line.toString() );
+    	return newDelta;
 
+    }
+
+
+    public String getFormattedString( int indent ) {
+
+    	StringWriter result = new StringWriter();
+    	try {
+    		format( indent, result );
+    	} catch (IOException e) {
+    		throw new Error("Text: unexpected I/O error", e);
+    	}
     	return result.toString();
     }
 
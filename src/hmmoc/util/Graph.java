@@ -173,31 +173,14 @@ public class Graph {
     }
 
 
-    // Removes from graph all edges involving edge o
-    static Collection removeNodeEdges( Collection g, Object o )
-    {
-        Collection l = new ArrayList();
-        Iterator i = g.iterator();
-        while (i.hasNext()) {
-            Edge n = (Edge)i.next();
-            if ((n.to != o) && (n.from != o)) {
-                l.add( n );
-            }
-        }
-        return l;
-    }
-
-
     // Returns infimum of graph, i.e. all non-referenced nodes
     public static List infimum( Collection g )
     {
+        Adjacency a = new Adjacency( g );
         ArrayList ll = new ArrayList();
-        List nl = nodes( g );
-        Iterator i = nl.iterator();
-        while (i.hasNext()) {
-            Object o = i.next();
-            if (reachingOnce(g,o).size() == 0) {
-                ll.add(o);
+        for (int i=0; i<a.size; i++) {
+            if (a.inDegree[i] == 0) {
+                ll.add( a.nodes.get(i) );
             }
         }
         return ll;
@@ -207,13 +190,11 @@ public class Graph {
     // Returns supremum of graph, i.e. all nodes that reference no other nodes
     public static List supremum( Collection g )
     {
+        Adjacency a = new Adjacency( g );
         ArrayList ll = new ArrayList();
-        List nl = nodes( g );
-        Iterator i = nl.iterator();
-        while (i.hasNext()) {
-            Object o = i.next();
-            if (reachableOnce(g,o).size() == 0) {
-                ll.add(o);
+        for (int i=0; i<a.size; i++) {
+            if (a.start[i+1] == a.start[i]) {
+                ll.add( a.nodes.get(i) );
             }
         }
         return ll;
@@ -224,48 +205,186 @@ public class Graph {
     // Returns a list of transient nodes, and lists of nodes
     //  forming a cyclic component.
     // (Self reference nodes appear in singlet lists.)
+    //
+    // Components are found by Tarjan's algorithm, and then output in topological order.  Among
+    // the components that are ready for output, transient nodes go before cyclic components, and
+    // ties are broken by the order of nodes( g ).  Nodes within a cyclic component are in that
+    // order too.  Runs in O(E log N) time.
     public static List sortGraph( Collection g )
     {
+        Adjacency a = new Adjacency( g );
+        int n = a.size;
+        int[] comp = a.components();
+        int numComps = 0;
+        for (int i=0; i<n; i++) {
+            if (comp[i] >= numComps)
+                numComps = comp[i]+1;
+        }
+
+        // Collect members, and count incoming edges from other components
+        ArrayList[] members = new ArrayList[ numComps ];
+        boolean[] cyclic = new boolean[ numComps ];
+        int[] compIn = new int[ numComps ];
+        for (int i=0; i<n; i++) {
+            int c = comp[i];
+            if (members[c] == null) {
+                members[c] = new ArrayList(1);
+            } else {
+                cyclic[c] = true;
+            }
+            members[c].add( new Integer(i) );
+            if (a.selfLoop[i])
+                cyclic[c] = true;
+            for (int j=a.start[i]; j<a.start[i+1]; j++) {
+                if (comp[a.succ[j]] != c)
+                    compIn[ comp[a.succ[j]] ]++;
+            }
+        }
+
+        // Components that are ready for output, keyed by their first member
+        TreeSet readyTransient = new TreeSet();
+        TreeSet readyCyclic = new TreeSet();
+        for (int c=0; c<numComps; c++) {
+            if (compIn[c] == 0)
+                (cyclic[c] ? readyCyclic : readyTransient).add( members[c].get(0) );
+        }
+
         ArrayList ll = new ArrayList();
-        List nl = nodes( g );
-        Collection gg = g;
-
-        while (nl.size()>0) {
-            Object o = null;
-            boolean found = false;
-            // First try to get "start" nodes
-            Iterator i = nl.iterator();
-            while (!found && i.hasNext()) {
-                o = i.next();
-                if (reachingOnce(gg,o).size() == 0) {
-                    ll.add( o );
-                    found = true;
-                }
+        while (readyTransient.size() + readyCyclic.size() > 0) {
+            Integer first;
+            if (readyTransient.size() > 0) {
+                first = (Integer)readyTransient.first();
+                readyTransient.remove( first );
+            } else {
+                first = (Integer)readyCyclic.first();
+                readyCyclic.remove( first );
             }
-            // If not successful, try to find "start"
-            // cyclic components
-            i = nl.iterator();
-            while (!found && i.hasNext()) {
-                o = i.next();
-                Set c = cyclicComponent(gg,o);
-                if (c.size() == reaching(gg,o).size()) {
-                    ll.add( new ArrayList( c ) );
-                    found = true;
-                    o = c;
+            int c = comp[ first.intValue() ];
+            if (cyclic[c]) {
+                ArrayList l = new ArrayList( members[c].size() );
+                for (int k=0; k<members[c].size(); k++) {
+                    l.add( a.nodes.get( ((Integer)members[c].get(k)).intValue() ) );
                 }
+                ll.add( l );
+            } else {
+                ll.add( a.nodes.get( first.intValue() ) );
             }
-            // (Something was found - has to be...)
-            if (o instanceof Set) {
-                nl.removeAll( (Set)o );
-                Iterator ri = ((Set)o).iterator();
-                while (ri.hasNext()) {
-                    gg = removeNodeEdges( gg, ri.next() );
+            // Release components downstream
+            for (int k=0; k<members[c].size(); k++) {
+                int i = ((Integer)members[c].get(k)).intValue();
+                for (int j=a.start[i]; j<a.start[i+1]; j++) {
+                    int d = comp[a.succ[j]];
+                    if (d != c) {
+                        compIn[d]--;
+                        if (compIn[d] == 0)
+                            (cyclic[d] ? readyCyclic : readyTransient).add( members[d].get(0) );
+                    }
                 }
-            } else {
-                nl.remove( o );
-                gg = removeNodeEdges( gg, o );
             }
         }
         return ll;
     }
+
+
+    // Graph in integer-indexed adjacency form.  Node i is nodes.get(i); its successors
+    // are succ[start[i]] ... succ[start[i+1]-1]
+    static class Adjacency {
+
+        int size;
+        List nodes;
+        int[] start;
+        int[] succ;
+        int[] inDegree;
+        boolean[] selfLoop;
+
+        Adjacency( Collection g ) {
+
+            nodes = nodes( g );
+            size = nodes.size();
+            HashMap index = new HashMap();
+            for (int i=0; i<size; i++) {
+                index.put( nodes.get(i), new Integer(i) );
+            }
+            int[] from = new int[ g.size() ];
+            int[] to = new int[ g.size() ];
+            start = new int[ size+1 ];
+            inDegree = new int[ size ];
+            selfLoop = new boolean[ size ];
+            int e = 0;
+            Iterator i = g.iterator();
+            while (i.hasNext()) {
+                Edge t = (Edge)i.next();
+                from[e] = ((Integer)index.get( t.from )).intValue();
+                to[e] = ((Integer)index.get( t.to )).intValue();
+                start[ from[e]+1 ]++;
+                inDegree[ to[e] ]++;
+                if (from[e] == to[e])
+                    selfLoop[ from[e] ] = true;
+                e++;
+            }
+            for (int k=0; k<size; k++) {
+                start[k+1] += start[k];
+            }
+            succ = new int[ e ];
+            int[] fill = (int[])start.clone();
+            for (int k=0; k<e; k++) {
+                succ[ fill[from[k]]++ ] = to[k];
+            }
+        }
+
+
+        // Returns strongly connected component number for each node (Tarjan, non-recursive)
+        int[] components() {
+
+            int[] comp = new int[ size ];
+            int[] order = new int[ size ];     // visiting order, -1 if unvisited
+            int[] low = new int[ size ];
+            int[] stack = new int[ size ];     // Tarjan's stack of nodes
+            int[] callStack = new int[ size ]; // depth-first search path
+            int[] edge = new int[ size ];      // next edge to follow, per node on path
+            boolean[] onStack = new boolean[ size ];
+            Arrays.fill( order, -1 );
+            int counter = 0, sp = 0, numComps = 0;
+
+            for (int root=0; root<size; root++) {
+                if (order[root] != -1)
+                    continue;
+                int cp = 0;
+                callStack[cp++] = root;
+                order[root] = low[root] = counter++;
+                edge[root] = start[root];
+                stack[sp++] = root;
+                onStack[root] = true;
+                while (cp > 0) {
+                    int v = callStack[cp-1];
+                    if (edge[v] < start[v+1]) {
+                        int w = succ[ edge[v]++ ];
+                        if (order[w] == -1) {
+                            order[w] = low[w] = counter++;
+                            edge[w] = start[w];
+                            stack[sp++] = w;
+                            onStack[w] = true;
+                            callStack[cp++] = w;
+                        } else if (onStack[w] && order[w] < low[v]) {
+                            low[v] = order[w];
+                        }
+                    } else {
+                        cp--;
+                        if (cp > 0 && low[v] < low[ callStack[cp-1] ])
+                            low[ callStack[cp-1] ] = low[v];
+                        if (low[v] == order[v]) {
+                            int w;
+                            do {
+                                w = stack[--sp];
+                                onStack[w] = false;
+                                comp[w] = numComps;
+                            } while (w != v);
+                            numComps++;
+                        }
+                    }
+                }
+            }
+            return comp;
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.util;
+
+
+import java.util.*;
+
+
+//
+// Times Graph.sortGraph, infimum and supremum on synthetic graphs of increasing size.
+//
+// Usage: java hmmoc.util.GraphBenchmark [maxnodes]
+//
+// Two graph families are used: a profile-HMM-like state graph (match, insert and delete
+// nodes per position; inserts are self-referencing, deletes form a long chain), and a
+// random graph of forward edges plus a few backward edges that create cyclic components.
+//
+
+public class GraphBenchmark {
+
+    // Profile graph with 3*positions+2 nodes
+    public static List profileGraph( int positions ) {
+
+        ArrayList g = new ArrayList();
+        String begin = "B";
+        String end = "E";
+        String[] m = new String[ positions ];
+        String[] ins = new String[ positions ];
+        String[] d = new String[ positions ];
+        for (int k=0; k<positions; k++) {
+            m[k] = "M" + k;
+            ins[k] = "I" + k;
+            d[k] = "D" + k;
+        }
+        g.add( new Edge( begin, m[0] ) );
+        g.add( new Edge( begin, d[0] ) );
+        for (int k=0; k<positions; k++) {
+            String nextM = (k+1 < positions) ? m[k+1] : end;
+            String nextD = (k+1 < positions) ? d[k+1] : end;
+            g.add( new Edge( m[k], nextM ) );
+            g.add( new Edge( m[k], ins[k] ) );
+            g.add( new Edge( m[k], nextD ) );
+            g.add( new Edge( ins[k], ins[k] ) );
+            g.add( new Edge( ins[k], nextM ) );
+            g.add( new Edge( d[k], nextD ) );
+            g.add( new Edge( d[k], nextM ) );
+        }
+        return g;
+    }
+
+
+    // Random graph on given number of nodes, with 'degree' forward edges per node and
+    // about one backward edge per 100 nodes
+    static List randomGraph( int nodes, int degree, Random r ) {
+
+        ArrayList g = new ArrayList();
+        String[] n = new String[ nodes ];
+        for (int i=0; i<nodes; i++) {
+            n[i] = "n" + i;
+        }
+        for (int i=0; i+1<nodes; i++) {
+            for (int j=0; j<degree; j++) {
+                int to = i + 1 + r.nextInt( Math.min( 50, nodes-i-1 ) );
+                g.add( new Edge( n[i], n[to] ) );
+            }
+            if (r.nextInt(100) == 0) {
+                g.add( new Edge( n[i], n[ r.nextInt(i+1) ] ) );
+            }
+        }
+        return g;
+    }
+
+
+    static void time( String name, int nodes, Collection g ) {
+
+        long t0 = System.currentTimeMillis();
+        List sorted = Graph.sortGraph( g );
+        long t1 = System.currentTimeMillis();
+        int inf = Graph.infimum( g ).size();
+        int sup = Graph.supremum( g ).size();
+        long t2 = System.currentTimeMillis();
+        System.out.println( name + "\t" + nodes + "\t" + g.size() + "\t" + sorted.size() + "\t" +
+                            (t1-t0) + "\t" + (t2-t1) + "\t(" + inf + "," + sup + ")" );
+    }
+
+
+    public static void main( String[] args ) {
+
+        int maxNodes = 100000;
+        if (args.length > 0) {
+            maxNodes = Integer.parseInt( args[0] );
+        }
+        Random r = new Random( 1 );
+        // warm up
+        Graph.sortGraph( profileGraph( 1000 ) );
+        Graph.sortGraph( randomGraph( 1000, 3, r ) );
+
+        System.out.println( "graph\tnodes\tedges\tcomps\tsort(ms)\tinf+sup(ms)" );
+        for (int nodes=1000; nodes<=maxNodes; nodes *= 10) {
+            time( "profile", nodes, profileGraph( nodes/3 ) );
+            time( "random", nodes, randomGraph( nodes, 3, r ) );
+        }
+    }
+}
@@ -241,7 +241,7 @@ public class ParseUtils {
 		// Returns all unique id-s of descendant elements of certain type, below root
 		
 		Iterator i = root.getDescendants( new ElementFilter(element) );
-		HashSet eltSet = new HashSet();
+		HashSet eltSet = new LinkedHashSet();
 		while (i.hasNext()) {
 			Element e = (Element)i.next();
 			Element id = (Element)idMap.get(e.getAttributeValue("id"));
@@ -0,0 +1,233 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.util;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Records the wall time, allocated bytes and number of items processed by the phases of a compilation,
+// and the number of lines generated per Book scope, and writes these as a JSON report.
+//
+// Recording is switched on by open(), which hmmoc calls if the property hmmoc.profile names the report
+// file.  Otherwise start() returns null, and stop() and countLines() do nothing.
+//
+// Usage:   long[] p = Profile.start();
+//          ... phase ...
+//          Profile.stop( p, "phase", label, items );
+//
+// Allocated bytes are counted for the calling thread, so a phase must start and stop on the same thread.
+// They are reported as -1 if the virtual machine cannot count them.
+//
+
+public class Profile {
+
+	static final int version = 1;
+
+	static String reportFile = null;         // null if recording is off
+	static String currentFile = "";          // file being compiled
+	static ArrayList files = new ArrayList();
+	static ArrayList records = new ArrayList();
+	static TreeMap scopeLines = new TreeMap();
+
+	// Set up by open() only, so that compilations without a report do not need java.lang.management,
+	// nor switch on the virtual machine's allocation counting
+	static Object threadBean = null;
+	static boolean countAllocations = false;
+
+
+	// One measured phase
+	static class Record {
+
+		String phase;
+		String label;
+		String file;
+		String thread;
+		long nanos;
+		long bytes;
+		long items;
+	}
+
+
+	static boolean initAllocations() {
+
+		try {
+			threadBean = java.lang.management.ManagementFactory.getThreadMXBean();
+			com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean)threadBean;
+			if (!b.isThreadAllocatedMemorySupported())
+				return false;
+			b.setThreadAllocatedMemoryEnabled( true );
+			return b.isThreadAllocatedMemoryEnabled();
+		} catch (Throwable e) {
+			// not a HotSpot-like virtual machine
+			return false;
+		}
+	}
+
+
+	static long allocatedBytes() {
+
+		if (!countAllocations)
+			return -1;
+		return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+
+	public static synchronized void open( String file ) {
+
+		if (reportFile == null)
+			countAllocations = initAllocations();
+		reportFile = file;
+	}
+
+
+	public static boolean enabled() {
+
+		return reportFile != null;
+	}
+
+
+	// Sets the file to which following records belong
+	public static synchronized void setFile( String file ) {
+
+		currentFile = file;
+		if (enabled())
+			files.add( file );
+	}
+
+
+	// Returns start of a phase, or null if recording is off
+	public static long[] start() {
+
+		if (!enabled())
+			return null;
+		return new long[] { System.nanoTime(), allocatedBytes() };
+	}
+
+
+	// Records a phase begun by start().  The label identifies e.g. the algorithm; items is the number of
+	// elements, states, lines &c. processed, or -1
+	public static void stop( long[] start, String phase, String label, long items ) {
+
+		if (start == null)
+			return;
+		Record r = new Record();
+		r.nanos = System.nanoTime() - start[0];
+		r.bytes = (start[1] == -1) ? -1 : allocatedBytes() - start[1];
+		r.phase = phase;
+		r.label = label;
+		r.thread = Thread.currentThread().getName();
+		r.items = items;
+		synchronized (Profile.class) {
+			r.file = currentFile;
+			records.add( r );
+		}
+	}
+
+
+	public static synchronized void countLines( String scope, int lines ) {
+
+		Long n = (Long)scopeLines.get( scope );
+		scopeLines.put( scope, new Long( (n == null ? 0 : n.longValue()) + lines ) );
+	}
+
+
+	static String quote( String s ) {
+
+		if (s == null)
+			return "null";
+		StringBuffer b = new StringBuffer("\"");
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				b.append( '\\' ).append( c );
+			} else if (c < ' ') {
+				String hex = Integer.toHexString( c );
+				b.append( "\\u0000".substring( 0, 6-hex.length() ) ).append( hex );
+			} else {
+				b.append( c );
+			}
+		}
+		return b.append( '"' ).toString();
+	}
+
+
+	// Writes the report: all records in order, their totals per phase, and the lines per scope
+	public static synchronized void report() throws IOException {
+
+		if (!enabled())
+			return;
+
+		PrintWriter out = new PrintWriter( new BufferedWriter( new FileWriter( reportFile ) ) );
+		out.println( "{" );
+		out.println( "  \"version\": " + version + "," );
+		out.println( "  \"allocationsCounted\": " + countAllocations + "," );
+		out.print( "  \"files\": [" );
+		for (int i=0; i<files.size(); i++) {
+			out.print( (i==0 ? "" : ", ") + quote( (String)files.get(i) ) );
+		}
+		out.println( "]," );
+
+		out.println( "  \"phases\": [" );
+		LinkedHashMap totals = new LinkedHashMap();
+		for (int i=0; i<records.size(); i++) {
+			Record r = (Record)records.get(i);
+			out.print( "    {\"phase\": " + quote( r.phase ) + ", \"label\": " + quote( r.label ) +
+				   ", \"file\": " + quote( r.file ) + ", \"thread\": " + quote( r.thread ) +
+				   ", \"wallNanos\": " + r.nanos + ", \"allocatedBytes\": " + r.bytes +
+				   ", \"items\": " + r.items + "}" );
+			out.println( i+1 < records.size() ? "," : "" );
+			long[] t = (long[])totals.get( r.phase );
+			if (t == null) {
+				t = new long[4];
+				totals.put( r.phase, t );
+			}
+			t[0] += 1;
+			t[1] += r.nanos;
+			t[2] += r.bytes;
+			t[3] += r.items;
+		}
+		out.println( "  ]," );
+
+		out.println( "  \"totals\": [" );
+		Iterator i = totals.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry e = (Map.Entry)i.next();
+			long[] t = (long[])e.getValue();
+			out.print( "    {\"phase\": " + quote( (String)e.getKey() ) + ", \"count\": " + t[0] +
+				   ", \"wallNanos\": " + t[1] + ", \"allocatedBytes\": " + (countAllocations ? t[2] : -1) +
+				   ", \"items\": " + t[3] + "}" );
+			out.println( i.hasNext() ? "," : "" );
+		}
+		out.println( "  ]," );
+
+		out.println( "  \"scopeLines\": {" );
+		i = scopeLines.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry e = (Map.Entry)i.next();
+			out.print( "    " + quote( (String)e.getKey() ) + ": " + e.getValue() );
+			out.println( i.hasNext() ? "," : "" );
+		}
+		out.println( "  }" );
+		out.println( "}" );
+		out.close();
+	}
+
+}
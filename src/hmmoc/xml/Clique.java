@@ -51,6 +51,9 @@ public class Clique extends XmlElement {
 	public ArrayList selfEmittingTrans;             // emitting transitions, staying in block
 	public ArrayList selfSilentTrans;               // nonemitting transitions, staying in block
 	
+	TransitionIndex forwardIndex;                   // transitions indexed for the forward recursion
+	TransitionIndex backwardIndex;                  // same, for the backward recursion
+	
 	public Clique( Element elem, int numOutputs0, TreeMap idMap, HMM hmm ) {
 		
 		id = elem.getAttributeValue("id");
@@ -149,120 +152,64 @@ public class Clique extends XmlElement {
 	// Returns list of all transitions that come from a non-emitting state within block, and go to specified state
 	List selfStateTransitions(String state, boolean forward, TreeMap objects) {
 		
-		ArrayList transList = new ArrayList();
-		for (int i=0; i<selfTrans.size(); i++) {
-			String ts = (String)selfTrans.get(i);
-			Transition t = (Transition)objects.get(ts);
-			Emission e = (Emission)objects.get(t.emission);
-			// zero emission?
-			if (e.outputVec.isZero()) {
-				// does this transition go the specified state?
-				if (t.getTo(forward).equals( state )) {
-					transList.add( t );
-				}
-			}
+		return getIndex(forward).getSelfStateTransitions( state );
+	}
+	
+	
+	// Builds the forward and backward transition indices.  Called by HMM.analyze, once all
+	// transitions have been assigned to blocks
+	void buildIndex(TreeMap objects) {
+		
+		forwardIndex = new TransitionIndex( this, true, objects );
+		backwardIndex = new TransitionIndex( this, false, objects );
+	}
+	
+	
+	TransitionIndex getIndex(boolean forward) {
+		
+		TransitionIndex index = forward ? forwardIndex : backwardIndex;
+		if (index == null) {
+			throw new Error("Transition index of block "+id+" used before HMM was analyzed");
 		}
-		return transList;
+		return index;
 	}
 	
 	
 	// Returns array of unique emission vectors (zero vector last)
 	public IntVec[] getEmissionVectors(boolean forward,TreeMap objects) {
 		
-		HashSet emVecs = new HashSet(0);
-		boolean hasZero = false;
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			// Treat zero vector as special case - to put it at end of list
-			if (e.outputVec.isZero())
-				hasZero = true;
-			else
-				emVecs.add( e.outputVec );
-		}
-		List emVecList = new ArrayList( emVecs );
-		if (hasZero)
-			emVecList.add( new IntVec( numOutputs ) );
-		return (IntVec[])emVecList.toArray(new IntVec[0]);
+		return getIndex(forward).getEmissionVectors();
 	}
 	
 	
 	// Returns array of emissions with given emission vector, going to this block
 	public Emission[] getEmissions(boolean forward,IntVec emission, TreeMap objects) {
 		
-		HashSet ems = new HashSet(0);
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if (e.outputVec.equals( emission )) {
-				ems.add( e );
-			}
-		}
-		return (Emission[])ems.toArray(new Emission[0]);
+		return getIndex(forward).getEmissions( emission );
 	}
 	
 	
 	// Returns array of blocks that are emission away from current block (self block last)
 	public Clique[] getFromBlocks(boolean forward, IntVec emission, TreeMap objects) {
 		
-		HashSet fromBlocks = new HashSet(0);
-		boolean hasSelf = false;
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if (e.outputVec.equals( emission )) {
-				Clique from = (Clique)objects.get( t.getFromBlock( forward) );
-				if (from == this)
-					hasSelf = true;
-				else
-					fromBlocks.add( from );
-			}
-		}
-		List fromBlockList = new ArrayList( fromBlocks );
-		if (hasSelf) {
-			fromBlockList.add( this );
-		}
-		return (Clique[])fromBlockList.toArray(new Clique[0]);
+		return getIndex(forward).getFromBlocks( emission );
 	}
 	
 	
 	// Returns array of states that are receiving from given emission and given clique
 	public State[] getToStates(boolean forward, IntVec emission, Clique clique, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && 
-					(forward && (t.fromBlock.equals(clique.id)) || (!forward && (t.toBlock.equals(clique.id))))) {
-				
-				coll.add( objects.get(t.getTo(forward)) );
-				
-			}
-		}
-		return (State[])coll.toArray(new State[0]);
+		return getIndex(forward).getToStates( emission, clique );
 	}
 	
 	
 	// Returns array of states that are receiving from given emission, and are themselves in given clique
 	public State[] getToStates(IntVec emission, Clique clique, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(true).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && (t.toBlock.equals(clique.id))) {
-				
-				coll.add( objects.get(t.from) );
-				
-			}
-		}
-		return (State[])coll.toArray(new State[0]);
+		// All forward transitions of this block go to this block
+		if (!clique.id.equals(id))
+			return TransitionIndex.noStates;
+		return getIndex(true).getOrigStates( emission );
 	}
 	
 	
@@ -271,20 +218,7 @@ public class Clique extends XmlElement {
 	// Returns array of states that are receiving from given emission and given clique
 	public State[] getFromStates(boolean forward, IntVec emission, Clique clique, State to, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && 
-					((forward && (t.fromBlock.equals(clique.id))) || (!forward && (t.toBlock.equals(clique.id)))) &&
-					((forward && (t.to.equals(to.id))) || (!forward && (t.from.equals(to.id))))) {
-				
-				coll.add( objects.get(t.getFrom(forward)) );
-				
-			}
-		}
-		return (State[])coll.toArray(new State[0]);
+		return getIndex(forward).getFromStates( emission, clique, to );
 	}
 	
 	
@@ -292,20 +226,9 @@ public class Clique extends XmlElement {
 	// Returns array of states that are receiving from given emission, and are themselves in given clique
 	public State[] getFromStates(IntVec emission, Clique clique, State to, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(true).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && 
-					(t.toBlock.equals(clique.id)) &&
-					(t.from.equals(to.id))) {
-				
-				coll.add( objects.get(t.to) );
-				
-			}
-		}
-		return (State[])coll.toArray(new State[0]);
+		if (!clique.id.equals(id))
+			return TransitionIndex.noStates;
+		return getIndex(true).getTargetStates( emission, to );
 	}
 	
 	
@@ -314,42 +237,16 @@ public class Clique extends XmlElement {
 	// Returns array of states that are receiving from given emission and given clique
 	public Transition[] getFromToTransitions(boolean forward, IntVec emission, Clique clique, State to, State from, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(forward).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && 
-					((forward && (t.fromBlock.equals(clique.id))) || (!forward && (t.toBlock.equals(clique.id)))) &&
-					(t.getTo(forward).equals(to.id)) &&
-					(t.getFrom(forward).equals(from.id))) {
-				
-				coll.add( t );
-				
-			}
-		}
-		return (Transition[])coll.toArray(new Transition[0]);
+		return getIndex(forward).getFromToTransitions( emission, clique, to, from );
 	}
 	
 	
 	// Returns array of states that are receiving from given emission and given clique
 	public Transition[] getFromToTransitions(IntVec emission, Clique clique, State to, State from, TreeMap objects) {
 		
-		HashSet coll = new HashSet(0);
-		Iterator i = getTransitions(true).iterator();
-		while (i.hasNext()) {
-			Transition t = (Transition)objects.get(i.next());
-			Emission e = (Emission)objects.get(t.emission);
-			if ((e.outputVec.equals( emission )) && 
-					(t.toBlock.equals(clique.id)) &&
-					(t.from.equals(to.id)) &&
-					(t.to.equals(from.id))) {
-				
-				coll.add( t );
-				
-			}
-		}
-		return (Transition[])coll.toArray(new Transition[0]);
+		if (!clique.id.equals(id))
+			return TransitionIndex.noTransitions;
+		return getIndex(true).getOrigTargetTransitions( emission, to, from );
 	}
 	
 	
@@ -19,6 +19,7 @@
 package hmmoc.xml;
 
 import org.jdom.*;
+import java.io.*;
 import java.util.*;
 
 import hmmoc.util.ParseUtils;
@@ -34,7 +35,37 @@ public class Code extends HasIdentifiers {
 	String output;
 	String type;
 	String text;
-	StringBuffer current;
+	
+	// Template of text, made once at parse time: literal text, interleaved with slots for the
+	// occurrences of identifiers.  Null if occurrences of different identifiers overlap.
+	String[] literals;                       // text before each slot, and after the last one
+	int[] slotIdent;                         // index in identifierList of identifier at slot
+	
+	
+	// State of binding identifiers.  It is kept per Context, so that threads can bind the same
+	// code object at the same time.
+	class Binding {
+		
+		StringBuffer current;                // text being bound by substitution, if template cannot be used
+		String[] values;                     // values bound to identifiers, per index in identifierList
+		boolean[] bound;                     // marks identifiers that have been bound
+		StringBuffer builder = new StringBuffer();
+		
+		Binding() {
+			reset();
+		}
+		
+		// Unbind all identifiers
+		void reset() {
+			bound = new boolean[ identifierList.size() ];
+			if (literals == null) {
+				current = new StringBuffer(text);
+			} else {
+				current = null;
+				values = new String[ identifierList.size() ];
+			}
+		}
+	}
 	
 	
 	// Parses <code> element
@@ -60,39 +91,157 @@ public class Code extends HasIdentifiers {
 			throw new Error("Illegal code element: has 'output' attribute, but is not of type 'coordinate'");
 		}
 		
-		reset();
+		compile();
 		
 	}
 	
 	
 	
+	// Reads code object written by write(), with elem the element it was parsed from
+	Code( Element elem, DataInputStream in ) throws IOException {
+		
+		super(elem,in);
+		
+		language = SnippetLibrary.readString( in );
+		type = SnippetLibrary.readString( in );
+		output = SnippetLibrary.readString( in );
+		int n = in.readInt();
+		if (n == -1) {
+			text = SnippetLibrary.readString( in );
+		} else {
+			// text is not stored, but made from the template
+			literals = new String[ n ];
+			for (int i=0; i<n; i++) {
+				literals[i] = SnippetLibrary.readString( in );
+			}
+			slotIdent = new int[ n-1 ];
+			StringBuffer t = new StringBuffer( literals[0] );
+			for (int i=0; i<n-1; i++) {
+				slotIdent[i] = in.readInt();
+				t.append( ((Identifier)identifierList.get(slotIdent[i])).identifier );
+				t.append( literals[i+1] );
+			}
+			text = t.toString();
+		}
+		
+	}
+	
+	
+	void write( DataOutputStream out ) throws IOException {
+		
+		super.write( out );
+		SnippetLibrary.writeString( out, language );
+		SnippetLibrary.writeString( out, type );
+		SnippetLibrary.writeString( out, output );
+		if (literals == null) {
+			out.writeInt( -1 );
+			SnippetLibrary.writeString( out, text );
+		} else {
+			out.writeInt( literals.length );
+			for (int i=0; i<literals.length; i++) {
+				SnippetLibrary.writeString( out, literals[i] );
+			}
+			for (int i=0; i<slotIdent.length; i++) {
+				out.writeInt( slotIdent[i] );
+			}
+		}
+		
+	}
+	
+	
+	
+	// Binding state of this code object in the context of the calling thread
+	Binding binding() {
+		return Context.get().getBinding( this );
+	}
+	
+	
 	// Unbind all identifiers
 	void reset() {
-		super.reset();
-		current = new StringBuffer(text);
+		binding().reset();
 	}
 	
 	
-
-    // Time-critical subroutine	
+	// Finds occurrences of all identifiers in text, to bind identifiers by filling in slots
+	void compile() {
+		
+		TreeMap slots = new TreeMap();
+		for (int i=0; i<identifierList.size(); i++) {
+			String identifierS = ((Identifier)identifierList.get(i)).identifier;
+			if (identifierS.equals(""))
+				continue;
+			int pos = text.indexOf( identifierS );
+			while (pos != -1) {
+				if (slots.containsKey( new Integer(pos) ))
+					return;
+				slots.put( new Integer(pos), new Integer(i) );
+				pos = text.indexOf( identifierS, pos + identifierS.length() );
+			}
+		}
+		literals = new String[ slots.size()+1 ];
+		slotIdent = new int[ slots.size() ];
+		int pos = 0;
+		int k = 0;
+		Iterator j = slots.entrySet().iterator();
+		while (j.hasNext()) {
+			Map.Entry slot = (Map.Entry)j.next();
+			int start = ((Integer)slot.getKey()).intValue();
+			if (start < pos) {
+				literals = null;         // overlapping identifiers; bind by substitution
+				return;
+			}
+			slotIdent[k] = ((Integer)slot.getValue()).intValue();
+			literals[k] = text.substring( pos, start );
+			pos = start + ((Identifier)identifierList.get(slotIdent[k])).identifier.length();
+			k++;
+		}
+		literals[k] = text.substring( pos );
+	}
+	
+	
+	// Switches from template to substitution, keeping identifiers bound so far
+	void substituteBound( Binding b ) {
+		
+		b.current = new StringBuffer( fillSlots( b ) );
+	}
+	
+	
+	// Returns text with bound identifiers filled in
+	String fillSlots( Binding b ) {
+		
+		StringBuffer builder = b.builder;
+		builder.setLength(0);
+		for (int k=0; k<slotIdent.length; k++) {
+			String value = b.values[ slotIdent[k] ];
+			if (value == null)
+				value = ((Identifier)identifierList.get(slotIdent[k])).identifier;
+			builder.append( literals[k] );
+			builder.append( value );
+		}
+		builder.append( literals[ slotIdent.length ] );
+		return builder.toString();
+	}
+	
+	
+	
+    // Time-critical subroutine; replaces all non-overlapping occurrences, left to right, in one pass
 	static public boolean replaceSubstring(StringBuffer buffer, String identifier, String withWhat) {
 		
-		boolean hasReplaced = false;
 		String bufferAsString = buffer.toString();
 		int idLength = identifier.length();
-		int bufLength = buffer.length();
-		int i=0;
-		while (i<=bufLength - idLength) {
-			if (identifier.regionMatches(0,bufferAsString,i,idLength)) {
-				hasReplaced = true;
-				buffer.replace(i,i+idLength, withWhat);
-				i += withWhat.length() - idLength;
-				bufferAsString = buffer.toString();
-				bufLength = buffer.length();
-			}
-			i++;
+		int i = bufferAsString.indexOf( identifier );
+		if (idLength == 0 || i == -1)
+			return false;
+		int pos = 0;
+		buffer.setLength(0);
+		while (i != -1) {
+			buffer.append( bufferAsString.substring( pos, i ) );
+			buffer.append( withWhat );
+			pos = i + idLength;
+			i = bufferAsString.indexOf( identifier, pos );
 		}
-		return hasReplaced;
+		buffer.append( bufferAsString.substring( pos ) );
+		return true;
 	}
 	
 	
@@ -102,14 +251,33 @@ public class Code extends HasIdentifiers {
 		
 		String identifierS = identifier.identifier;
 		boolean hasReplaced = false;
+		Binding b = binding();
+		int idx = identifierList.indexOf( identifier );
 		
-		if (identifier.bound) {
+		if (b.bound[idx]) {
 			throw xmlError(e,"Trying to bind identifier "+identifier.identifier+" of type "+identifier.type+" twice");
 		}
-		identifier.bound = true;
+		b.bound[idx] = true;
 		if (identifierS.equals(""))
 			return;
-		hasReplaced = replaceSubstring(current, identifierS, withWhat);
+		if (b.current == null) {
+			// Substituted values that contain this identifier would get it replaced too
+			for (int i=0; i<b.values.length; i++) {
+				if (b.values[i] != null && b.values[i].indexOf( identifierS ) != -1) {
+					substituteBound( b );
+					break;
+				}
+			}
+		}
+		if (b.current == null) {
+			b.values[idx] = withWhat;
+			for (int k=0; k<slotIdent.length; k++) {
+				if (slotIdent[k] == idx)
+					hasReplaced = true;
+			}
+		} else {
+			hasReplaced = replaceSubstring(b.current, identifierS, withWhat);
+		}
 		if ((!hasReplaced)&&(!id.startsWith("hml"))) {
 			// Do not give warnings for internal snippets
 			System.out.println("Warning: Identifier "+identifier.identifier+" in code "+id+" was not matched in code body.");
@@ -158,26 +326,37 @@ public class Code extends HasIdentifiers {
 		use();
 		
 		// Now check all identifiers are bound
+		Binding b = binding();
 		for (int i=0; i<identifierList.size(); i++) {
 			Identifier ident = (Identifier)identifierList.get(i); 
-			if ((!ident.bound) && (!ident.identifier.equals(""))) {
+			if ((!b.bound[i]) && (!ident.identifier.equals(""))) {
 				throw xmlError(e,"Unbound identifier "+ident.identifier);
 			}
 		}
 		
+		String result;
+		if (b.current == null) {
+			result = fillSlots( b );
+		} else {
+			result = b.current.toString();
+		}
+		
 		// Process global identifiers - only on internal snippets
 		if (id.startsWith("hml")) {
+			StringBuffer buffer = new StringBuffer( result );
+			TreeMap globalIdentifiers = Context.get().globalIdentifiers;
 			Iterator i = globalIdentifiers.keySet().iterator();
 			while (i.hasNext()) {
 				String identifier = (String)i.next();
 				String withWhat = (String)globalIdentifiers.get(identifier);
-				replaceSubstring(current,identifier,withWhat);
+				replaceSubstring(buffer,identifier,withWhat);
 			}
+			result = buffer.toString();
 		}
 		
 		// An expression (or parameter) does not appear by itself on a single line
 		// (Just to make code look nice -- skips indentation.  However for //-style comments difference can be crucial.)
-		Text t = new Text(current.toString());
+		Text t = new Text(result);
 		if (!type.equals("statement")) {
 			t.setLine(false);
 		}
@@ -320,5 +499,20 @@ public class Code extends HasIdentifiers {
 		return getText();
 	}
 	
+	public Text bind(String withWhat, String withWhat2, String withWhat3, String withWhat4, String ww5, String ww6, String ww7, String ww8, String ww9, String ww10) {
+		reset();
+		bind(0,withWhat);
+		bind(1,withWhat2);
+		bind(2,withWhat3);
+		bind(3,withWhat4);
+		bind(4,ww5);
+		bind(5,ww6);
+		bind(6,ww7);
+		bind(7,ww8);
+		bind(8,ww9);
+		bind(9,ww10);
+		return getText();
+	}
+	
 }
 
@@ -26,9 +26,18 @@ import hmmoc.code.Book;
 import hmmoc.code.Generator;
 import hmmoc.code.Text;
 import hmmoc.util.ParseUtils;
+import hmmoc.util.Profile;
 
 
-public class CodeGeneration {
+//
+// Generates the code for one <codeGeneration> element, and writes it to file.
+//
+// Units run as Parallel tasks, each in its own Context and on its own copy of the object map.  The
+// algorithms within a unit are generated as tasks too, each into a fork of the unit's book, which
+// are joined in order.
+//
+
+public class CodeGeneration extends Parallel.Task {
 	
 	String id;
 	
@@ -37,7 +46,169 @@ public class CodeGeneration {
 	String realtype;
 	String headerFile;
 	
-	public CodeGeneration( Element elem, TreeMap idRef, TreeMap objects ) {
+	Element elem;
+	TreeMap idRef;
+	TreeMap objects;
+	Book book;
+	
+	
+	// Generates code for one child of <codeGeneration>, in a fork of the book
+	class Algorithm extends Parallel.Task {
+		
+		Element e;                         // child element
+		Element id;                        // element it refers to
+		Book fork;
+		
+		Algorithm( Element e0, Element id0 ) {
+			
+			super( CodeGeneration.this.context.fork() );
+			e = e0;
+			id = id0;
+			fork = book.fork();
+		}
+		
+		void run() {
+			
+			// work on own copy of the object map, as parsing the HMM adds objects to it
+			TreeMap objects = new TreeMap( CodeGeneration.this.objects );
+			
+			String hmmid = null;
+			try {
+			    hmmid = ParseUtils.parseChild(id, "hmm", idRef).getAttributeValue("id");
+			} catch (Error err) {
+			    // anonymous <code> block
+			}
+			
+			String label = id.getAttributeValue("id");
+			String key = null;
+			if (FragmentCache.enabled()) {
+				long[] profile = Profile.start();
+				key = FragmentCache.key( id, idRef, realtype, language, context );
+				boolean hit = FragmentCache.read( key, fork, context );
+				Profile.stop( profile, "FragmentCache.read", label, hit ? 1 : 0 );
+				if (hit) {
+					if (hmmid != null) {
+					    System.out.println("For HMM '"+hmmid+"': using cached code for algorithm '"+id.getName()+"'");
+					} else {
+					    System.out.println("Using cached anonymous <code> block");
+					}
+					return;
+				}
+			}
+			
+			if (hmmid != null) {
+			    System.out.println("For HMM '"+hmmid+"': processing algorithm '"+id.getName()+"'");
+			} else {
+			    System.out.println("Parsing anonymous <code> block");
+			}
+
+			if (Striped.isStriped( id )) {
+
+				Striped s = new Striped( id, idRef, objects );
+				generate( s, label );
+
+			} else if ((id.getName().equals( "forward" ))||(id.getName().equals( "backward" ))) {
+								
+				ForwardBackward f = new ForwardBackward( id, idRef, objects );
+				generate( f, label );
+				generateBlock( f, objects, label );
+				generateSmoother( f, objects, label );
+				
+			} else if (id.getName().equals( "sample")) {
+				
+				Sample s = new Sample( id, idRef, objects );
+				generate( s, label );
+				
+			} else if (id.getName().equals( "viterbi")) {
+				
+				ForwardBackward f = new ForwardBackward( id, idRef, objects );
+				f.name += "_recurse";
+				f.outputtable = true;
+				generate( f, label );
+				generateBlock( f, objects, label );
+				
+				Sample s = new Sample( id, idRef, objects );
+				s.name += "_trace";
+				generate( s, label );
+								
+			} else if (id.getName().equals("code")) {
+				
+				fork.add( Generator.getCode(id.getAttributeValue("id"),objects).getText() );
+				
+			} else {
+				
+				throw new Error("<codeGeneration>: Don't know how to handle child <"+e.getName()+">");
+				
+			}
+			
+			if (key != null) {
+				FragmentCache.write( key, fork, context );
+			}
+		}
+		
+		// Generate code for an algorithm; when profiling, record the number of text elements written
+		void generate( ForwardBackward f, String label ) {
+			
+			long[] profile = Profile.start();
+			int size = (profile == null) ? 0 : fork.size();
+			f.generate( fork, language );
+			Profile.stop( profile, "ForwardBackward.generate", label, (profile == null) ? 0 : fork.size() - size );
+		}
+		
+		// Generate the function that recomputes blocks of the checkpointed table returned by f, if any
+		void generateBlock( ForwardBackward f, TreeMap objects, String label ) {
+
+			if (f.returnsCheckpoints()) {
+				ForwardBackward b = new ForwardBackward( id, idRef, objects );
+				b.setBlock( f.name );
+				generate( b, label );
+			}
+		}
+
+		// Generate the backward pass of the fixed-lag smoother of stream f, if any
+		void generateSmoother( ForwardBackward f, TreeMap objects, String label ) {
+
+			if (f.smoothes()) {
+				ForwardBackward b = new ForwardBackward( id, idRef, objects );
+				b.setSmoother( f.name );
+				generate( b, label );
+			}
+		}
+
+		void generate( Sample s, String label ) {
+			
+			long[] profile = Profile.start();
+			int size = (profile == null) ? 0 : fork.size();
+			s.generate( fork, language );
+			Profile.stop( profile, "Sample.generate", label, (profile == null) ? 0 : fork.size() - size );
+		}
+		
+		void generate( Striped s, String label ) {
+			
+			long[] profile = Profile.start();
+			int size = (profile == null) ? 0 : fork.size();
+			s.generate( fork, language );
+			Profile.stop( profile, "Striped.generate", label, (profile == null) ? 0 : fork.size() - size );
+		}
+		
+		void finish() {
+			
+			book.join( fork );
+			CodeGeneration.this.context.join( context );
+		}
+	}
+	
+	
+	public CodeGeneration( Element elem0, TreeMap idRef0, TreeMap objects0 ) {
+		
+		super( Context.get().fork() );
+		elem = elem0;
+		idRef = idRef0;
+		objects = new TreeMap( objects0 );
+	}
+	
+	
+	void run() {
 		
 		id = elem.getAttributeValue("id");
 		
@@ -58,15 +229,36 @@ public class CodeGeneration {
 			realtype = "double";
 		if (!realtype.equals("double") && 
 		    !realtype.equals("bfloat") &&
-		    !realtype.equals("logspace")) {
-			throw new Error("<"+elem.getName()+">: Attribute 'realtype' has value '"+realtype+"', expected 'double', 'bfloat' or 'logspace'");
+		    !realtype.equals("xfloat") &&
+		    !realtype.equals("logspace") &&
+		    !realtype.equals("scaled") &&
+		    !realtype.equals("intscore")) {
+			throw new Error("<"+elem.getName()+">: Attribute 'realtype' has value '"+realtype+"', expected 'double', 'bfloat', 'xfloat', 'logspace', 'scaled' or 'intscore'");
 		}
 		
 		headerFile = elem.getAttributeValue("header");
 		
+		HasIdentifiers.addGlobalIdentifier("_realtype_",realtype);
+
+		if (realtype.equals("scaled")) {
+		    // DP tables hold doubles, scaled per column; probabilities outside the tables, and Baum-Welch
+		    // counts, are xfloats, which keep the precision of doubles
+		    HasIdentifiers.addGlobalIdentifier("_extreal_","xfloat");
+		    HasIdentifiers.addGlobalIdentifier("_dpreal_","double");
+		} else {
+		    HasIdentifiers.addGlobalIdentifier("_extreal_",realtype);
+		    HasIdentifiers.addGlobalIdentifier("_dpreal_",realtype);
+		}
+
+		if (realtype.equals("logspace")) {
+		    HasIdentifiers.addGlobalIdentifier("_shortreal_","logspace");
+		} else {
+		    HasIdentifiers.addGlobalIdentifier("_shortreal_","double");
+		}
+		
 		// Create book to write code in.
 		
-		Book book = new Book( objects );
+		book = new Book( objects );
 		
 		book.openScope("header-includes");
 		book.openScope("header-classdef");
@@ -99,70 +291,20 @@ public class CodeGeneration {
 		//book.addInitText( "declarations", Generator.getCode("hmlBookOmega",objects).getText() );
 		//book.addInitText( "declarations", Generator.getCode("hmlBookAlpha",objects).getText() );
 		
-		HasIdentifiers.addGlobalIdentifier("_extreal_",realtype);
-
-		if (realtype.equals("logspace")) {
-		    HasIdentifiers.addGlobalIdentifier("_shortreal_","logspace");
-		} else {
-		    HasIdentifiers.addGlobalIdentifier("_shortreal_","double");
-		}
-		
-		// Now iterate over the algorithms to write
+		// Now generate the algorithms
 		
-		List children = elem.getChildren();
-		Iterator i = children.iterator();
-		TreeMap invariantObjects = new TreeMap( objects );   // store objects before parsing the HMM
+		List algorithms = new ArrayList();
+		Iterator i = elem.getChildren().iterator();
 		
 		//System.out.println("Generating code...");
 		
 		while (i.hasNext()) {
 			
-			
 			Element e = (Element)i.next();
-			Element id = (Element)idRef.get(e.getAttributeValue("id"));
+			algorithms.add( new Algorithm( e, (Element)idRef.get(e.getAttributeValue("id")) ) );
 			
-			try {
-			    String hmmid = ParseUtils.parseChild(id, "hmm", idRef).getAttributeValue("id");
-			    System.out.println("For HMM '"+hmmid+"': processing algorithm '"+id.getName()+"'");
-			} catch (Error err) {
-			    System.out.println("Parsing anonymous <code> block");
-			}
-
-			if ((id.getName().equals( "forward" ))||(id.getName().equals( "backward" ))) {
-								
-				ForwardBackward f = new ForwardBackward( id, idRef, objects );
-				f.generate( book, language );
-				
-			} else if (id.getName().equals( "sample")) {
-				
-				Sample s = new Sample( id, idRef, objects );
-				s.generate( book, language );
-				
-			} else if (id.getName().equals( "viterbi")) {
-				
-				ForwardBackward f = new ForwardBackward( id, idRef, objects );
-				f.name += "_recurse";
-				f.outputtable = true;
-				f.generate( book, language );
-				
-				Sample s = new Sample( id, idRef, objects );
-				s.name += "_trace";
-				s.generate( book, language );
-								
-			} else if (id.getName().equals("code")) {
-				
-				book.add( Generator.getCode(id.getAttributeValue("id"),objects).getText() );
-				
-			} else {
-				
-				throw new Error("<codeGeneration>: Don't know how to handle child <"+e.getName()+">");
-				
-			}
-			
-			// finally, restore the object map to its original state
-			objects.clear();
-			objects.putAll( invariantObjects );
 		}
+		Parallel.run( algorithms );
 		
 		Code.emitInitCode(objects, book, "subroutines", "subroutines");
 		Code.emitInitCode(objects, book, "declarations", "header-funcdecl");
@@ -178,11 +320,14 @@ public class CodeGeneration {
 		book.closeScope("header-classdef");
 		book.closeScope("header-includes");
 		
-		// Finished - write code
+	}
+	
+	
+	// Finished - write code
+	void finish() {
 		
 		System.out.println("Writing code to file '" + file + "'...");
 
-		OutputStream out;
 		String curFile = null;
 		
 		try {
@@ -193,23 +338,80 @@ public class CodeGeneration {
 				curFile = headerFile;
 			}
 
-			out = new FileOutputStream(curFile);
-			out.write( book.getContent( "_HEADER_" ).toString().getBytes() );
-
+			writeIfChanged( curFile, "_HEADER_", headerFile != null ? null : "_BODY_" );
 			if (headerFile != null) {
-				out.close();
 				curFile = file;
-				out = new FileOutputStream(curFile);
+				writeIfChanged( curFile, "_BODY_", null );
 			}
-
-			out.write( book.getContent( "_BODY_" ).toString().getBytes() );
-			out.close();
 			
 		} catch (IOException e) {
 			
 			throw new Error("<codeGeneration>: Error trying to output to file "+curFile,e);
 			
 		}
+		
+		// release the generated code
+		book = null;
+	}
+	
+	
+	// Writes the given parts of the book to a file, unless it exists and differs only in the lines stating
+	// when it was generated.  This leaves files untouched when nothing has changed, so that make does not
+	// rebuild them.  The code is streamed to a temporary file next to it, which then replaces the file or
+	// is removed.
+	void writeIfChanged( String fileName, String part, String part2 ) throws IOException {
+		
+		long[] profile = Profile.start();
+		File f = new File( fileName ).getAbsoluteFile();
+		File temp = File.createTempFile( f.getName() + ".", ".tmp", f.getParentFile() );
+		try {
+			Writer out = new BufferedWriter( new FileWriter( temp ) );
+			try {
+				book.writeContent( part, out );
+				if (part2 != null)
+					book.writeContent( part2, out );
+			} finally {
+				out.close();
+			}
+			if (f.exists() && sameExceptGenerated( f, temp ))
+				return;
+			// renameTo does not replace an existing file on every platform
+			if ((f.exists() && !f.delete()) || !temp.renameTo( f ))
+				throw new IOException( "Cannot rename " + temp + " to " + f );
+			Profile.stop( profile, "write", fileName, f.length() );
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	
+	// Returns whether the files are equal, except for the lines starting with "/* Generated "
+	static boolean sameExceptGenerated( File a, File b ) throws IOException {
+		
+		BufferedReader in1 = new BufferedReader( new FileReader( a ) );
+		BufferedReader in2 = new BufferedReader( new FileReader( b ) );
+		try {
+			while (true) {
+				String line1 = nextNotGenerated( in1 );
+				String line2 = nextNotGenerated( in2 );
+				if (line1 == null || line2 == null)
+					return line1 == line2;
+				if (!line1.equals( line2 ))
+					return false;
+			}
+		} finally {
+			in1.close();
+			in2.close();
+		}
+	}
+	
+	
+	static String nextNotGenerated( BufferedReader in ) throws IOException {
+		
+		String line;
+		do {
+			line = in.readLine();
+		} while (line != null && line.startsWith( "/* Generated " ));
+		return line;
 	}
 }
-
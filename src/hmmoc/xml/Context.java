@@ -0,0 +1,101 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import java.util.*;
+
+
+//
+// State of a compilation that changes while code is generated: the parameters and initialization
+// code blocks required by the code used so far, the global substitutions, the identifiers bound
+// in <code> objects, and the counter used to name matrices.
+//
+// Every thread works in its own context, so that <codeGeneration> units and algorithms can be
+// generated concurrently while sharing the parsed <code> objects.  The static functions of
+// HasIdentifiers, and the binding functions of Code, act on the context of the calling thread.
+//
+
+public class Context {
+
+	static ThreadLocal current = new ThreadLocal();
+
+	TreeSet parameters = new TreeSet();           // parameter ids accessed by used code objects
+	TreeSet inits = new TreeSet();                // code ids required as initializers by used code objects
+	TreeMap globalIdentifiers = new TreeMap();    // global substitutions (e.g. real type)
+	IdentityHashMap bindings = new IdentityHashMap();  // Code -> Code.Binding
+	int matrixId = 0;                             // number of next matrix
+
+
+	// Returns context of calling thread; a thread starts out with an empty one
+	public static Context get() {
+
+		Context c = (Context)current.get();
+		if (c == null) {
+			c = new Context();
+			current.set( c );
+		}
+		return c;
+	}
+
+
+	// Makes c the context of the calling thread; returns the previous one (possibly null)
+	public static Context enter( Context c ) {
+
+		Context previous = (Context)current.get();
+		current.set( c );
+		return previous;
+	}
+
+
+	// Returns new context with the same global substitutions, for generating code independently
+	public Context fork() {
+
+		Context c = new Context();
+		c.globalIdentifiers.putAll( globalIdentifiers );
+		return c;
+	}
+
+
+	// Takes over the initialization blocks required by the code generated in a forked context.
+	// (Parameters are not taken over; these are collected and consumed per function.)
+	public void join( Context c ) {
+
+		inits.addAll( c.inits );
+	}
+
+
+	// Returns binding state of code object in this context
+	Code.Binding getBinding( Code code ) {
+
+		Code.Binding b = (Code.Binding)bindings.get( code );
+		if (b == null) {
+			b = code.new Binding();
+			bindings.put( code, b );
+		}
+		return b;
+	}
+
+
+	// Returns unique number for a matrix
+	public int nextMatrixId() {
+
+		return matrixId++;
+	}
+
+}
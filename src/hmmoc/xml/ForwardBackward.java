@@ -39,6 +39,7 @@ import hmmoc.code.Text;
 public class ForwardBackward {
 	
 	String id;
+	String element;
 	
 	HMM hmm;
 	String hmmid;
@@ -51,6 +52,15 @@ public class ForwardBackward {
 	boolean baumwelchEmissions;
 	boolean outputtable;
         boolean cachevalues = true;
+	boolean checkpoint;        // memory="checkpoint": returned table, or Baum-Welch input table, is checkpointed
+	boolean block = false;     // generate the function that recomputes a block of a checkpointed table
+	boolean linear;            // memory="linear": Baum-Welch counts are propagated forward, without input table
+	boolean pointers;          // traceback="pointers": Viterbi returns a table of traceback pointers
+	boolean stream;            // stream="yes": a class that runs the forward recursion over pushed symbols
+	int lag;                   // lag="...": the stream also smooths the posteriors this many positions back
+	boolean smoother = false;  // generate the backward pass of the fixed-lag smoother of a stream
+	boolean parallel;          // parallel="yes": the stream can also push chunks of symbols in parallel
+	boolean batch;             // batch="yes": also a function that runs the recursion over many sequences
 	String name;
 
         boolean optimizeFirstAssignment = true;
@@ -59,6 +69,7 @@ public class ForwardBackward {
 	public ForwardBackward( Element elem, TreeMap idRef, TreeMap objs ) {
 		
 		id = elem.getAttributeValue("id");
+		element = elem.getName();
 		
 		if (elem.getName().equals("forward")) {
 			forward = true;
@@ -115,6 +126,79 @@ public class ForwardBackward {
 		    throw new Error("<"+elem.getName()+">: Attribute 'cacheValues' has value '"+cacheValues+"', expected 'yes' or 'no'");
 		}
 
+		String memory = elem.getAttributeValue("memory");
+		checkpoint = false;
+		linear = false;
+		if ((memory == null) || (memory.equals("full"))) {
+		    // default
+		} else if (memory.equals("checkpoint")) {
+		    checkpoint = true;
+		} else if (memory.equals("linear")) {
+		    linear = true;
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'memory' has value '"+memory+"', expected 'full', 'checkpoint' or 'linear'");
+		}
+
+		String traceback = elem.getAttributeValue("traceback");
+		pointers = false;
+		if ((traceback == null) || (traceback.equals("values"))) {
+		    // default
+		} else if (traceback.equals("pointers")) {
+		    if (viterbi) {
+			pointers = true;
+		    } else {
+			System.out.println("<"+elem.getName()+"> recursion has no traceback; attribute 'traceback' ignored.");
+		    }
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'traceback' has value '"+traceback+"', expected 'values' or 'pointers'");
+		}
+
+		String streamAttr = elem.getAttributeValue("stream");
+		if ((streamAttr == null) || (streamAttr.equals("no"))) {
+		    stream = false;
+		} else if (streamAttr.equals("yes")) {
+		    stream = true;
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'stream' has value '"+streamAttr+"', expected 'yes' or 'no'");
+		}
+
+		String lagAttr = elem.getAttributeValue("lag");
+		lag = 0;
+		if (lagAttr != null) {
+		    try {
+			lag = Integer.parseInt( lagAttr );
+		    } catch (NumberFormatException e) {
+			lag = 0;
+		    }
+		    if (lag <= 0) {
+			throw new Error("<"+elem.getName()+">: Attribute 'lag' has value '"+lagAttr+"', expected a positive number");
+		    }
+		    if (!stream) {
+			throw new Error("<"+elem.getName()+">: Attribute 'lag' requires stream='yes'");
+		    }
+		}
+
+		String parallelAttr = elem.getAttributeValue("parallel");
+		if ((parallelAttr == null) || (parallelAttr.equals("no"))) {
+		    parallel = false;
+		} else if (parallelAttr.equals("yes")) {
+		    parallel = true;
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'parallel' has value '"+parallelAttr+"', expected 'yes' or 'no'");
+		}
+		if (parallel && (!stream || lag > 0)) {
+		    throw new Error("<"+elem.getName()+">: Attribute 'parallel' requires stream='yes', and no lag");
+		}
+
+		String batchAttr = elem.getAttributeValue("batch");
+		if ((batchAttr == null) || (batchAttr.equals("no"))) {
+		    batch = false;
+		} else if (batchAttr.equals("yes")) {
+		    batch = true;
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'batch' has value '"+batchAttr+"', expected 'yes' or 'no'");
+		}
+
 		hmm = CompileUtils.getHMM(elem,idRef,objs);
 		
 		banding = CompileUtils.getBanding(elem,idRef,objs);
@@ -138,14 +222,395 @@ public class ForwardBackward {
 	}
 	
 	
+	// True if this recursion returns a checkpointed table, which needs a block function
+	public boolean returnsCheckpoints() {
+
+		return checkpoint && outputtable && !block;
+
+	}
+
+
+	// Turns this into the function that recomputes a block of the checkpointed table returned by the
+	// recursion 'recursion'.  The function writes into the table, and does no Baum-Welch counting.
+	public void setBlock( String recursion ) {
+
+		block = true;
+		outputtable = true;
+		baumwelch = baumwelchEmissions = baumwelchTransitions = false;
+		name = recursion + "_block";
+
+	}
+
+
+	// True if this recursion is a stream with a fixed-lag smoother, which needs a backward pass
+	public boolean smoothes() {
+
+		return stream && lag > 0 && !smoother;
+
+	}
+
+
+	// Turns this into the backward pass of the smoother of stream 'recursion', a member function that runs
+	// over a block of positions, starting from a column in which all states are set to one
+	public void setSmoother( String recursion ) {
+
+		smoother = true;
+		forward = false;
+		name = recursion;
+
+	}
+
+
+	// Parameters of the block function, given the parameters of the recursion
+	String blockParameters( String pars ) {
+
+		pars = Code.addParameter( pars, getCode("hmlDPTableBlockParameter").bind(hmmid+"Checkpoint").toString() );
+		pars = Code.addParameter( pars, "int iBlockFirst" );
+		return Code.addParameter( pars, "int iBlockLast" );
+
+	}
+
+
+	// Emits the class that recomputes blocks of the returned table by calling the block function, and
+	// attaches an instance, holding copies of the parameters, to the checkpointed tables
+	void initRecompute( Book book, String pars, Map stateCodes ) {
+
+		StringBuffer members = new StringBuffer();
+		StringBuffer inits = new StringBuffer("pTable(pTable)");
+		String recomputePars = getCode("hmlDPTableBlockParameter").bind(hmmid+"Checkpoint").toString().trim();
+		String args = "*ppOutTable";
+		StringTokenizer t = new StringTokenizer( pars, "," );
+		while (t.hasMoreTokens()) {
+			String par = t.nextToken().trim();
+			String parName = HasIdentifiers.stripTypesFromParameters( par );
+			if (members.length() > 0)
+				members.append( "\n" );
+			members.append( par + ";" );
+			inits.append( ", " + parName + "(" + parName + ")" );
+			recomputePars += ", " + par;
+			args += ", " + parName;
+		}
+		String blockArgs = HasIdentifiers.stripTypesFromParameters( blockParameters( pars ) );
+		book.addInitText( "function", getCode("hmlCheckpointRecompute").bind( name, hmmid, members.toString(),
+				recomputePars, inits.toString(), blockArgs ) );
+		book.add( getCode("hmlCheckpointAttach").bind( name, args ) );
+		Iterator i = stateCodes.values().iterator();
+		while (i.hasNext()) {
+			StateCode stateCode = (StateCode)i.next();
+			if (stateCode.isCheckpointed()) {
+				book.add( getCode("hmlCheckpointAttachTable").bind( stateCode.getCliqueId() ) );
+			}
+		}
+
+	}
+
+
+	// True if the self-referencing component contains a transition between its own states
+	boolean hasSelfLoop( Clique clique, List srStates ) {
+
+		Iterator i = srStates.iterator();
+		while (i.hasNext()) {
+			Iterator t = clique.selfStateTransitions( (String)i.next(), forward, objects ).iterator();
+			while (t.hasNext()) {
+				if (srStates.contains( ((Transition)t.next()).getFrom(forward) ))
+					return true;
+			}
+		}
+		return false;
+
+	}
+	
+	
+	// True if the range of the clique starts relative to the end of the sequence.  A streaming recursion
+	// computes these cliques only when asked for the probability of the symbols so far
+	boolean isEndClique( Clique clique ) {
+
+		return clique.range.startsAtEnd( hmm.numOutputs-1 );
+
+	}
+
+
+	// Checks that the HMM can be run over a stream of symbols
+	void checkStream() {
+
+		if (!forward || baumwelch || outputtable || checkpoint || linear) {
+			throw new Error("<"+element+"> '"+id+"': stream='yes' requires a <forward> recursion without Baum-Welch or output table");
+		}
+		if (hmm.numOutputs != 1 || banding != null) {
+			throw new Error("<"+element+"> '"+id+"': stream='yes' requires an HMM with a single output, and no banding");
+		}
+		for (int i=0; i<hmm.emissions.length; i++) {
+			if (((Emission)objects.get( hmm.emissions[i] )).outputVec.v[0] > 1) {
+				throw new Error("<"+element+"> '"+id+"': stream='yes' requires that transitions emit at most one symbol");
+			}
+		}
+		// Cliques at the end are single positions, and others must not stop short of the end
+		for (int blIdx = 0; blIdx < hmm.blocks.length; blIdx++) {
+			Clique clique = (Clique)objects.get( hmm.blocks[blIdx] );
+			boolean ok;
+			if (isEndClique( clique )) {
+				ok = clique.range.endsAtEnd(0) && clique.range.from[0] == 0 && clique.range.to[0] == 0;
+			} else {
+				ok = !clique.range.endsAtEnd(0) || clique.range.to[0] == 0;
+			}
+			if (!ok) {
+				throw new Error("<"+element+"> '"+id+"': stream='yes' cannot be used, as the range of clique '"+clique.id+"' depends on the sequence length");
+			}
+		}
+
+	}
+
+
+	// With realtype="scaled", every column of the slowest variable is scaled by the sum of the previous
+	// one.  This requires that all cliques are computed column by column in a single loop, and that
+	// transitions reach back at most one column
+	void checkScaled() {
+
+		if (viterbi || checkpoint || linear || stream) {
+			throw new Error("<"+element+"> '"+id+"': realtype='scaled' requires a <forward> or <backward> recursion without checkpoints, memory='linear' or stream");
+		}
+		boolean banded = (banding != null);
+		for (int blIdx = 0; blIdx < hmm.blocks.length; blIdx++) {
+			Clique clique = (Clique)objects.get( hmm.blocks[blIdx] );
+			banded |= (clique.banding != null || clique.linkedbanding != null);
+		}
+		if (banded) {
+			throw new Error("<"+element+"> '"+id+"': realtype='scaled' cannot be used with banding");
+		}
+		int slowest = hmm.numOutputs-1;
+		for (int i=0; i<hmm.emissions.length; i++) {
+			if (((Emission)objects.get( hmm.emissions[i] )).outputVec.v[slowest] > 1) {
+				throw new Error("<"+element+"> '"+id+"': realtype='scaled' requires that transitions emit at most one symbol of the slowest output");
+			}
+		}
+
+	}
+
+
+	// Cliques kept by a stream: all but those at the end
+	List streamCliques() {
+
+		List cliques = new ArrayList();
+		for (int blIdx = 0; blIdx < hmm.blocks.length; blIdx++) {
+			Clique clique = (Clique)objects.get( hmm.blocks[blIdx] );
+			if (!isEndClique( clique ))
+				cliques.add( clique );
+		}
+		return cliques;
+
+	}
+
+
+	// Parameters of an output, as they appear in a parameter list
+	String outputParameters( Output o ) {
+
+		String pars = "";
+		Iterator i = o.parameterList.iterator();
+		while (i.hasNext()) {
+			Code c = (Code)objects.get( (String)i.next() );
+			pars = Code.addParameter( pars, c.getText().toString().trim() );
+		}
+		return pars;
+
+	}
+
+
+	// Emits the stream class, given the parameters of the recursion.  The parameters of the output are
+	// those of push(); the others are kept as members.  The class keeps the last 'window' symbols, which
+	// the next position looks back to, and with a lag also those of the positions not yet smoothed
+	void initStream( Book book, String pars, int window ) {
+
+		Output o = (Output)objects.get( hmm.outputs[0] );
+		String pushPars = outputParameters( o );
+		List pushNames = Arrays.asList( HasIdentifiers.stripTypesFromParameters( pushPars ).split(",") );
+		if (!pushNames.contains( o.seqId ) || !pushNames.contains( o.lenId )) {
+			throw new Error("<"+element+"> '"+id+"': stream='yes' requires the sequence and length of output '"+o.id+"' to be parameters");
+		}
+		StringBuffer members = new StringBuffer();
+		StringBuffer inits = new StringBuffer();
+		StringBuffer clearEnd = new StringBuffer();
+		String streamPars = "";
+		StringTokenizer t = new StringTokenizer( pars, "," );
+		while (t.hasMoreTokens()) {
+			String par = t.nextToken().trim();
+			String parName = HasIdentifiers.stripTypesFromParameters( par );
+			if (pushNames.contains( parName ))
+				continue;
+			members.append( par + ";\n" );
+			inits.append( parName + "(" + parName + "), " );
+			streamPars = Code.addParameter( streamPars, par );
+		}
+		String mode = "Folded";
+		String api = "";
+		String smoothMembers = "";
+		if (lag > 0) {
+			// ring of the columns not yet smoothed, for the forward and the backward pass
+			mode = "Ring";
+			api = getCode("hmlStreamSmoothApi").bind( String.valueOf( lag ) ).toString();
+			smoothMembers = getCode("hmlStreamSmoothPrivate").bind( hmmid ).toString();
+			String ring = String.valueOf( 2*lag+1 );
+			inits.append( "dp(" + ring + "), dpBackward(" + ring + "), iSmoothed(0)" );
+			window += 2*lag;
+		} else {
+			inits.append( "dp(" + hmm.getLengthIds("", true) + ")" );
+		}
+		if (parallel) {
+			api = getCode("hmlStreamParallelApi").bind( pushPars ).toString();
+			smoothMembers = getCode("hmlStreamParallelPrivate").bind( pushPars ).toString();
+		}
+		// the end cliques are recomputed for every request
+		for (int blIdx = 0; blIdx < hmm.blocks.length; blIdx++) {
+			Clique clique = (Clique)objects.get( hmm.blocks[blIdx] );
+			if (isEndClique( clique ))
+				clearEnd.append( getCode("hmlStreamClearEnd").bind( clique.id ).toString() );
+		}
+		book.addInitText( "header-funcdecl", getCode("hmlStreamClass").bind( name, hmmid, streamPars, pushPars,
+				members.toString(), o.lenId, mode, api, smoothMembers, String.valueOf( hmm.states.length ) ) );
+		book.addInitText( "function", getCode("hmlStreamMembers").bind( name, hmmid, streamPars, inits.toString(),
+				o.lenId, pushPars, o.seqId, String.valueOf( window ), clearEnd.toString() ) );
+		if (lag > 0) {
+			book.addInitText( "function", getCode("hmlStreamSmoothMembers").bind( name, hmmid, String.valueOf( lag ) ) );
+		} else {
+			book.addInitText( "function", getCode("hmlStreamExtend").bind( name ) );
+		}
+		if (parallel) {
+			// the values in a column at positions away from the ends of the sequence
+			int values = 0;
+			Iterator i = streamCliques().iterator();
+			while (i.hasNext()) {
+				Clique clique = (Clique)i.next();
+				if (!clique.range.isFixedRange( 0 ))
+					values += clique.states.size();
+			}
+			book.addInitText( "function", getCode("hmlStreamParallelMembers").bind( name, hmmid, pushPars,
+					HasIdentifiers.stripTypesFromParameters( pushPars ), o.seqId, o.lenId, String.valueOf( window ),
+					String.valueOf( values ), HasIdentifiers.stripTypesFromParameters( streamPars ) ) );
+		}
+
+	}
+
+
+	// Declares the table of a recursion with batch="yes", which reuses the table passed by the caller if it is
+	// large enough.  Only the slowest length is folded, so the others decide
+	void initWorkspace( Book book, String tableMode ) {
+
+		StringBuffer small = new StringBuffer();
+		for (int i=0; i<hmm.numOutputs-1; i++) {
+			String len = ((Output)objects.get( hmm.outputs[i] )).lenId;
+			small.append( " || (*ppWorkspace)->" + len + " < " + len );
+		}
+		StringBuffer clear = new StringBuffer();
+		for (int blIdx = 0; blIdx < hmm.blocks.length; blIdx++) {
+			clear.append( getCode("hmlDPTableWorkspaceClear").bind( hmm.blocks[blIdx] ).toString() );
+		}
+		book.addInitText( "init", getCode("hmlDPTableWorkspace").bind( hmmid+tableMode,
+				hmm.getLengthIds("", true), small.toString(), clear.toString() ) );
+
+	}
+
+
+	// Emits the function that runs the recursion over arrays of sequences, given the parameters of the
+	// recursion.  The parameters of the outputs become arrays, with an element for every sequence
+	void initBatch( Book book, String pars, String tableMode ) {
+
+		List outputNames = new ArrayList();
+		for (int i=0; i<hmm.numOutputs; i++) {
+			String outputPars = outputParameters( (Output)objects.get( hmm.outputs[i] ) );
+			if (outputPars.length() == 0) {
+				throw new Error("<"+element+"> '"+id+"': batch='yes' requires the outputs to have parameters");
+			}
+			outputNames.addAll( Arrays.asList( HasIdentifiers.stripTypesFromParameters( outputPars ).split(",") ) );
+		}
+		String countName = HasIdentifiers.stripTypesFromParameters( getCode("hmlCountParameter").bind(hmmid).toString() ).trim();
+		StringBuffer batchPars = new StringBuffer();
+		StringBuffer args = new StringBuffer();
+		StringTokenizer t = new StringTokenizer( pars, "," );
+		while (t.hasMoreTokens()) {
+			String par = t.nextToken().trim();
+			String parName = HasIdentifiers.stripTypesFromParameters( par ).trim();
+			if (batchPars.length() > 0) {
+				batchPars.append( "," );
+				args.append( ", " );
+			}
+			if (outputNames.contains( parName )) {
+				// a reference becomes a pointer to the first element
+				String type = par.substring( 0, par.lastIndexOf( parName ) ).trim();
+				if (type.endsWith("&"))
+					type = type.substring( 0, type.length()-1 ).trim();
+				batchPars.append( type + "* " + parName );
+				args.append( parName + "[iSeq]" );
+			} else if (baumwelch && parName.equals( countName )) {
+				batchPars.append( par );
+				args.append( "bwThread" );
+			} else {
+				batchPars.append( par );
+				args.append( parName );
+			}
+		}
+		String counts = "", thread = "", merge = "";
+		if (baumwelch) {
+			counts = getCode("hmlBatchCounts").bind( hmmid ).toString();
+			thread = getCode("hmlBatchThreadCounts").bind( hmmid ).toString();
+			merge = getCode("hmlBatchMergeCounts").getText().toString();
+		}
+		book.addInitText( "function", getCode("hmlBatch").bind( name, hmmid+tableMode, batchPars.toString(),
+				args.toString(), counts, thread, merge ) );
+		book.addInitText( "header-funcdecl", getCode("hmlBatchDeclaration").bind( name, batchPars.toString() ) );
+
+	}
+
+
 	public void generate( Book book, String language) {
 		
+		// Checkpointed tables are filled by a recursion writing a table, and read back by one that doesn't
+		boolean checkpointTable = checkpoint && outputtable;
+		if (checkpoint) {
+			if (!outputtable && !baumwelch) {
+				throw new Error("<"+element+"> '"+id+"': memory='checkpoint' requires outputTable='yes' or Baum-Welch");
+			}
+			if (banding != null || hmm.numOutputs == 0) {
+				throw new Error("<"+element+"> '"+id+"': memory='checkpoint' cannot be used with banding, or without outputs");
+			}
+		}
+		if (linear && (!baumwelch || !forward)) {
+			throw new Error("<"+element+"> '"+id+"': memory='linear' requires a <forward> recursion with Baum-Welch");
+		}
+		if (pointers && checkpoint) {
+			throw new Error("<"+element+"> '"+id+"': traceback='pointers' cannot be combined with memory='checkpoint'");
+		}
+		if (stream && !smoother) {
+			checkStream();
+		}
+		if (batch && (outputtable || (baumwelch && !linear) || checkpoint || stream || hmm.numOutputs == 0)) {
+			throw new Error("<"+element+"> '"+id+"': batch='yes' requires an HMM with outputs, and a recursion without input or output table, checkpoints or stream");
+		}
+		boolean scaled = StateCode.isScaled( hmm );
+		if (scaled) {
+			checkScaled();
+		}
+		// Integer scores form the max-plus algebra, in which sums are maxima
+		if (!viterbi && "intscore".equals( HasIdentifiers.getGlobalIdentifier("_realtype_") )) {
+			throw new Error("<"+element+"> '"+id+"': realtype='intscore' can only be used with <viterbi>");
+		}
+		// With traceback pointers, the Viterbi probabilities themselves are not returned
+		boolean valueTable = outputtable && !pointers;
+		String tableMode = checkpointTable ? "Checkpoint" : (valueTable ? "" : "Folded");
+		boolean ring = stream && lag > 0;
+		if (ring) {
+			tableMode = "Ring";
+		}
+		
 		book.openLinearScopeAtInit("dptableclassdef",5,"header-classdef");
 		
 		book.openLinearScopeAtInit("baumwelchclassdef",4,"header-classdef");
 		
 		book.openLinearScopeAtInit("dptableclassmemberdef",3,"subroutines");
 		
+		if (pointers) {
+			book.openLinearScopeAtInit("tracebackclassdef",5,"header-classdef");
+			book.openLinearScopeAtInit("tracebackclassmemberdef",3,"subroutines");
+		}
+		
 		book.add( getCode("hmlHMMIdentifiers").bind(hmmid,
 				hmm.getStateIds(),
 				hmm.getEmissionIds(),
@@ -171,10 +636,11 @@ public class ForwardBackward {
 		// Create code to access 'to' and 'from' blocks (goes here because of re-use of declarations between from and to parts)
 		Map stateCodeFroms = new TreeMap();
 		Map stateCodeTos = new TreeMap();
+		Map stateCodePointers = new TreeMap();
 		for (int blIdx = 0; blIdx < hmm.sortedBlocks.length; blIdx++) {
 			// Give label where to put temporary pointer to DP position (unique to each state used, either for reading or writing)
 			// In case the output table is not returned, only store 2 rows of the slowest variable; do a "mod 2" before accessing
-			boolean fold = !outputtable;
+			boolean fold = !valueTable;
 			Clique clique = (Clique)objects.get(hmm.blocks[blIdx]);
 			if (hmm.outputs.length == 0 || clique.range.isFixedRange( hmm.outputs.length-1 )) {
 				// But, only fold when the slowest variable is actually looping
@@ -182,14 +648,27 @@ public class ForwardBackward {
 			}
 			
 			stateCodeFroms.put( hmm.blocks[blIdx],
-					new StateCode(hmm, book, objects, clique, "declare", forward, fold, !outputtable, false) );
+					new StateCode(hmm, book, objects, clique, "declare", forward, fold, !valueTable, false, checkpointTable) );
 			stateCodeTos.put( hmm.blocks[blIdx],
-					new StateCode(hmm, book, objects, clique, "declare", forward, fold, !outputtable, false) );
+					new StateCode(hmm, book, objects, clique, "declare", forward, fold, !valueTable, false, checkpointTable) );
+			if (ring) {
+				((StateCode)stateCodeFroms.get( hmm.blocks[blIdx] )).setRing();
+				((StateCode)stateCodeTos.get( hmm.blocks[blIdx] )).setRing();
+			}
+			if (pointers) {
+				StateCode pointerCode = new StateCode(hmm, book, objects, clique, "declare", forward, false, false, true);
+				pointerCode.setTraceback();
+				stateCodePointers.put( hmm.blocks[blIdx], pointerCode );
+			}
 		}
 		
 		// Create the class definition of the DP table (using a dummy position code, to get access to getLen())
 		((StateCode)stateCodeFroms.get(hmm.blocks[0])).initClass(new PositionCode(hmm,book,objects),
 				"dptableclassdef", "dptableclassmemberdef", hmmid);
+		if (pointers) {
+			((StateCode)stateCodePointers.get(hmm.blocks[0])).initClass(new PositionCode(hmm,book,objects),
+					"tracebackclassdef", "tracebackclassmemberdef", hmmid);
+		}
 		
 		// Create code for numerical temporary variables
 		TemporariesCode temporariesCode = new TemporariesCode( hmm, book, "declare" );
@@ -203,11 +682,43 @@ public class ForwardBackward {
 		   lengths = "(" + lengths + ")";
 		   book.addInitText( "init", getCode("hmlDPTableInit").bind(hmmid,lengths) );
 		   */
-		StateCode.initDPTable("init", hmm, book, objects, !outputtable);
+		if (block) {
+			book.addInitText( "init", getCode("hmlDPTableBlockInput").bind(hmmid+tableMode) );
+		} else if (smoother) {
+			book.addInitText( "init", getCode("hmlStreamBackwardTable").bind( hmmid,
+					((Output)objects.get( hmm.outputs[0] )).lenId ) );
+		} else if (batch) {
+			initWorkspace( book, tableMode );
+		} else if (!stream) {
+			// (the table of a stream is a member of its class)
+			StateCode.initDPTable("init", hmm, book, objects, tableMode);
+			if (pointers) {
+				StateCode.initTracebackTable("init", hmm, book, objects);
+			}
+			if (checkpointTable) {
+				Iterator i = stateCodeTos.values().iterator();
+				while (i.hasNext()) {
+					((StateCode)i.next()).initCheckpoint( "init", forward );
+				}
+			}
+		}
 		
-		if (baumwelch) {
+		if (scaled) {
+			// Declare the column sum and scale, and the log scales kept in the table
+			book.addInitText( "declare", getCode("hmlScaledDeclare").getText() );
+			book.addInitText( "init", getCode("hmlScaledInit").bind( ((Output)objects.get( hmm.outputs[hmm.numOutputs-1] )).lenId ) );
+		}
+		
+		if (linear) {
+			// Declare the accumulator of expected counts
+			int maxStates = 0;
+			for (int blIdx = 0; blIdx < hmm.sortedBlocks.length; blIdx++) {
+				maxStates = Math.max( maxStates, ((Clique)objects.get(hmm.blocks[blIdx])).states.size() );
+			}
+			book.addInitText( "init", getCode("hmlForwardCountsInit").bind( hmmid, Integer.toString(maxStates) ) );
+		} else if (baumwelch) {
 			// Declare secondary (signified by 'true') DP table
-			StateCode.initDPInput("init", hmmid, book, objects, true );
+			StateCode.initDPInput("init", hmmid+(checkpoint ? "Checkpoint" : ""), book, objects, true );
 			
 			// Get FW/BW probability from table
 			Clique firstClique = (Clique)objects.get( hmm.blocks[(forward ? 0 : hmm.sortedBlocks.length-1)] );
@@ -218,8 +729,15 @@ public class ForwardBackward {
 			StateCode firstStateCode = new StateCode(hmm, book, objects, firstClique, "declare", forward, false, false, false );
 			firstStateCode.initSecondary(startPositionCode, temporariesCode, "getprobability");
 			String firstStateRef = firstStateCode.getState( firstState, "", 1 );
-			book.add( new Text(temporariesCode.getTempProb(2) + " = " + firstStateRef + ";\n") );
-			book.add( getCode("hmlScaleCount").bind(hmmid, temporariesCode.getTempProb(2) ) );
+			if (scaled) {
+				// The counts of each column are normalized as they are collected
+				book.addInitText( "declare", getCode("hmlScaledCountDeclare").getText() );
+				book.add( getCode("hmlScaledLikelihood").bind( firstStateRef,
+						startPositionCode.getPos( hmm.numOutputs-1 ) ) );
+			} else {
+				book.add( new Text(temporariesCode.getTempProb(2) + " = " + firstStateRef + ";\n") );
+				book.add( getCode("hmlScaleCount").bind(hmmid, temporariesCode.getTempProb(2) ) );
+			}
 			book.closeScope("getprobability");
 		}
 		
@@ -228,9 +746,15 @@ public class ForwardBackward {
 		
 		// Declare symbols (No need to init later; done by emissionCode.init)
 		SymbolCode symbolCode = new SymbolCode( hmm, book, objects, "declare", "init" );
+		if (stream) {
+			symbolCode.setStream();
+		}
 		
 		// Declare emissions
 		EmissionCode emissionCode = new EmissionCode( hmm, book, objects, forward, false, "declare", cachevalues );
+		if (scaled) {
+			emissionCode.setScale( "iColumnScale" );
+		}
 		
 		// Declare count code for Baum-Welch
 		CountCode countCode = new CountCode( hmm, book, symbolCode, "declare", "baumwelchclassdef", hmmid, baumwelchEmissions, baumwelchTransitions );
@@ -242,6 +766,10 @@ public class ForwardBackward {
 		boolean firstClique = true;
 		boolean pastBandedClique = false;
 		
+		if (smoother) {
+			StateCode.fillStreamColumn( streamCliques(), hmm, book, objects );
+		}
+		
 		// Loop over all receiving blocks
 		int step = (forward ? 1 : -1);
 		for (int blockCount = (forward ? 0 : hmm.sortedBlocks.length-1);
@@ -250,6 +778,10 @@ public class ForwardBackward {
 			
 			Clique clique = (Clique)objects.get(hmm.blocks[blockCount]);
 			
+			// Tables of cliques at fixed positions along the slowest variable are kept in full
+			if (block && !((StateCode)stateCodeTos.get( clique.id )).isCheckpointed())
+				continue;
+			
 			if (firstClique || banding != clique.linkedbanding /* || banding==null */ ) {
 				
 				// close previous scope
@@ -277,6 +809,19 @@ public class ForwardBackward {
 				// Create (outer) position code.  Add position loop code to book.
 				book.openScope("position");
 				outerPositionCode = new PositionCode( hmm, book, objects );
+				if (block)
+					outerPositionCode.setBlock( "iBlockFirst", "iBlockLast" );
+				if (smoother)
+					outerPositionCode.setBlock( "iBlockFirst", "iBlockLast", "iBlockLast+1" );
+				else if (stream)
+					outerPositionCode.setBlock( "iBlockFirst", "iBlockLast", "bStreamEnd ? -1 : iBlockFirst-1" );
+				if (scaled) {
+					// Record the scale of every column and scale the next one by its sum; for Baum-Welch,
+					// compute the factor that undoes the scaling of the counts of the column
+					String pos = ((Output)objects.get( hmm.outputs[hmm.numOutputs-1] )).getPosId();
+					outerPositionCode.setColumnCode( baumwelch ? getCode("hmlScaledCountScale").bind( pos ) : null,
+													 getCode("hmlScaledColumnEnd").bind( pos ) );
+				}
 				outerPositionCode.init( allrange, forward, "position", clique );
 
 				// Open scope to hold slow variable code, to clear folded DP table columns
@@ -300,6 +845,11 @@ public class ForwardBackward {
 
 			book.openScope("innersymbol");
 			symbolCode.init( positionCode, positionCode.range, "innersymbol");
+			if (stream && !smoother) {
+				// pushed symbols extend all cliques but those at the end, which are computed on request
+				book.addInitText( "innersymbol", getCode("hmlConditional").bind( isEndClique( clique ) ? "bStreamEnd" : "!bStreamEnd" ) );
+				book.addExitText( "innersymbol", getCode("hmlConditionalEnd").getText() );
+			}
 			
 			// Get range for this clique (and initialize it as code generator) (for SymbolCode later)
 			//RangeCode rangeCode = new RangeCode( clique.range );
@@ -317,8 +867,22 @@ public class ForwardBackward {
 			// symbol (last): slowvar?  sets prevSlowVar
 			stateCode.initTo(positionCode, temporariesCode, "dptableclassdef","dptableclassmemberdef","init","statevector", "slowvar", "slowvar");  // was slowvar
 			
+			// Get code to record the transitions taken out of the states in this clique
+			StateCode pointerCode = null;
+			if (pointers) {
+				pointerCode = (StateCode)stateCodePointers.get( clique.id );
+				pointerCode.initTraceback(positionCode, "tracebackclassdef", "tracebackclassmemberdef", "init", "statevector");
+				// Dummy access, to declare the table even if no transitions leave this clique
+				pointerCode.getState( "", null, 1, true );
+			}
+			
+			if (linear) {
+				// Start (and finally normalize) the counts of all states at this position
+				stateCode.getCounts( (State)objects.get( clique.states.get(0) ), true );
+			}
+			
 			StateCode secondaryStateCode = null;
-			if (baumwelch) {
+			if (baumwelch && !linear) {
 				// Get code to access states in secondary DP table
 				secondaryStateCode = new StateCode(hmm, book, objects, clique, "declare", forward, false, false, false );
 				secondaryStateCode.initSecondary(positionCode, temporariesCode, "statevector");
@@ -373,6 +937,12 @@ public class ForwardBackward {
 							}
 							
 							//book.add( new Text( "/* doing self-ref component "+srStates+" */\n" ) );
+							if (linear && hasSelfLoop( clique, srStates )) {
+								throw new Error("<"+element+"> '"+id+"': memory='linear' cannot be used with loops of silent states");
+							}
+							if (pointers && srStates.size() >= 2) {
+								throw new Error("<"+element+"> '"+id+"': traceback='pointers' cannot be used with loops of silent states");
+							}
 							// Loop over all states in component, and get all non-self-ref transitions into those states
 							Iterator srStateIter = srStates.iterator();
 							int vectorIdx = 0;
@@ -406,7 +976,21 @@ public class ForwardBackward {
 										// We're reading, so don't initialize
 										String fromStateRef = stateCodeFrom.getState( fromState, "", 1);
 										String transRef = transitionCode.getText( t, book, symbolCode, positionCode, emissions[emIdx], forward, false );
-										book.add( getCode(viterbi ? "hmlViterbi" : "hmlFWBW").bind(tempVecEntryRef, transRef + "*" + fromStateRef) );
+										if (linear) {
+											// the from state is at the current position, so finish its counts first
+											book.add( getCode("hmlForwardCountFinish").bind( String.valueOf(fromState.number), fromStateRef ) );
+										}
+										if (pointers) {
+											book.add( getCode("hmlViterbiPointer").bind(tempVecEntryRef, transRef + "*" + fromStateRef,
+													pointerCode.getState( srToState, "", 1, true ), String.valueOf(t.number)) );
+										} else {
+											book.add( getCode(viterbi ? "hmlViterbi" : "hmlFWBW").bind(tempVecEntryRef, transRef + "*" + fromStateRef) );
+										}
+										if (linear) {
+											// as in two-pass Baum-Welch, silent transitions within a clique are not counted
+											book.add( getCode("hmlForwardCount").bind( String.valueOf(srToState.number),
+													transRef + "*" + fromStateRef, stateCodeFrom.getCounts( fromState, false ), "-1", "-1" ) );
+										}
 									}
 								}
 								vectorIdx += 1;
@@ -569,9 +1153,12 @@ public class ForwardBackward {
 							// fromStates.length determines whether temporary variable is used or not.
 							String stateRef = stateCode.getState( toStates[stIdx], "tostate", fromStates.length, true );
 							String secondaryStateRef = null;
-							if (baumwelch) {
+							if (baumwelch && !linear) {
 								// Would it help to have temporaries here? (What about named temporaries?)
 								secondaryStateRef =  secondaryStateCode.getState( toStates[stIdx], "tostate", 1);
+								if (scaled) {
+									secondaryStateRef += " * iCountScale";
+								}
 							}
 							//book.add( new Text( "/* doing tostate "+toStates[stIdx].id+" */\n" ) );
 
@@ -591,34 +1178,54 @@ public class ForwardBackward {
 									String transRef = transitionCode.getText( fromTransitions[trIdx], book, symbolCode,
 											positionCode, emissions[emIdx], forward, false );
 									String resultRef = "((" + transRef + ")*(" + emRef + "))*" + fromStateRef;
+									// Temporary for the counts; for scaled tables a double, which keeps the recursion in double precision
+									String countTemp = null;
 									if (baumwelch) {
 										// Get result in temporary variable
-										resultRef = temporariesCode.getTempProb(1) + " = " + resultRef;
+										countTemp = scaled && !linear ? "iScaledCount" : temporariesCode.getTempProb(1);
+										resultRef = countTemp + " = " + resultRef;
 									}
-									if ( !stateTouched.containsKey(toStates[stIdx]) && optimizeFirstAssignment ) {
+									if (pointers) {
+									    // also record the transition, if it is the best so far
+									    String pointerRef = pointerCode.getState( toStates[stIdx], "", 1, true );
+									    String transNumber = String.valueOf( fromTransitions[trIdx].number );
+									    if ( !stateTouched.containsKey(toStates[stIdx]) && optimizeFirstAssignment ) {
+										book.add( getCode("hmlShortCircuitPointer").bind(stateRef, resultRef, pointerRef, transNumber ) );
+										stateTouched.put( toStates[stIdx], null );
+									    } else {
+										book.add( getCode("hmlViterbiPointer").bind(stateRef, resultRef, pointerRef, transNumber ) );
+									    }
+									} else if ( !stateTouched.containsKey(toStates[stIdx]) && optimizeFirstAssignment ) {
 									    // first time, a simple assignment will do
 									    book.add( getCode("hmlShortCircuit").bind(stateRef, resultRef ) );
 									    stateTouched.put( toStates[stIdx], null );
 									} else {
 									    book.add( getCode(viterbi?"hmlViterbi":"hmlFWBW").bind(stateRef, resultRef ) );
 									}
-									if (baumwelch) {
+									if (linear) {
+										// Propagate counts of from state, and count transition and emission
+										book.add( getCode("hmlForwardCount").bind( String.valueOf(toStates[stIdx].number),
+												temporariesCode.getTempProb(1),
+												stateCodeFrom.getCounts( fromStates[frstIdx], false ),
+												baumwelchTransitions ? countCode.getIndex( fromTransitions[trIdx], forward ) : "-1",
+												baumwelchEmissions ? countCode.getIndex( em, forward ) : "-1" ) );
+									} else if (baumwelch) {
 										// Compute count (!!! check whether we need a double or bfloat variable)
 										if (baumwelchTransitions && baumwelchEmissions) {
-											book.add( new Text(temporariesCode.getTempProb(1) + " *= " + secondaryStateRef + ";\n"));
+											book.add( new Text(countTemp + " *= " + secondaryStateRef + ";\n"));
 											// Add to posterior transition and emission counts
 											book.add( new Text(countCode.getText( fromTransitions[trIdx], forward ) + " += " +
-													temporariesCode.getTempProb(1) + ";\n"));
+													countTemp + ";\n"));
 											book.add( new Text(countCode.getText( em, forward ) + " += " +
-													temporariesCode.getTempProb(1) + ";\n"));
+													countTemp + ";\n"));
 										} else {
 											if (baumwelchTransitions) {
 												book.add( new Text(countCode.getText( fromTransitions[trIdx], forward ) + " += " +
-														temporariesCode.getTempProb(1) + " * " + secondaryStateRef + ";\n"));
+														countTemp + " * " + secondaryStateRef + ";\n"));
 											}
 											if (baumwelchEmissions) {
 												book.add( new Text(countCode.getText( em, forward ) + " += " +
-														temporariesCode.getTempProb(1) + " * " + secondaryStateRef + ";\n"));
+														countTemp + " * " + secondaryStateRef + ";\n"));
 											}
 										}
 									}
@@ -652,6 +1259,17 @@ public class ForwardBackward {
 				
 			}
 			
+			if (scaled) {
+				// Add the values of this clique to the sum of the column
+				StringBuffer sum = new StringBuffer();
+				for (int stIdx = 0; stIdx < clique.states.size(); stIdx++) {
+					if (stIdx > 0)
+						sum.append( " + " );
+					sum.append( stateCode.getState( (State)objects.get( clique.states.get(stIdx) ), "", 1, true ) );
+				}
+				book.add( getCode("hmlScaledColumnSum").bind( sum.toString() ) );
+			}
+			
 			book.closeScope("statevector");
 			book.closeScope("innersymbol");
 			book.closeScope("innerposition");
@@ -665,24 +1283,47 @@ public class ForwardBackward {
 		book.closeScope("position");
 		
 		// Return Baum-Welch counts
-		if (baumwelch) {
-			book.add( getCode("hmlScaleCount").bind(hmmid, "1.0 / "+temporariesCode.getTempProb(2) ) );
+		if (baumwelch && !linear) {
+			if (!scaled) {
+				book.add( getCode("hmlScaleCount").bind(hmmid, "1.0 / "+temporariesCode.getTempProb(2) ) );
+			}
 			book.add( getCode("hmlCountReturn").bind(hmmid) );
 		}
 		
-		// Compute return value 
+		// Compute return value (a block, or the backward pass of a smoother, does not reach the end state)
 		State lastState = (forward ? hmm.endState : hmm.startState );
 		book.openScope("getendvalue");
-		PositionCode endPositionCode = new PositionCode( hmm, book, objects );
-		endPositionCode.init( lastState.range, forward, "getendvalue", null );
-		StateCode endStateCode = (StateCode)stateCodeFroms.get( lastState.block );
-		StateCode endStateCodeTo = (StateCode)stateCodeTos.get( lastState.block );
-		endStateCode.initFrom( endStateCodeTo, endPositionCode, temporariesCode, new IntVec(hmm.numOutputs), "getendvalue");
-		String stateRef = endStateCode.getState( lastState, "", 1 );
-		book.add( getCode("hmlReturnCode1").bind( temporariesCode.getTempProb(), stateRef ) );
-		endPositionCode.exit();
+		if (block || smoother) {
+			book.add( getCode("hmlReturnCode1").bind( temporariesCode.getTempProb(), "0.0" ) );
+		} else {
+			PositionCode endPositionCode = new PositionCode( hmm, book, objects );
+			endPositionCode.init( lastState.range, forward, "getendvalue", null );
+			StateCode endStateCode = (StateCode)stateCodeFroms.get( lastState.block );
+			StateCode endStateCodeTo = (StateCode)stateCodeTos.get( lastState.block );
+			endStateCode.initFrom( endStateCodeTo, endPositionCode, temporariesCode, new IntVec(hmm.numOutputs), "getendvalue");
+			String stateRef = endStateCode.getState( lastState, "", 1 );
+			if (scaled) {
+				stateRef = getCode("hmlScaledValue").bind( stateRef,
+						"dp.aLogScale[" + endPositionCode.getPos( hmm.numOutputs-1 ) + "]" ).toString().trim();
+			}
+			book.add( getCode("hmlReturnCode1").bind( temporariesCode.getTempProb(), stateRef ) );
+			if (linear) {
+				// The counts of the end state are the posterior counts
+				book.add( getCode("hmlForwardCountCollect").bind( endStateCode.getCounts( lastState, false ) ) );
+			}
+			endPositionCode.exit();
+		}
 		book.closeScope("getendvalue");
 		
+		if (stream && !smoother) {
+			// the stream keeps the values of the cliques at the current position, and with a lag at the
+			// positions not yet smoothed
+			String first = (lag > 0 ? "iSmoothed" : "iStreamLen");
+			String resumed = (lag > 0 ? getCode("hmlStreamSmoothResumed").getText().toString() : "");
+			StateCode.buildStreamCopy( name, streamCliques(), hmm, book, objects, false, first, resumed );
+			StateCode.buildStreamCopy( name, streamCliques(), hmm, book, objects, true, first, resumed );
+		}
+		
 		// Call static member function that emits all necessary initialization code to the init-block of the "declare" scope
 		Code.emitInitCode(objects, book, "", "declare");
 		
@@ -690,13 +1331,37 @@ public class ForwardBackward {
 		// Have input parameters go before outputs
 		// (Goes after init code emission, as this may introduce new parameters)
 		String pars = Code.getParameters(objects);
+		String recursionPars = pars;
+		if (baumwelch && !linear) {
+			pars = Code.addParameter(pars, getCode("hmlDPTableParameterInput").bind(hmmid+(checkpoint ? "Checkpoint" : "")).toString() );
+		}
 		if (baumwelch) {
-			pars = Code.addParameter(pars, getCode("hmlDPTableParameterInput").bind(hmmid).toString() );
 			pars = Code.addParameter(pars, getCode("hmlCountParameter").bind(hmmid).toString() );
 		}
-		if (outputtable) {
-			pars = Code.addParameter(pars, getCode("hmlDPTableParameter").bind(hmmid).toString() );
-			book.add( getCode("hmlDPTableReturn").bind(hmmid) );
+		String funcName = name;
+		if (smoother) {
+			pars = "int iBlockFirst,int iBlockLast";
+			funcName = name + "::recurseBackward";
+		} else if (stream) {
+			// the recursion is a member of the stream class, and extends the stream by a block of positions
+			initStream( book, pars, symbolCode.getMaxDepth() );
+			pars = "int iBlockFirst,int iBlockLast,bool bStreamEnd";
+			funcName = name + "::recurse";
+		} else if (block) {
+			pars = blockParameters(pars);
+		} else if (pointers) {
+			pars = Code.addParameter(pars, getCode("hmlDPTableParameter").bind(hmmid+"Traceback").toString() );
+			book.add( getCode("hmlTracebackTableReturn").bind(hmmid) );
+		} else if (outputtable) {
+			pars = Code.addParameter(pars, getCode("hmlDPTableParameter").bind(hmmid+tableMode).toString() );
+			book.add( getCode("hmlDPTableReturn").bind(hmmid+tableMode) );
+			if (checkpointTable) {
+				initRecompute( book, recursionPars, stateCodeTos );
+			}
+		} else if (batch) {
+			initBatch( book, pars, tableMode );
+			pars = pars + "," + getCode("hmlDPTableWorkspaceParameter").bind(hmmid+tableMode).toString().trim();
+			book.add( getCode("hmlDPTableWorkspaceReturn").getText() );
 		}
 		
 		// Close init scope
@@ -715,9 +1380,14 @@ public class ForwardBackward {
 		book.closeScope("define");
 		
 		// Finally, build function definition and declaration
-		book.addInitText( "function", getCode("hmlForwardStart").bind(name,pars));
+		book.addInitText( "function", getCode("hmlForwardStart").bind(funcName,pars));
 		book.addExitText( "function", getCode("hmlForwardEnd").getText() );
-		book.addInitText( "header-funcdecl", getCode("hmlForwardDeclaration").bind(name,pars));
+		if (batch) {
+			// the workspace is optional
+			book.addInitText( "header-funcdecl", getCode("hmlForwardDeclaration").bind(name,pars+" = 0"));
+		} else if (!stream) {
+			book.addInitText( "header-funcdecl", getCode("hmlForwardDeclaration").bind(name,pars));
+		}
 		
 		book.closeScope("function");
 		
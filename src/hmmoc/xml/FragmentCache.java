@@ -0,0 +1,299 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import org.jdom.*;
+import java.io.*;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import hmmoc.code.Book;
+import hmmoc.code.Text;
+
+
+//
+// On-disk cache of the code generated for algorithms, used to recompile files incrementally.
+//
+// The key of an algorithm is a hash of the canonical form of the algorithm element and of all
+// elements of the document it refers to, directly or indirectly (the <hmm>, its states, transitions,
+// <probability> and <code> elements, ...); of any <code> elements shadowing library snippets; of the
+// realtype and language; and of the snippet library and the compiler itself.  The cached code is
+// the text the algorithm wrote into its fork of the book, with the labels of the scopes it went to,
+// together with the initialization blocks it requires.
+//
+// Caching is switched on by open(), which hmmoc calls if the property hmmoc.cache names a directory.
+//
+
+public class FragmentCache {
+
+	static final int magic = 0x484d4c46;      // "HMLF"
+	static final int version = 2;
+
+	static File directory = null;             // null if caching is off
+	static String fingerprint;                // identifies snippet library and compiler
+
+
+	public static void open( String dir, long snippetChecksum ) {
+
+		directory = new File( dir );
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new Error( "Cannot create cache directory "+dir );
+		}
+		fingerprint = Long.toHexString( snippetChecksum ) + ":" + compilerFingerprint();
+	}
+
+
+	static boolean enabled() {
+
+		return directory != null;
+	}
+
+
+	// Identifies the compiler build, by the size and modification time of its jar or class files
+	static String compilerFingerprint() {
+
+		try {
+			URL url = FragmentCache.class.getProtectionDomain().getCodeSource().getLocation();
+			File f = new File( URLDecoder.decode( url.getFile(), "UTF-8" ) );
+			long[] sum = new long[2];
+			addFileStamps( f, sum );
+			return Long.toHexString( sum[0] ) + ":" + Long.toHexString( sum[1] );
+		} catch (Exception e) {
+			// cannot identify the compiler; caching is still safe within this build
+			return "unknown";
+		}
+	}
+
+
+	static void addFileStamps( File f, long[] sum ) {
+
+		if (f.isDirectory()) {
+			File[] files = f.listFiles();
+			for (int i=0; i<files.length; i++) {
+				addFileStamps( files[i], sum );
+			}
+		} else if (f.getName().endsWith(".class") || f.getName().endsWith(".jar") || f.getName().endsWith(".bin")) {
+			sum[0] += f.length();
+			sum[1] = sum[1] * 31 + f.lastModified();
+		}
+	}
+
+
+	//
+	// Key of an algorithm element
+	//
+
+	static String key( Element algorithm, TreeMap idMap, String realtype, String language, Context context ) {
+
+		StringBuffer s = new StringBuffer();
+		s.append( version ).append( '\n' ).append( fingerprint ).append( '\n' );
+		s.append( realtype ).append( '\n' ).append( language ).append( '\n' );
+		Iterator i = context.globalIdentifiers.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry g = (Map.Entry)i.next();
+			// the description holds the time of generation, and is not used by algorithms
+			if (!g.getKey().equals("_description_"))
+				s.append( g.getKey() ).append( '=' ).append( g.getValue() ).append( '\n' );
+		}
+
+		// The algorithm, and everything it refers to
+		Document document = algorithm.getDocument();
+		List pending = new ArrayList();
+		Map seen = new IdentityHashMap();
+		pending.add( algorithm );
+		seen.put( algorithm, algorithm );
+		// Code elements that shadow library snippets are used implicitly
+		Iterator j = idMap.keySet().iterator();
+		while (j.hasNext()) {
+			String id = (String)j.next();
+			if (id.startsWith("_defunct_")) {
+				refer( (Element)idMap.get( id.substring( 9 ) ), document, pending, seen );
+			}
+		}
+		for (int k=0; k<pending.size(); k++) {
+			canonical( (Element)pending.get(k), s, idMap, document, pending, seen );
+			s.append( '\n' );
+		}
+
+		try {
+			byte[] digest = MessageDigest.getInstance( "MD5" ).digest( s.toString().getBytes( "UTF-8" ) );
+			StringBuffer hex = new StringBuffer();
+			for (int k=0; k<digest.length; k++) {
+				hex.append( Integer.toHexString( (digest[k] >> 4) & 15 ) );
+				hex.append( Integer.toHexString( digest[k] & 15 ) );
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error( "FragmentCache: no MD5 available", e );
+		} catch (UnsupportedEncodingException e) {
+			throw new Error( "FragmentCache: no UTF-8 available", e );
+		}
+	}
+
+
+	// Adds element to the elements to include in the key, if it is part of the document.  Elements of the
+	// snippet library are covered by the fingerprint.
+	static void refer( Element e, Document document, List pending, Map seen ) {
+
+		if (e != null && e.getDocument() == document && !seen.containsKey( e )) {
+			pending.add( e );
+			seen.put( e, e );
+		}
+	}
+
+
+	static void escape( String t, StringBuffer s ) {
+
+		for (int i=0; i<t.length(); i++) {
+			char c = t.charAt(i);
+			if (c == '<' || c == '&' || c == '"') {
+				s.append( "&#" ).append( (int)c ).append( ';' );
+			} else {
+				s.append( c );
+			}
+		}
+	}
+
+
+	// Writes canonical form of element to s: attributes sorted, comments removed.  Elements referred to by
+	// id (by an attribute, or by an element that was an idref) are added to the pending list.
+	static void canonical( Element e, StringBuffer s, TreeMap idMap, Document document, List pending, Map seen ) {
+
+		s.append( '<' ).append( e.getName() );
+		TreeMap attributes = new TreeMap();
+		Iterator i = e.getAttributes().iterator();
+		while (i.hasNext()) {
+			Attribute a = (Attribute)i.next();
+			attributes.put( a.getName(), a.getValue() );
+		}
+		i = attributes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry a = (Map.Entry)i.next();
+			String value = (String)a.getValue();
+			s.append( ' ' ).append( a.getKey() ).append( "=\"" );
+			escape( value, s );
+			s.append( '"' );
+			StringTokenizer tokens = new StringTokenizer( value );
+			while (tokens.hasMoreTokens()) {
+				Element r = (Element)idMap.get( tokens.nextToken() );
+				if (r != e) {
+					refer( r, document, pending, seen );
+				}
+			}
+		}
+		s.append( '>' );
+		i = e.getContent().iterator();
+		while (i.hasNext()) {
+			Object o = i.next();
+			if (o instanceof Element) {
+				canonical( (Element)o, s, idMap, document, pending, seen );
+			} else if (o instanceof org.jdom.Text) {
+				escape( ((org.jdom.Text)o).getText(), s );
+			}
+		}
+		s.append( "</" ).append( e.getName() ).append( '>' );
+	}
+
+
+	//
+	// Reading and writing cached code
+	//
+
+	static File file( String key ) {
+
+		return new File( directory, key + ".frag" );
+	}
+
+
+	// Fills fork and context from cache; returns false if there is no (valid) entry
+	static boolean read( String key, Book fork, Context context ) {
+
+		File f = file( key );
+		if (!f.exists())
+			return false;
+		try {
+			DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( f ) ) );
+			try {
+				if (in.readInt() != magic || in.readInt() != version || !key.equals( SnippetLibrary.readString( in ) ))
+					return false;
+				TreeSet inits = new TreeSet();
+				int n = in.readInt();
+				for (int i=0; i<n; i++) {
+					inits.add( SnippetLibrary.readString( in ) );
+				}
+				Text[][] segments = new Text[ in.readInt() ][];
+				for (int k=0; k<segments.length; k++) {
+					segments[k] = new Text[ in.readInt() ];
+					for (int i=0; i<segments[k].length; i++) {
+						segments[k][i] = new Text( SnippetLibrary.readString( in ) );
+						segments[k][i].setLine( in.readBoolean() );
+						segments[k][i].setScopeLabel( SnippetLibrary.readString( in ) );
+					}
+				}
+				fork.addForkedText( segments );
+				context.inits.addAll( inits );
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	// Stores the code written to fork, and the initialization blocks required by it
+	static void write( String key, Book fork, Context context ) {
+
+		try {
+			File tmp = File.createTempFile( key, ".tmp", directory );
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+			out.writeInt( magic );
+			out.writeInt( version );
+			SnippetLibrary.writeString( out, key );
+			out.writeInt( context.inits.size() );
+			Iterator i = context.inits.iterator();
+			while (i.hasNext()) {
+				SnippetLibrary.writeString( out, (String)i.next() );
+			}
+			Text[][] segments = fork.getForkedText();
+			out.writeInt( segments.length );
+			for (int k=0; k<segments.length; k++) {
+				out.writeInt( segments[k].length );
+				for (int j=0; j<segments[k].length; j++) {
+					SnippetLibrary.writeString( out, segments[k][j].getRawText() );
+					out.writeBoolean( segments[k][j].isLine() );
+					SnippetLibrary.writeString( out, segments[k][j].getScopeLabel() );
+				}
+			}
+			out.close();
+			File f = file( key );
+			f.delete();
+			if (!tmp.renameTo( f )) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			System.out.println( "Warning: could not write to code cache: "+e.getMessage() );
+		}
+	}
+
+}
@@ -134,7 +134,7 @@ public class HMM extends XmlElement {
                 throw xmlError(e,"<hmm><clique>: expected at least 1 <state> in <clique> "+blocks[i]+", <hmm> "+hmmid);
             }
             // first store Elements
-            clique.states = new ArrayList( new HashSet( stateList ) );
+            clique.states = new ArrayList( new LinkedHashSet( stateList ) );
             if (clique.states.size() != stateList.size() ) {
                 throw xmlError(e,"<hmm><clique>: found duplicated states in <clique> "+blocks[i]+", <hmm> "+hmmid);
             }
@@ -457,6 +457,13 @@ public class HMM extends XmlElement {
 
         }
 
+        // Index the transitions of each block, for use during code generation
+        for (int i=0; i<sortedBlocks.length; i++) {
+
+            ((Clique)objects.get( sortedBlocks[i] )).buildIndex( objects );
+
+        }
+
         // Loop over all transitions, obtain signatures, and assign per-signature identifiers
         transSignatures = new TreeMap();
         for (int i=0; i<transitions.length; i++) {
@@ -19,6 +19,7 @@
 package hmmoc.xml;
 
 import org.jdom.*;
+import java.io.*;
 import java.util.*;
 
 import hmmoc.util.ParseUtils;
@@ -29,10 +30,6 @@ import hmmoc.code.Book;
 
 public class HasIdentifiers extends XmlElement {
 	
-	static TreeSet parameters = new TreeSet();     // static list of parameter ids accessed by used code objects
-	static TreeSet inits = new TreeSet();          // static list of code ids required as initializers by used code objects
-	static public TreeMap globalIdentifiers = new TreeMap();  // global substitutions (e.g. real type)
-	
 	String init;                                   // any initialisation code, to be used when this (code or output) block is used
 	String where;
 	List parameterList;                            // any parameters
@@ -77,18 +74,43 @@ public class HasIdentifiers extends XmlElement {
 	
 	
 
-	// Resets all per-outputfile data -- although this shouldn't be necessary
-    /*
-	public static void resetGlobalIdentifiers() {
+	// Reads block written by write(), with elem the element it was parsed from
+	HasIdentifiers( Element elem, DataInputStream in ) throws IOException {
 		
-		parameters = new TreeSet();     
-		inits = new TreeSet();         
-		globalIdentifiers = new TreeMap();  
+		id = elem.getAttributeValue("id");
+		e = elem;
+		init = SnippetLibrary.readString( in );
+		where = SnippetLibrary.readString( in );
+		int n = in.readInt();
+		parameterList = new ArrayList( n );
+		for (int i=0; i<n; i++) {
+			parameterList.add( SnippetLibrary.readString( in ) );
+		}
+		n = in.readInt();
+		identifierList = new ArrayList( n );
+		for (int i=0; i<n; i++) {
+			identifierList.add( new Identifier( in ) );
+		}
+		hasOutputs = in.readBoolean();
 		
 	}
-    */
 	
 	
+	void write( DataOutputStream out ) throws IOException {
+		
+		SnippetLibrary.writeString( out, init );
+		SnippetLibrary.writeString( out, where );
+		out.writeInt( parameterList.size() );
+		for (int i=0; i<parameterList.size(); i++) {
+			SnippetLibrary.writeString( out, (String)parameterList.get(i) );
+		}
+		out.writeInt( identifierList.size() );
+		for (int i=0; i<identifierList.size(); i++) {
+			((Identifier)identifierList.get(i)).write( out );
+		}
+		out.writeBoolean( hasOutputs );
+		
+	}
 	
 	
 	// Parses identifiers (children of <code> or <output> element), returns them as a list.
@@ -106,7 +128,6 @@ public class HasIdentifiers extends XmlElement {
 				throw xmlError(elem,"Found same <identifier> ("+identifier.identifier+") twice");
 			}
 			ids.add(identifier.identifier);
-			identifier.bound = false;
 			if (identifier.output == null) {
 				if (identifier.type.equals("default")) {
 					// has default identifiers NOT referring to output symbol
@@ -254,16 +275,9 @@ public class HasIdentifiers extends XmlElement {
 		return true;
 	}
 	
-	// Unbind all identifiers
-	void reset() {
-		for (int i=0; i<identifierList.size(); i++) {
-			((Identifier)identifierList.get(i)).bound = false;
-		}
-	}
-	
-	
 	static Code getNextInitCode(TreeMap objects, TreeSet hasInited) {
 		
+		TreeSet inits = Context.get().inits;
 		String init;
 		// First find an init id that has not been visited before
 		do {
@@ -306,13 +320,14 @@ public class HasIdentifiers extends XmlElement {
 		}
 		
 		// Reset the hasInited and inits sets
-		inits = skippedInits;
+		Context.get().inits = skippedInits;
 		
 	}
 	
 	
 	public static void checkInitEmpty() {
 		
+		TreeSet inits = Context.get().inits;
 		if (inits.isEmpty())
 			return;
 		System.out.println("Warning: Some initialization <code> block(s) not emitted (first one is "+inits.first() +").  Check for initializer up-references (e.g. an 'include' referring to a 'declaration' or 'subroutine')");
@@ -322,9 +337,10 @@ public class HasIdentifiers extends XmlElement {
 	
 	public static String getParameters(TreeMap objects) {
 		
+		Context context = Context.get();
 		Text t = new Text("");
 		boolean addComma = false;
-		Iterator i = parameters.iterator();
+		Iterator i = context.parameters.iterator();
 		while (i.hasNext()) {
 			if (addComma)
 				t.append(",");
@@ -333,7 +349,7 @@ public class HasIdentifiers extends XmlElement {
 			Code c = (Code)objects.get( parId );
 			t.append( c.getText() );
 		}
-		parameters = new TreeSet();
+		context.parameters = new TreeSet();
 		return sortParameters(t.toString());
 	}
 	
@@ -412,8 +428,16 @@ public class HasIdentifiers extends XmlElement {
 	
 	public static void addGlobalIdentifier(String identifier, String substitution) {
 		
-		globalIdentifiers.put(identifier,substitution);
-		
+		Context.get().globalIdentifiers.put(identifier,substitution);
+
+	}
+
+
+	// Returns substitution of global identifier, or null if it is not defined
+	public static String getGlobalIdentifier(String identifier) {
+
+		return (String)Context.get().globalIdentifiers.get(identifier);
+
 	}
 	
 	
@@ -421,9 +445,10 @@ public class HasIdentifiers extends XmlElement {
 	// Signals that this code object is being used - add required initialization and parameters to sets
 	void use() {
 		
-		parameters.addAll( parameterList );
+		Context context = Context.get();
+		context.parameters.addAll( parameterList );
 		if (init != null) {
-			inits.add( init );
+			context.inits.add( init );
 		}
 		
 	}
@@ -19,6 +19,7 @@
 package hmmoc.xml;
 
 import org.jdom.*;
+import java.io.*;
 import java.util.*;
 
 import hmmoc.util.ParseUtils;
@@ -37,7 +38,6 @@ public class Identifier {
     String type;
     String output;
     int depth;
-    boolean bound;             // used by Code, to mark this identifier as bound
 
     public Identifier( Element t, TreeMap idMap ) {
 	id = t.getAttributeValue("id");
@@ -75,4 +75,23 @@ public class Identifier {
 	    }
 	}
     }
+
+
+    // Reads identifier written by write()
+    Identifier( DataInputStream in ) throws IOException {
+	id = SnippetLibrary.readString( in );
+	identifier = SnippetLibrary.readString( in );
+	type = SnippetLibrary.readString( in );
+	output = SnippetLibrary.readString( in );
+	depth = in.readInt();
+    }
+
+
+    void write( DataOutputStream out ) throws IOException {
+	SnippetLibrary.writeString( out, id );
+	SnippetLibrary.writeString( out, identifier );
+	SnippetLibrary.writeString( out, type );
+	SnippetLibrary.writeString( out, output );
+	out.writeInt( depth );
+    }
 }
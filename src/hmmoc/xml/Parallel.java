@@ -0,0 +1,223 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Runs a list of independent tasks on several threads, with the same result as running them
+// one after the other.
+//
+// Each task runs in its own Context.  Its output to System.out is collected, and once all tasks
+// have run, the output of each task is printed and its finish() is called, in task order, on the
+// calling thread.  If a task fails, tasks after it are not finished, and its error is rethrown.
+// The calling thread takes part in running the tasks, so that runs can be nested.
+//
+// The number of threads is given by the system property hmmoc.threads, and defaults to the
+// number of processors.  It bounds the threads running tasks at any time, also when runs are
+// nested: helper threads are taken from a pool shared by all runs, and a run that finds none
+// free works on the calling thread alone.  With one thread, tasks are run and finished in order
+// on the calling thread.
+//
+
+class Parallel {
+
+	static abstract class Task {
+
+		Context context;                   // context to run in
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		Throwable error;
+
+		Task( Context context0 ) {
+			context = context0;
+		}
+
+		// Does the work; may be called on any thread, concurrently with other tasks
+		abstract void run();
+
+		// Called on the calling thread, in task order, after run()
+		void finish() {
+		}
+	}
+
+
+	static final int threads = Math.max( 1, Integer.getInteger( "hmmoc.threads", Runtime.getRuntime().availableProcessors() ).intValue() );
+
+	static int freeHelpers = threads - 1;           // helper threads that may still be started
+
+	static ThreadLocal log = new ThreadLocal();     // stream collecting System.out of current task, if any
+	static boolean logInstalled = false;
+
+
+	// Sends output to the log of the current task, or to the original stream
+	static class LogStream extends OutputStream {
+
+		OutputStream out;
+
+		LogStream( OutputStream out0 ) {
+			out = out0;
+		}
+
+		OutputStream target() {
+			OutputStream o = (OutputStream)log.get();
+			if (o == null)
+				return out;
+			return o;
+		}
+
+		public void write( int b ) throws IOException {
+			target().write( b );
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException {
+			target().write( b, off, len );
+		}
+
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+
+
+	static synchronized void installLog() {
+
+		if (!logInstalled) {
+			System.setOut( new PrintStream( new LogStream( System.out ), true ) );
+			logInstalled = true;
+		}
+	}
+
+
+	// Takes up to n helpers from the pool, and returns the number taken
+	static synchronized int takeHelpers( int n ) {
+
+		int taken = Math.min( n, freeHelpers );
+		freeHelpers -= taken;
+		return taken;
+	}
+
+
+	static synchronized void returnHelper() {
+
+		freeHelpers += 1;
+	}
+
+
+	static void runTask( Task task ) {
+
+		Context previous = Context.enter( task.context );
+		Object previousLog = log.get();
+		log.set( task.log );
+		try {
+			task.run();
+		} catch (Throwable e) {
+			task.error = e;
+		} finally {
+			Context.enter( previous );
+			log.set( previousLog );
+		}
+	}
+
+
+	static void run( List taskList ) {
+
+		final Task[] tasks = (Task[])taskList.toArray( new Task[0] );
+
+		if (threads == 1 || tasks.length <= 1) {
+			for (int i=0; i<tasks.length; i++) {
+				Context previous = Context.enter( tasks[i].context );
+				try {
+					tasks[i].run();
+				} finally {
+					Context.enter( previous );
+				}
+				tasks[i].finish();
+			}
+			return;
+		}
+
+		installLog();
+
+		// Hand out tasks in order; stop handing out after a failure
+		final int[] next = new int[] { 0, tasks.length };   // next task, first failed task
+		final Runnable worker = new Runnable() {
+			public void run() {
+				while (true) {
+					int i;
+					synchronized (next) {
+						if (next[0] >= next[1])
+							return;
+						i = next[0]++;
+					}
+					runTask( tasks[i] );
+					if (tasks[i].error != null) {
+						synchronized (next) {
+							next[1] = Math.min( next[1], i );
+						}
+					}
+				}
+			}
+		};
+
+		Runnable helper = new Runnable() {
+			public void run() {
+				try {
+					worker.run();
+				} finally {
+					returnHelper();
+				}
+			}
+		};
+
+		Thread[] helpers = new Thread[ takeHelpers( tasks.length - 1 ) ];
+		for (int i=0; i<helpers.length; i++) {
+			helpers[i] = new Thread( helper, "hmmoc-" + i );
+			helpers[i].start();
+		}
+		worker.run();
+		for (int i=0; i<helpers.length; i++) {
+			while (helpers[i].isAlive()) {
+				try {
+					helpers[i].join();
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+		}
+
+		// Report in order
+		for (int i=0; i<tasks.length; i++) {
+			byte[] b = tasks[i].log.toByteArray();
+			System.out.write( b, 0, b.length );
+			System.out.flush();
+			Throwable e = tasks[i].error;
+			if (e != null) {
+				if (e instanceof Error)
+					throw (Error)e;
+				if (e instanceof RuntimeException)
+					throw (RuntimeException)e;
+				throw new Error( e );
+			}
+			tasks[i].finish();
+		}
+	}
+
+}
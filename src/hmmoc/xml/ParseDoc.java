@@ -27,6 +27,7 @@ import java.util.*;
 import java.net.URL;
 
 import hmmoc.util.ParseUtils;
+import hmmoc.util.Profile;
 import hmmoc.xml.HasIdentifiers;
 
 
@@ -43,13 +44,16 @@ public class ParseDoc {
 	public ParseDoc(Object xmlFile, String rootId, TreeMap prevIdMap) {
 		
 		SAXBuilder saxBuilder = new SAXBuilder();
+		String label = xmlFile.toString();
 		
 		try {
+			long[] profile = Profile.start();
 			if (xmlFile instanceof String) {
 				document = saxBuilder.build( (String)xmlFile );
 			} else if (xmlFile instanceof URL) {
 				document = saxBuilder.build( (URL)xmlFile );
 			}
+			Profile.stop( profile, "parse", label, countElements( document ) );
 			root = ParseUtils.parseRoot( document, rootId );
 			objects = new TreeMap();
 			
@@ -70,10 +74,14 @@ public class ParseDoc {
 			TreeMap macroMap = ParseUtils.getMacroDefs( root );
 			
 			// Process all macro expansions; replace macro expansion request with result
+			profile = Profile.start();
 			ParseUtils.expandMacros( root, macroMap );
+			Profile.stop( profile, "expandMacros", label, countElements( document ) );
 			
 			// Get all elements in document, and assign identifiers to them;
+			profile = Profile.start();
 			idMap = ParseUtils.parseId( root, prevIdMap );
+			Profile.stop( profile, "parseId", label, idMap.size() );
 			
 			// Rewriting done; output debug XML code
 			if (root.getAttributeValue("debug") != null) {
@@ -94,16 +102,51 @@ public class ParseDoc {
 		}      
 	}
 
+	// Returns number of elements in document, for profiling; 0 if profiling is off
+	static int countElements( Document d ) {
+		
+		if (!Profile.enabled())
+			return 0;
+		int n = 0;
+		Iterator i = d.getDescendants( new org.jdom.filter.ElementFilter() );
+		while (i.hasNext()) {
+			i.next();
+			n += 1;
+		}
+		return n;
+	}
+	
+	
+	// Empty document, filled in by SnippetLibrary
+	ParseDoc() {
+	}
+	
+	
+	// Copies a parsed document, so that it can be used (and modified, e.g. by shadowing
+	// definitions) without affecting the original
+	public ParseDoc(ParseDoc doc) {
+		
+		document = (Document)doc.document.clone();
+		root = document.getRootElement();
+		objects = new TreeMap();
+		idMap = ParseUtils.parseId( root, new TreeMap() );
+		
+	}
+	
+	
     public void parseIdRef() {
 	
 	// Change identifiers of referring elements to element referred to
+	long[] profile = Profile.start();
 	ParseUtils.parseIdref( root, idMap );
+	Profile.stop( profile, "parseIdref", "", idMap.size() );
 
     }
 			
 	public void parseCode() {
 		
 		// Parse all <code> and <parameter> elements
+		long[] profile = Profile.start();
 		List codeList = ParseUtils.parseDescendants( root, "code", idMap );
 		Iterator i = codeList.iterator();
 		while (i.hasNext()) {
@@ -114,13 +157,18 @@ public class ParseDoc {
 			}
 			objects.put( codeId, new Code( codeElt, idMap ) );
 		}
+		Profile.stop( profile, "parseCode", "", codeList.size() );
 	}
 	
 	
 	static public HMM parseHMM( Element hmmelt, TreeMap idMap, TreeMap objects ) {
 		
+		long[] profile = Profile.start();
 		HMM hmm = new HMM(hmmelt, idMap, objects );
+		Profile.stop( profile, "HMM", hmm.id, hmm.states.length );
+		profile = Profile.start();
 		hmm.analyze( objects );
+		Profile.stop( profile, "HMM.analyze", hmm.id, hmm.transitions.length );
 		objects.put( hmmelt.getAttributeValue("id"), hmm );
 		return hmm;
 		
@@ -131,12 +179,14 @@ public class ParseDoc {
 		
 		// parse all <codeGeneration> elements
 		List codeGenList = ParseUtils.parseDescendants( root, "codeGeneration", idMap);
+		List units = new ArrayList();
 		Iterator i = codeGenList.iterator();
 		while (i.hasNext()) {
 			Element cgelt = (Element)i.next();
-			// It's the side effect that we're after here.
-			new CodeGeneration(cgelt, idMap, objects);
+			units.add( new CodeGeneration(cgelt, idMap, objects) );
 		}
+		// Generate the units independently; files are written in order
+		Parallel.run( units );
 	}
 	
 }
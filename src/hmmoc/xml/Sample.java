@@ -43,6 +43,8 @@ public class Sample {
 	TreeMap objects;
 	boolean viterbi;
 	boolean hasInput;        // if false, no DP table is input (only for sampler)
+	boolean checkpoint;      // input DP table is checkpointed (memory="checkpoint")
+	boolean pointers;        // input DP table holds Viterbi traceback pointers (traceback="pointers")
 	String name;
 	String params;           // used by calling routine to make function that binds Viterbi recursion and tracer
 	
@@ -67,6 +69,18 @@ public class Sample {
 			name = elem.getAttributeValue("name");
 		}
 		
+		String memory = elem.getAttributeValue("memory");
+		if ((memory == null) || (memory.equals("full"))) {
+		    checkpoint = false;
+		} else if (memory.equals("checkpoint")) {
+		    checkpoint = hasInput;
+		} else {
+		    throw new Error("<"+elem.getName()+">: Attribute 'memory' has value '"+memory+"', expected 'full' or 'checkpoint'");
+		}
+		
+		// Values are checked by ForwardBackward
+		pointers = viterbi && "pointers".equals( elem.getAttributeValue("traceback") );
+		
 		// This should reflect HMM and output type -- ignore output dependence for now
 		hmmid = hmm.id;
 		
@@ -82,7 +96,68 @@ public class Sample {
 	}
 	
 	
+	// Makes tables translating transitions into the state they come from and go to, and into the
+	// emitted symbols; returns the names of the latter
+	String[] initTranslationTables( Book book, PositionCode positionCode ) {
+		
+		int num = hmm.transitions.length;
+		Transition[] transitionArr = new Transition[num];
+		for (int i=0; i<num; i++) {
+			transitionArr[i] = (Transition)objects.get( hmm.transitions[i] );
+		}
+		ArrayList intListT = new ArrayList( num );
+		ArrayList intListF = new ArrayList( num );
+		for (int i=0; i<num; i++) {
+			intListT.add( new Integer( ((State)objects.get( transitionArr[i].to )).globalNumber ) );
+			intListF.add( new Integer( ((State)objects.get( transitionArr[i].from )).globalNumber ) );
+		}
+		book.addInitText("init", getCode("hmlSampleInitVec").bind("stateTable",Generator.makeCommaList(intListT)) );
+		book.addInitText("init", getCode("hmlSampleInitVec").bind("stateFromTable",Generator.makeCommaList(intListF)) );
+		String[] posVecName = new String[hmm.numOutputs];
+		for (int i=0; i<hmm.numOutputs; i++) {
+			posVecName[i] = positionCode.getPos(i)+"Table";
+			for (int j=0; j<num; j++)
+				intListT.set(j, new Integer( ((Emission)objects.get( transitionArr[j].emission )).outputVec.v[i] ) );
+			book.addInitText("init", getCode("hmlSampleInitVec").bind(posVecName[i],Generator.makeCommaList(intListT)) );
+		}
+		return posVecName;
+		
+	}
+	
+	
+	// Adds the chosen transition to the path, and moves on to its state and position
+	void addTransition( Book book, PositionCode positionCode, String[] posVecName, String tmpIntVec, String tmpVec ) {
+		
+		// Add bead to string!  
+		book.add( getCode( "hmlSimplePathAddA" ).bind(Integer.toString(hmm.numOutputs) ) );
+		for (int i=0; i<hmm.numOutputs; i++) {
+			book.add( getCode( "hmlSimplePathAddB" ).bind(Integer.toString(i), posVecName[i], tmpIntVec) );
+		}
+		book.add( getCode( "hmlSimplePathAddC" ).bind( tmpIntVec, tmpVec, Integer.toString(hmm.maxOutDegree), "stateFromTable", "stateTable" ) );
+		
+		// Go to next state/position
+		for (int i=0; i<hmm.numOutputs; i++) {
+			book.add( getCode("hmlSampleNextPos").bind( tmpIntVec, positionCode.getPos(i), posVecName[i] ) );
+		}
+		book.add( getCode( "hmlSampleEnd" ).bind(tmpIntVec, "stateTable") );
+		
+	}
+	
+	
 	public void generate( Book book, String language) {
+
+		// Values of a scaled table are only comparable within a column
+		if (hasInput && StateCode.isScaled( hmm )) {
+			throw new Error("<sample> or <viterbi> '"+id+"': cannot be used with realtype='scaled'");
+		}
+		if (!viterbi && "intscore".equals( HasIdentifiers.getGlobalIdentifier("_realtype_") )) {
+			throw new Error("<sample> '"+id+"': cannot be used with realtype='intscore', which only supports <viterbi>");
+		}
+
+		if (pointers) {
+			generatePointerWalk( book );
+			return;
+		}
 		
 		// Class definition of DP table is not generated; either it is already generated by FW/BW/ViterbiDP,
 		// or it is not required (in the case of sampling with no given outputs)
@@ -118,26 +193,7 @@ public class Sample {
 		positionCode.init( hmm.startState.range, true, "position", null );
 		
 		// Make translation tables
-		int num = hmm.transitions.length;
-		Transition[] transitionArr = new Transition[num];
-		for (int i=0; i<num; i++) {
-			transitionArr[i] = (Transition)objects.get( hmm.transitions[i] );
-		}
-		ArrayList intListT = new ArrayList( num );
-		ArrayList intListF = new ArrayList( num );
-		for (int i=0; i<num; i++) {
-			intListT.add( new Integer( ((State)objects.get( transitionArr[i].to )).globalNumber ) );
-			intListF.add( new Integer( ((State)objects.get( transitionArr[i].from )).globalNumber ) );
-		}
-		book.addInitText("init", getCode("hmlSampleInitVec").bind("stateTable",Generator.makeCommaList(intListT)) );
-		book.addInitText("init", getCode("hmlSampleInitVec").bind("stateFromTable",Generator.makeCommaList(intListF)) );
-		String[] posVecName = new String[hmm.numOutputs];
-		for (int i=0; i<hmm.numOutputs; i++) {
-			posVecName[i] = positionCode.getPos(i)+"Table";
-			for (int j=0; j<num; j++)
-				intListT.set(j, new Integer( ((Emission)objects.get( transitionArr[j].emission )).outputVec.v[i] ) );
-			book.addInitText("init", getCode("hmlSampleInitVec").bind(posVecName[i],Generator.makeCommaList(intListT)) );
-		}
+		String[] posVecName = initTranslationTables( book, positionCode );
 		
 		String tmpVec = temporariesCode.getVectorName();
 		String tmpIntVec = temporariesCode.getIntVecName();
@@ -154,7 +210,7 @@ public class Sample {
 		symbolCode.init( positionCode, rangeCode, "symbol" );
 		
 		// ??????? Should this be 'false'?????
-		StateCode.initDPInput("init", hmmid, book, objects, false );
+		StateCode.initDPInput("init", hmmid+(checkpoint ? "Checkpoint" : ""), book, objects, false );
 		
 		// Loop over all receiving blocks
 		for (int blockCount = 0; blockCount < hmm.sortedBlocks.length; blockCount += 1) {
@@ -163,7 +219,7 @@ public class Sample {
 			
 			book.openScope("statevector");
 			
-			StateCode stateCode = new StateCode(hmm, book, objects, clique, "declare", true, false, false, true );
+			StateCode stateCode = new StateCode(hmm, book, objects, clique, "declare", true, false, false, true, checkpoint );
 			
 			// Generate class definitions only once.  Access dummy state to emit code
 			if (blockCount == 0) {
@@ -252,18 +308,7 @@ public class Sample {
 		// Next, process the possible transitions from this state
 		book.add( getCode( viterbi ? "hmlViterbiProcess" : "hmlSampleProcess" ).bind(tmpIntVec,tmpVec) );
 		
-		// Add bead to string!  
-		book.add( getCode( "hmlSimplePathAddA" ).bind(Integer.toString(hmm.numOutputs) ) );
-		for (int i=0; i<hmm.numOutputs; i++) {
-			book.add( getCode( "hmlSimplePathAddB" ).bind(Integer.toString(i), posVecName[i], tmpIntVec) );
-		}
-		book.add( getCode( "hmlSimplePathAddC" ).bind( tmpIntVec, tmpVec, Integer.toString(hmm.maxOutDegree), "stateFromTable", "stateTable" ) );
-		
-		// Go to next state/position
-		for (int i=0; i<hmm.numOutputs; i++) {
-			book.add( getCode("hmlSampleNextPos").bind( tmpIntVec, positionCode.getPos(i), posVecName[i] ) );
-		}
-		book.add( getCode( "hmlSampleEnd" ).bind(tmpIntVec, "stateTable") );
+		addTransition( book, positionCode, posVecName, tmpIntVec, tmpVec );
 		
 		// Call static member function that emits all necessary initialization code to the init-block of the "declare" scope
 		Code.emitInitCode(objects, book, "", "declare");
@@ -271,7 +316,7 @@ public class Sample {
 		// Build parameter string
 		String pars = Code.getParameters(objects);
 		params = pars;
-		pars = Code.addParameter(pars, getCode("hmlDPTableParameterInput").bind(hmmid).toString() );
+		pars = Code.addParameter(pars, getCode("hmlDPTableParameterInput").bind(hmmid+(checkpoint ? "Checkpoint" : "")).toString() );
 		
 		symbolCode.exit();
 		
@@ -300,4 +345,74 @@ public class Sample {
 		book.closeScope("function");
 		
 	}
+	
+	
+	// Viterbi traceback from a table of pointers (traceback="pointers").  Starting at the start state, follows
+	// the transitions recorded by the recursion; no probabilities are evaluated, so the only input is the table
+	void generatePointerWalk( Book book ) {
+		
+		book.openScope("function");
+		
+		book.openScope("define");
+		
+		book.openScope("declare");
+		
+		TemporariesCode temporariesCode = new TemporariesCode( hmm, book, "declare" );
+		temporariesCode.getVectorEntry( 2*hmm.maxOutDegree+2 );
+		temporariesCode.getIntVecEntry( hmm.maxOutDegree+2 );
+		
+		book.openScope("init");
+		
+		book.openScope("position");
+		
+		PositionCode positionCode = new PositionCode( hmm, book, objects );
+		positionCode.init( hmm.startState.range, true, "position", null );
+		
+		String[] posVecName = initTranslationTables( book, positionCode );
+		String tmpVec = temporariesCode.getVectorName();
+		String tmpIntVec = temporariesCode.getIntVecName();
+		
+		StateCode.initDPInput("init", hmmid+"Traceback", book, objects, false );
+		
+		book.add(getCode("hmlSampleInit").bind(tmpIntVec,
+                Integer.toString(hmm.startState.globalNumber),
+                Integer.toString(hmm.endState.globalNumber) ) );
+		String posList = "";
+		String outside = "";
+		for (int i=0; i<hmm.numOutputs; i++) {
+			posList += "," + positionCode.getPos(i);
+			outside += (i == 0 ? "" : " || ") + positionCode.getPos(i) + " > dp." + ((Output)objects.get( hmm.outputs[i] )).lenId;
+		}
+		if (hmm.numOutputs == 0)
+			outside = "false";
+		book.add( getCode("hmlViterbiPointerTrace").bind( tmpIntVec, tmpVec, Integer.toString(hmm.maxOutDegree), posList,
+				outside, Integer.toString(hmm.transitions.length) ) );
+		
+		addTransition( book, positionCode, posVecName, tmpIntVec, tmpVec );
+		
+		Code.emitInitCode(objects, book, "", "declare");
+		
+		String pars = Code.getParameters(objects);
+		params = pars;
+		pars = Code.addParameter(pars, getCode("hmlDPTableParameterInput").bind(hmmid+"Traceback").toString() );
+		
+		book.closeScope("position");
+		
+		book.closeScope("init");
+		
+		temporariesCode.exit();
+		
+		book.add( getCode("hmlSimplePathReturn").getText() );
+		
+		book.closeScope("declare");
+		
+		book.closeScope("define");
+		
+		book.addInitText( "function", getCode("hmlSampleFuncStart").bind(name,pars));
+		book.addExitText( "function", getCode("hmlSampleFuncEnd").getText() );
+		book.addInitText( "header-funcdecl", getCode("hmlSampleFuncDeclaration").bind(name,pars));
+		
+		book.closeScope("function");
+		
+	}
 }
@@ -0,0 +1,242 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import org.jdom.*;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import hmmoc.util.ParseUtils;
+
+
+//
+// The library of code snippets, loaded once and instantiated for every compilation.
+//
+// The library can be compiled into a binary file, which holds the parsed <code> objects (with their
+// templates, identifiers, parameters, and init and where attributes), and a skeleton of the element
+// tree (names and attributes only) to resolve references from user documents.  Instantiating this
+// avoids parsing the XML and the <code> elements.  The binary file records a checksum of the XML
+// file it was made from, and is only used if that matches; otherwise the XML file is parsed.
+//
+// Build step:  java hmmoc.xml.SnippetLibrary snippets.xml snippets.bin
+//
+
+public class SnippetLibrary {
+
+	static final int magic = 0x484d4c53;      // "HMLS"
+	static final int version = 1;
+
+	ParseDoc doc;             // library parsed from XML; or
+	byte[] compiled;          // compiled library
+	long checksum;            // checksum of XML file
+
+
+	// Loads library from XML file, or from the compiled file (may be null) if it was made from it
+	public static SnippetLibrary load( URL xml, URL bin ) {
+
+		SnippetLibrary library = new SnippetLibrary();
+		try {
+			library.checksum = checksum( readAll( xml ) );
+		} catch (IOException e) {
+			throw new Error( "IOException: "+e.getMessage() );
+		}
+		if (bin != null) {
+			try {
+				byte[] b = readAll( bin );
+				DataInputStream in = new DataInputStream( new ByteArrayInputStream( b ) );
+				if (in.readInt() == magic && in.readInt() == version && in.readLong() == library.checksum) {
+					library.compiled = b;
+					return library;
+				}
+			} catch (IOException e) {
+				// use XML
+			}
+		}
+		library.doc = new ParseDoc( xml, "snippets", new TreeMap() );
+		return library;
+	}
+
+
+	// Returns checksum of the XML file the library was loaded from
+	public long getChecksum() {
+
+		return checksum;
+	}
+
+
+	// Returns the library for use in one compilation; its elements and objects may be changed
+	public ParseDoc instantiate() {
+
+		if (compiled == null) {
+			ParseDoc d = new ParseDoc( doc );
+			d.parseCode();
+			return d;
+		}
+		try {
+			return read( new DataInputStream( new ByteArrayInputStream( compiled ) ) );
+		} catch (IOException e) {
+			throw new Error( "SnippetLibrary: unexpected I/O error", e );
+		}
+	}
+
+
+	static byte[] readAll( URL url ) throws IOException {
+
+		InputStream in = url.openStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read( buffer )) != -1) {
+			out.write( buffer, 0, n );
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+
+	static long checksum( byte[] b ) {
+
+		CRC32 crc = new CRC32();
+		crc.update( b );
+		return crc.getValue();
+	}
+
+
+	static void writeString( DataOutputStream out, String s ) throws IOException {
+
+		if (s == null) {
+			out.writeInt( -1 );
+		} else {
+			byte[] b = s.getBytes( "UTF-8" );
+			out.writeInt( b.length );
+			out.write( b );
+		}
+	}
+
+
+	static String readString( DataInputStream in ) throws IOException {
+
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		byte[] b = new byte[ length ];
+		in.readFully( b );
+		return new String( b, "UTF-8" );
+	}
+
+
+	// Writes compiled library.  The document must have had its <code> elements parsed.
+	static void write( ParseDoc doc, long xmlChecksum, DataOutputStream out ) throws IOException {
+
+		out.writeInt( magic );
+		out.writeInt( version );
+		out.writeLong( xmlChecksum );
+
+		// Elements, in the order in which parseId visits them, with the index of their parent (-1 for root)
+		List elements = new ArrayList();
+		Iterator i = doc.root.getDescendants( new org.jdom.filter.ElementFilter() );
+		while (i.hasNext()) {
+			elements.add( i.next() );
+		}
+		Map index = new IdentityHashMap();
+		writeString( out, doc.root.getName() );
+		out.writeInt( elements.size() );
+		for (int j=0; j<elements.size(); j++) {
+			Element e = (Element)elements.get(j);
+			index.put( e, new Integer(j) );
+			Integer parent = (Integer)index.get( e.getParent() );
+			out.writeInt( parent == null ? -1 : parent.intValue() );
+			writeString( out, e.getName() );
+			List attributes = e.getAttributes();
+			out.writeInt( attributes.size() );
+			for (int k=0; k<attributes.size(); k++) {
+				Attribute a = (Attribute)attributes.get(k);
+				writeString( out, a.getName() );
+				writeString( out, a.getValue() );
+			}
+		}
+
+		// Code objects, in the order in which parseCode makes them
+		List codeList = ParseUtils.parseDescendants( doc.root, "code", doc.idMap );
+		out.writeInt( codeList.size() );
+		for (int j=0; j<codeList.size(); j++) {
+			Element e = (Element)codeList.get(j);
+			Code c = (Code)doc.objects.get( e.getAttributeValue("id") );
+			out.writeInt( ((Integer)index.get( e )).intValue() );
+			c.write( out );
+		}
+	}
+
+
+	static ParseDoc read( DataInputStream in ) throws IOException {
+
+		in.readInt();         // magic, version and checksum have been checked
+		in.readInt();
+		in.readLong();
+
+		ParseDoc d = new ParseDoc();
+		d.root = new Element( readString( in ) );
+		d.document = new Document( d.root );
+		d.idMap = new TreeMap();
+		d.objects = new TreeMap();
+
+		Element[] elements = new Element[ in.readInt() ];
+		for (int j=0; j<elements.length; j++) {
+			int parent = in.readInt();
+			Element e = new Element( readString( in ) );
+			int attributes = in.readInt();
+			for (int k=0; k<attributes; k++) {
+				String name = readString( in );
+				e.setAttribute( name, readString( in ) );
+			}
+			if (parent == -1) {
+				d.root.addContent( e );
+			} else {
+				elements[parent].addContent( e );
+			}
+			elements[j] = e;
+			d.idMap.put( e.getAttributeValue("id"), e );
+		}
+
+		int codes = in.readInt();
+		for (int j=0; j<codes; j++) {
+			Element e = elements[ in.readInt() ];
+			d.objects.put( e.getAttributeValue("id"), new Code( e, in ) );
+		}
+		return d;
+	}
+
+
+	public static void main( String[] args ) throws IOException {
+
+		if (args.length != 2) {
+			System.out.println("Usage: java hmmoc.xml.SnippetLibrary snippets.xml snippets.bin");
+			System.exit(1);
+		}
+		URL xml = new File( args[0] ).toURL();
+		ParseDoc doc = new ParseDoc( xml, "snippets", new TreeMap() );
+		doc.parseCode();
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( args[1] ) ) );
+		write( doc, checksum( readAll( xml ) ), out );
+		out.close();
+	}
+
+}
@@ -0,0 +1,639 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import org.jdom.*;
+import java.util.*;
+
+import hmmoc.util.CompileUtils;
+import hmmoc.code.Book;
+import hmmoc.code.Text;
+import hmmoc.code.AlphabetCode;
+import hmmoc.code.Generator;
+import hmmoc.code.TemporariesCode;
+
+
+//
+// Forward and Viterbi recursions for profile HMMs, on striped vectors (striped="yes" or "int16").
+//
+// The HMM must have one output, and consist of a chain of match states M_1..M_K, insert states
+// I_k (from M_k and itself, to itself and M_k+1) and silent delete states D_k (from M_k-1, D_k-1
+// and B, to M_k+1, D_k+1 and E), and any number of 'special' states around it, of which one (B)
+// enters the profile and one (E) leaves it.  Match and insert states must emit one symbol, with
+// probabilities that do not depend on the position.  The profile states are computed by the
+// vector recursions of striped.h; the special states by scalar code generated here, in an order
+// that respects their silent transitions.  The function returns the natural log of the
+// probability (forward) or of the score (Viterbi) of the sequence; there is no DP table.
+//
+
+public class Striped {
+
+	static final int SPECIAL = 0;
+	static final int MATCH = 1;
+	static final int INSERT = 2;
+	static final int DELETE = 3;
+
+	String id;
+	String element;
+	HMM hmm;
+	TreeMap objects;
+	String name;
+	String semiring;               // StripedSum, StripedMax or StripedMaxInt16
+
+	// Structure of the profile, computed by analyze()
+	State[] states;
+	Transition[] transitions;
+	HashMap stateIndex;            // State -> Integer index into states
+	int[] kind;                    // SPECIAL, MATCH, INSERT or DELETE, per state
+	int[] node;                    // node of profile states, from 0
+	int numNodes;
+	State[] nodeMatch;             // match state of every node
+	int begin = -1;                // index of the state entering the profile, B, or -1
+	int end = -1;                  // index of the state leaving it, E, or -1
+	int[] specials;                // indices of the special states, in order of evaluation within a row
+	int[] specialNumber;           // number of a special state in aSpecial[], per state
+	boolean[] afterDeletes;          // for every special state, whether it is computed after the delete states
+
+
+	// True if element asks for a striped recursion
+	public static boolean isStriped( Element elem ) {
+
+		String striped = elem.getAttributeValue("striped");
+		return (striped != null) && !striped.equals("no");
+
+	}
+
+
+	public Striped( Element elem, TreeMap idRef, TreeMap objs ) {
+
+		id = elem.getAttributeValue("id");
+		element = elem.getName();
+
+		String striped = elem.getAttributeValue("striped");
+		if (element.equals("forward")) {
+			name = "Forward";
+			if (striped.equals("yes")) {
+				semiring = "StripedSum";
+			} else {
+				throw new Error("<forward> '"+id+"': Attribute 'striped' has value '"+striped+"', expected 'yes' or 'no'");
+			}
+		} else if (element.equals("viterbi")) {
+			name = "Viterbi";
+			if (striped.equals("yes")) {
+				semiring = "StripedMax";
+			} else if (striped.equals("int16")) {
+				semiring = "StripedMaxInt16";
+			} else {
+				throw new Error("<viterbi> '"+id+"': Attribute 'striped' has value '"+striped+"', expected 'yes', 'int16' or 'no'");
+			}
+		} else {
+			throw new Error("<"+element+"> '"+id+"': Attribute 'striped' can only be used with <forward> or <viterbi>");
+		}
+
+		// None of the options that need a DP table, or other recursions, apply
+		checkAbsent( elem, "outputTable", "no" );
+		checkAbsent( elem, "baumWelch", "no" );
+		checkAbsent( elem, "memory", "full" );
+		checkAbsent( elem, "traceback", "values" );
+		checkAbsent( elem, "stream", "no" );
+		checkAbsent( elem, "batch", "no" );
+
+		hmm = CompileUtils.getHMM(elem,idRef,objs);
+
+		if (CompileUtils.getBanding(elem,idRef,objs) != null) {
+			throw new Error("<"+element+"> '"+id+"': striped recursions cannot be banded");
+		}
+
+		if (elem.getAttributeValue("name") != null) {
+			name = elem.getAttributeValue("name");
+		}
+
+		objects = objs;
+
+	}
+
+
+	void checkAbsent( Element elem, String attribute, String value ) {
+
+		String v = elem.getAttributeValue(attribute);
+		if ((v != null) && !v.equals(value)) {
+			throw new Error("<"+element+"> '"+id+"': Attribute '"+attribute+"' cannot be used with 'striped'");
+		}
+
+	}
+
+
+	Code getCode( String id ) {
+
+		return Generator.getCode(id,objects);
+
+	}
+
+
+	Error profileError( String message ) {
+
+		return new Error("<"+element+"> '"+id+"': HMM '"+hmm.id+"' is not a profile HMM, as required by 'striped': "+message);
+
+	}
+
+
+	Emission getEmission( Transition t ) {
+
+		return (Emission)objects.get( t.emission );
+
+	}
+
+
+	boolean emits( Transition t ) {
+
+		return getEmission(t).outputVec.v[0] > 0;
+
+	}
+
+
+	int index( String state ) {
+
+		return ((Integer)stateIndex.get( objects.get( state ) )).intValue();
+
+	}
+
+
+	// Classifies states into match, insert, delete and special states, numbers the nodes, and
+	// orders the special states
+	void analyze() {
+
+		if (hmm.numOutputs != 1) {
+			throw profileError("it should have one output");
+		}
+
+		int n = hmm.states.length;
+		states = new State[n];
+		stateIndex = new HashMap();
+		for (int i=0; i<n; i++) {
+			states[i] = (State)objects.get( hmm.states[i] );
+			stateIndex.put( states[i], new Integer(i) );
+		}
+		transitions = new Transition[ hmm.transitions.length ];
+		for (int i=0; i<transitions.length; i++) {
+			transitions[i] = (Transition)objects.get( hmm.transitions[i] );
+		}
+
+		// Emitting (Moore) states, silent states, and self loops
+		boolean[] moore = new boolean[n];
+		boolean[] silent = new boolean[n];
+		boolean[] loop = new boolean[n];
+		for (int i=0; i<n; i++) {
+			moore[i] = (states[i].emission != null) && !states[i].start && !states[i].end &&
+				((Emission)objects.get( states[i].emission )).outputVec.v[0] == 1;
+			silent[i] = !states[i].start && !states[i].end;
+		}
+		for (int i=0; i<transitions.length; i++) {
+			Transition t = transitions[i];
+			int to = index( t.to );
+			if (emits( t )) {
+				silent[to] = false;
+			}
+			if (t.from.equals( t.to )) {
+				loop[to] = true;
+			}
+		}
+
+		// Match states: emitting, no self loop, and linked to another one.  They must form one chain
+		kind = new int[n];
+		node = new int[n];
+		int[] nextMatch = new int[n];
+		int[] prevMatch = new int[n];
+		Arrays.fill( nextMatch, -1 );
+		Arrays.fill( prevMatch, -1 );
+		for (int i=0; i<transitions.length; i++) {
+			int from = index( transitions[i].from );
+			int to = index( transitions[i].to );
+			if (moore[from] && moore[to] && !loop[from] && !loop[to] && from != to) {
+				if (nextMatch[from] != -1 || prevMatch[to] != -1) {
+					throw profileError("match states '"+transitions[i].from+"' and '"+transitions[i].to+"' do not form a single chain");
+				}
+				nextMatch[from] = to;
+				prevMatch[to] = from;
+			}
+		}
+		int first = -1;
+		int numMatches = 0;
+		for (int i=0; i<n; i++) {
+			if (nextMatch[i] != -1 || prevMatch[i] != -1) {
+				kind[i] = MATCH;
+				numMatches += 1;
+				if (prevMatch[i] == -1) {
+					if (first != -1) {
+						throw profileError("match states '"+states[first].id+"' and '"+states[i].id+"' both start a chain");
+					}
+					first = i;
+				}
+			}
+		}
+		if (first == -1) {
+			throw profileError("no chain of match states found");
+		}
+		numNodes = 0;
+		nodeMatch = new State[numMatches];
+		for (int i=first; i != -1; i = nextMatch[i]) {
+			if (numNodes == numMatches) {
+				throw profileError("match states form a loop");
+			}
+			node[i] = numNodes;
+			nodeMatch[numNodes++] = states[i];
+		}
+		if (numNodes != numMatches) {
+			throw profileError("match states do not form a single chain");
+		}
+
+		// Insert states: emitting with a self loop, entered from a match state
+		for (int i=0; i<transitions.length; i++) {
+			int from = index( transitions[i].from );
+			int to = index( transitions[i].to );
+			if (kind[from] == MATCH && moore[to] && loop[to]) {
+				if (kind[to] == INSERT && node[to] != node[from]) {
+					throw profileError("insert state '"+states[to].id+"' is entered from two match states");
+				}
+				kind[to] = INSERT;
+				node[to] = node[from];
+			}
+		}
+
+		// Delete states: silent, and one node after a match or delete state they come from, or
+		// one node before one they go to.  Nodes outside the profile mean the state is special
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i=0; i<n; i++) {
+				if (!silent[i] || kind[i] == DELETE) {
+					continue;
+				}
+				int k = -1;
+				boolean consistent = true;
+				for (int j=0; j<transitions.length; j++) {
+					int from = index( transitions[j].from );
+					int to = index( transitions[j].to );
+					int kk = -1;
+					if (to == i && (kind[from] == MATCH || kind[from] == DELETE)) {
+						kk = node[from] + 1;
+					} else if (from == i && (kind[to] == MATCH || kind[to] == DELETE)) {
+						kk = node[to] - 1;
+					} else {
+						continue;
+					}
+					if (k != -1 && kk != k) {
+						consistent = false;
+					}
+					k = kk;
+				}
+				if (consistent && k >= 0 && k < numNodes) {
+					kind[i] = DELETE;
+					node[i] = k;
+					changed = true;
+				}
+			}
+		}
+
+		// Check transitions touching the profile, and find B and E
+		for (int i=0; i<transitions.length; i++) {
+			Transition t = transitions[i];
+			int from = index( t.from );
+			int to = index( t.to );
+			if (kind[from] == SPECIAL && kind[to] == SPECIAL) {
+				continue;
+			}
+			if (kind[from] == SPECIAL) {
+				if (kind[to] == INSERT) {
+					throw profileError("transition '"+t.id+"' enters insert state '"+t.to+"' from outside the profile");
+				}
+				if (begin != -1 && begin != from) {
+					throw profileError("states '"+states[begin].id+"' and '"+t.from+"' both enter the profile");
+				}
+				begin = from;
+			} else if (kind[to] == SPECIAL) {
+				if (kind[from] == INSERT) {
+					throw profileError("transition '"+t.id+"' leaves the profile from insert state '"+t.from+"'");
+				}
+				if (emits( t )) {
+					throw profileError("transition '"+t.id+"' leaves the profile and emits");
+				}
+				if (end != -1 && end != to) {
+					throw profileError("states '"+states[end].id+"' and '"+t.to+"' both leave the profile");
+				}
+				end = to;
+			} else if (getCoreType( t ) == null) {
+				throw profileError("transition '"+t.id+"' from '"+t.from+"' to '"+t.to+"' does not fit a profile");
+			}
+		}
+		if (begin == -1) {
+			throw profileError("no state enters the profile");
+		}
+		if (begin == end) {
+			throw profileError("state '"+states[begin].id+"' enters and leaves the profile");
+		}
+
+		orderSpecials();
+
+	}
+
+
+	// Returns the StripedProfile transition type of a transition within the profile, or null
+	String getCoreType( Transition t ) {
+
+		int from = index( t.from );
+		int to = index( t.to );
+		int kf = kind[from];
+		int kt = kind[to];
+		int step = node[to] - node[from];
+		if (kf == MATCH && kt == MATCH && step == 1) return "cMM";
+		if (kf == INSERT && kt == MATCH && step == 1) return "cIM";
+		if (kf == DELETE && kt == MATCH && step == 1) return "cDM";
+		if (kf == MATCH && kt == INSERT && step == 0) return "cMI";
+		if (kf == INSERT && kt == INSERT && from == to) return "cII";
+		if (kf == MATCH && kt == DELETE && step == 1) return "cMD";
+		if (kf == DELETE && kt == DELETE && step == 1) return "cDD";
+		if (kf == SPECIAL && kt == MATCH) return "cBM";
+		if (kf == SPECIAL && kt == DELETE) return "cBD";
+		if (kf == MATCH && kt == SPECIAL) return "cME";
+		if (kf == DELETE && kt == SPECIAL) return "cDE";
+		return null;
+
+	}
+
+
+	// Orders the special states so that every state is computed after the states it receives
+	// from by silent transitions.  Match and insert states only receive from the previous
+	// position, and are computed first; the delete states count as one state, computed after B
+	// if B enters them, and before E if they leave to it
+	void orderSpecials() {
+
+		int n = states.length;
+		int core = n;                                 // node representing the delete states
+		ArrayList[] successors = new ArrayList[n+1];
+		int[] indegree = new int[n+1];
+		for (int i=0; i<=n; i++) {
+			successors[i] = new ArrayList();
+		}
+		for (int i=0; i<transitions.length; i++) {
+			Transition t = transitions[i];
+			int from = index( t.from );
+			int to = index( t.to );
+			if (emits( t ) || kind[from] == MATCH || (kind[from] != SPECIAL && kind[to] != SPECIAL)) {
+				continue;
+			}
+			if (from == to) {
+				throw profileError("state '"+t.from+"' has a silent self loop");
+			}
+			int f = (kind[from] == SPECIAL) ? from : core;
+			int g = (kind[to] == SPECIAL) ? to : core;
+			successors[f].add( new Integer(g) );
+			indegree[g] += 1;
+		}
+
+		// Kahn's algorithm, keeping the order of the states where possible
+		int numSpecials = 0;
+		for (int i=0; i<n; i++) {
+			if (kind[i] == SPECIAL) {
+				numSpecials += 1;
+			}
+		}
+		specials = new int[numSpecials];
+		specialNumber = new int[n];
+		afterDeletes = new boolean[n];
+		boolean[] done = new boolean[n+1];
+		int numDone = 0;
+		boolean coreDone = false;
+		while (numDone < numSpecials || !coreDone) {
+			int next = -1;
+			for (int i=0; i<=n && next == -1; i++) {
+				if (!done[i] && indegree[i] == 0 && (i == core || kind[i] == SPECIAL)) {
+					next = i;
+				}
+			}
+			if (next == -1) {
+				throw profileError("silent transitions form a loop");
+			}
+			done[next] = true;
+			if (next == core) {
+				coreDone = true;
+			} else {
+				specialNumber[next] = numDone;
+				afterDeletes[next] = coreDone;
+				specials[numDone++] = next;
+			}
+			for (int j=0; j<successors[next].size(); j++) {
+				indegree[ ((Integer)successors[next].get(j)).intValue() ] -= 1;
+			}
+		}
+
+	}
+
+
+	// Returns the expression for the probability with the given id, binding the symbol if given
+	String getProbability( Book book, TemporariesCode temporariesCode, String probability, String symbol, String what ) {
+
+		Probability p = (Probability)objects.get( probability );
+		if (p.numDependentPositions() > 0) {
+			throw profileError(what+" depends on the position");
+		}
+		p.reset();
+		if (symbol != null && p.canBindInput(0,0)) {
+			p.bindInput(0,0,symbol);
+		} else if (p.hasOutputs()) {
+			throw profileError(what+" depends on the sequence");
+		}
+		Text init = p.getInitText( objects, temporariesCode );
+		if (init.toString().trim().length() > 0) {
+			book.add( init );
+		}
+		return p.getResult( temporariesCode );
+
+	}
+
+
+	// Returns the probability of a transition, times its emission if it is silent
+	String getTransition( Book book, TemporariesCode temporariesCode, Transition t ) {
+
+		String prob = getProbability( book, temporariesCode, t.probability, null, "probability of transition '"+t.id+"'" );
+		if (!emits( t )) {
+			String em = getProbability( book, temporariesCode, getEmission( t ).probability, null, "emission '"+t.emission+"'" );
+			prob = "(" + prob + ")*(" + em + ")";
+		}
+		return prob;
+
+	}
+
+
+	String getSpecial( int state, boolean previous ) {
+
+		return (previous ? "aPrevious[" : "aSpecial[") + specialNumber[state] + "]";
+
+	}
+
+
+	public void generate( Book book, String language ) {
+
+		analyze();
+
+		Output output = (Output)objects.get( hmm.outputs[0] );
+		output.getPosId();
+
+		book.openScope("function");
+
+		book.openScope("define");
+
+		book.openScope("declare");
+
+		TemporariesCode temporariesCode = new TemporariesCode( hmm, book, "declare" );
+
+		book.openScope("init");
+
+		AlphabetCode alphabetCode = new AlphabetCode( hmm, book, output.alphabet, "declare", "init" );
+		String numSymbols = alphabetCode.getSize();
+
+		// Emissions of special transitions that emit, by emission id
+		ArrayList specialEmissions = new ArrayList();
+		for (int i=0; i<transitions.length; i++) {
+			Transition t = transitions[i];
+			if (emits( t ) && kind[index( t.to )] == SPECIAL && !specialEmissions.contains( t.emission )) {
+				specialEmissions.add( t.emission );
+			}
+		}
+		String numEmissions = Integer.toString( specialEmissions.size() );
+
+		book.add( getCode("hmlStripedDeclare").bind( semiring, Integer.toString( numNodes ), numSymbols,
+				Integer.toString( Math.max( specials.length, 1 ) ),
+				Integer.toString( Math.max( transitions.length, 1 ) ),
+				Integer.toString( Math.max( specialEmissions.size(), 1 ) ) ) );
+
+		// Transitions.  Special states use aSpecialTrans[], indexed by transition number
+		String[] specialTerm = new String[ transitions.length ];
+		for (int i=0; i<transitions.length; i++) {
+			Transition t = transitions[i];
+			String prob = getTransition( book, temporariesCode, t );
+			String type = getCoreType( t );
+			if (type == null) {
+				book.add( getCode("hmlStripedSpecialTransition").bind( Integer.toString(i), prob ) );
+			} else {
+				int k = (kind[index( t.to )] == SPECIAL) ? node[index( t.from )] : node[index( t.to )];
+				book.add( getCode("hmlStripedTransition").bind( type, Integer.toString(k), prob ) );
+			}
+		}
+
+		// Emissions of match and insert states, and special transitions, for every symbol
+		book.openScope("symbol");
+		book.addInitText("symbol", getCode("hmlStripedSymbolLoop").bind( numSymbols ) );
+		book.addExitText("symbol", getCode("hmlStripedSymbolLoopEnd").getText() );
+		String symbol = alphabetCode.getSymbol("iSymbolIndex");
+		for (int i=0; i<states.length; i++) {
+			if (kind[i] == MATCH || kind[i] == INSERT) {
+				Emission em = (Emission)objects.get( states[i].emission );
+				if (em.order[0] > 0) {
+					throw profileError("emission '"+em.id+"' has order "+em.order[0]+", expected 0");
+				}
+				String prob = getProbability( book, temporariesCode, em.probability, symbol, "emission '"+em.id+"'" );
+				book.add( getCode( kind[i] == MATCH ? "hmlStripedMatchEmission" : "hmlStripedInsertEmission" ).bind( Integer.toString( node[i] ), prob ) );
+			}
+		}
+		for (int i=0; i<specialEmissions.size(); i++) {
+			Emission em = (Emission)objects.get( specialEmissions.get(i) );
+			if (em.order[0] > 0) {
+				throw profileError("emission '"+em.id+"' has order "+em.order[0]+", expected 0");
+			}
+			String prob = getProbability( book, temporariesCode, em.probability, symbol, "emission '"+em.id+"'" );
+			book.add( getCode("hmlStripedSpecialEmission").bind( Integer.toString(i), numEmissions, prob ) );
+		}
+		book.closeScope("symbol");
+
+		// The recursion, one row per position
+		String seqSymbol = output.seqId + "[iPos-1]";
+		book.openScope("row");
+		book.addInitText("row", getCode("hmlStripedRowStart").bind( output.lenId, alphabetCode.getIndex( seqSymbol ),
+				Integer.toString( specials.length ) ) );
+		book.addExitText("row", getCode("hmlStripedRowEnd").bind( output.lenId ) );
+		book.add( getCode("hmlStripedMatchInsert").bind( getSpecial( begin, true ) ) );
+		boolean deletes = false;
+		for (int i=0; i<states.length; i++) {
+			deletes |= kind[i] == DELETE;
+		}
+		for (int s=0; s<specials.length; s++) {
+			int state = specials[s];
+			if (afterDeletes[state] && (s == 0 || !afterDeletes[ specials[s-1] ]) && deletes) {
+				book.add( getCode("hmlStripedDeletes").bind( getSpecial( begin, false ) ) );
+			}
+			String value = "S::zero()";
+			if (states[state].start) {
+				value = "(iPos == 0 ? S::one() : S::zero())";
+			}
+			boolean fromMatch = false;
+			boolean fromDelete = false;
+			for (int i=0; i<transitions.length; i++) {
+				Transition t = transitions[i];
+				if (index( t.to ) != state) {
+					continue;
+				}
+				int from = index( t.from );
+				if (kind[from] == MATCH) {
+					fromMatch = true;
+				} else if (kind[from] == DELETE) {
+					fromDelete = true;
+				} else if (emits( t )) {
+					value = "S::plus( " + value + ", " + getCode("hmlStripedEmitting").bind( getSpecial( from, true ), Integer.toString(i),
+							numEmissions, Integer.toString( specialEmissions.indexOf( t.emission ) ) ).toString().trim() + " )";
+				} else {
+					value = "S::plus( " + value + ", S::times( " + getSpecial( from, false ) + ", aSpecialTrans[" + i + "] ) )";
+				}
+			}
+			if (fromMatch) {
+				value = "S::plus( " + value + ", iCoreEnd )";
+			}
+			if (fromDelete) {
+				value = "S::plus( " + value + ", iDeleteEnd )";
+			}
+			book.add( getCode("hmlStripedSpecial").bind( getSpecial( state, false ), value, states[state].id ) );
+			book.add( getCode("hmlStripedRowTotal").bind( getSpecial( state, false ) ) );
+		}
+		if (deletes && !afterDeletes[ specials[specials.length-1] ]) {
+			book.add( getCode("hmlStripedDeletes").bind( getSpecial( begin, false ) ) );
+		}
+		book.closeScope("row");
+
+		Code.emitInitCode(objects, book, "", "declare");
+
+		String pars = Code.getParameters(objects);
+
+		book.closeScope("init");
+
+		temporariesCode.exit();
+
+		book.add( getCode("hmlStripedReturn").bind( getSpecial( index( hmm.endState.id ), false ) ) );
+
+		book.closeScope("declare");
+
+		book.closeScope("define");
+
+		book.addInitText( "function", getCode("hmlStripedStart").bind(name,pars));
+		book.addExitText( "function", getCode("hmlStripedEnd").getText() );
+		book.addInitText( "header-funcdecl", getCode("hmlStripedDeclaration").bind(name,pars));
+
+		book.closeScope("function");
+
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ *    This file is part of HMMoC 1.3, a hidden Markov model compiler.
+ *    Copyright (C) 2007 by Gerton Lunter, Oxford University.
+ *
+ *    HMMoC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    HMMOC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HMMoC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+\*/
+package hmmoc.xml;
+
+import java.util.*;
+
+import hmmoc.util.IntVec;
+
+
+//
+// Adjacency index of the transitions entering (forward) or leaving (backward) a clique.
+//
+// Built once by HMM.analyze, after which it is never changed.  Keys are (emission vector,
+// from-clique, to-state, from-state), where 'from' and 'to' are taken in the direction of
+// the recursion.  The Clique query functions answer from this index, so that the cost of
+// a query is proportional to the size of its result rather than to the number of transitions.
+//
+// All results list their elements in order of first occurrence in Clique.getTransitions(),
+// except that the zero emission vector, and the clique itself, are put last.
+//
+
+class TransitionIndex {
+
+	static final IntVec[] noVectors = new IntVec[0];
+	static final Emission[] noEmissions = new Emission[0];
+	static final Clique[] noCliques = new Clique[0];
+	static final State[] noStates = new State[0];
+	static final Transition[] noTransitions = new Transition[0];
+
+	Clique clique;
+	boolean forward;
+
+	IntVec[] emissionVectors;
+	Map emissions = new HashMap();          // [emission vector] -> Emission[]
+	Map fromBlocks = new HashMap();         // [emission vector] -> Clique[]
+	Map toStates = new HashMap();           // [emission vector, from clique] -> State[]
+	Map fromStates = new HashMap();         // [emission vector, from clique, to state] -> State[]
+	Map fromToTransitions = new HashMap();  // [emission vector, from clique, to state, from state] -> Transition[]
+	Map selfStateTransitions = new HashMap();  // [to state] -> List of silent self transitions
+
+	// Same, but seen from the originating state of forward transitions (used by Sample)
+	Map origStates = new HashMap();         // [emission vector] -> State[]
+	Map targetStates = new HashMap();       // [emission vector, originating state] -> State[]
+	Map origTargetTransitions = new HashMap();  // [emission vector, originating state, target state] -> Transition[]
+
+
+	TransitionIndex( Clique clique0, boolean forward0, TreeMap objects ) {
+
+		clique = clique0;
+		forward = forward0;
+
+		List vectors = new ArrayList();
+		boolean hasZero = false;
+		IntVec zero = new IntVec( clique.numOutputs );
+		Set selfVectors = new HashSet(0);
+
+		Iterator i = clique.getTransitions(forward).iterator();
+		while (i.hasNext()) {
+			Transition t = (Transition)objects.get(i.next());
+			Emission e = (Emission)objects.get(t.emission);
+			IntVec vec = new IntVec( e.outputVec );
+			Clique from = (Clique)objects.get( t.getFromBlock(forward) );
+			State fromState = (State)objects.get( t.getFrom(forward) );
+			State toState = (State)objects.get( t.getTo(forward) );
+
+			if (vec.isZero()) {
+				hasZero = true;
+			} else if (!emissions.containsKey( vec )) {
+				vectors.add( vec );
+			}
+			add( emissions, vec, e );
+			if (from == clique) {
+				// keep track of self references per emission vector, to put them last
+				selfVectors.add( vec );
+				if (!fromBlocks.containsKey( vec ))
+					fromBlocks.put( vec, new LinkedHashSet(0) );
+			} else {
+				add( fromBlocks, vec, from );
+			}
+			add( toStates, key(vec, from), toState );
+			add( fromStates, key(vec, from, toState), fromState );
+			add( fromToTransitions, key(vec, from, toState, fromState), t );
+
+			if (vec.isZero() && from == clique) {
+				List l = (List)selfStateTransitions.get( toState.id );
+				if (l == null) {
+					l = new ArrayList(0);
+					selfStateTransitions.put( toState.id, l );
+				}
+				l.add( t );
+			}
+
+			if (forward) {
+				State orig = (State)objects.get( t.from );
+				State target = (State)objects.get( t.to );
+				add( origStates, vec, orig );
+				add( targetStates, key(vec, orig), target );
+				add( origTargetTransitions, key(vec, orig, target), t );
+			}
+		}
+		if (hasZero)
+			vectors.add( zero );
+		emissionVectors = (IntVec[])vectors.toArray( noVectors );
+
+		// Put self clique last
+		Iterator j = selfVectors.iterator();
+		while (j.hasNext()) {
+			((Set)fromBlocks.get( j.next() )).add( clique );
+		}
+
+		// Freeze everything into arrays
+		freeze( emissions, noEmissions );
+		freeze( fromBlocks, noCliques );
+		freeze( toStates, noStates );
+		freeze( fromStates, noStates );
+		freeze( fromToTransitions, noTransitions );
+		freeze( origStates, noStates );
+		freeze( targetStates, noStates );
+		freeze( origTargetTransitions, noTransitions );
+
+	}
+
+
+	// helpers to build composite keys
+	static List key( Object a, Object b ) {
+		return Arrays.asList( new Object[] { a, b } );
+	}
+
+	static List key( Object a, Object b, Object c ) {
+		return Arrays.asList( new Object[] { a, b, c } );
+	}
+
+	static List key( Object a, Object b, Object c, Object d ) {
+		return Arrays.asList( new Object[] { a, b, c, d } );
+	}
+
+
+	// Adds element to ordered set in map; identical elements are added only once
+	static void add( Map m, Object key, Object element ) {
+
+		Set s = (Set)m.get( key );
+		if (s == null) {
+			s = new LinkedHashSet(0);
+			m.put( key, s );
+		}
+		s.add( element );
+	}
+
+
+	// Replaces all sets in map by arrays of given type
+	static void freeze( Map m, Object[] type ) {
+
+		Iterator i = m.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry entry = (Map.Entry)i.next();
+			entry.setValue( ((Set)entry.getValue()).toArray( type ) );
+		}
+	}
+
+
+	// Returns copy of array stored under key, or empty array
+	static Object[] lookup( Map m, Object key, Object[] empty ) {
+
+		Object[] a = (Object[])m.get( key );
+		if (a == null)
+			return empty;
+		return (Object[])a.clone();
+	}
+
+
+	IntVec[] getEmissionVectors() {
+
+		IntVec[] v = new IntVec[ emissionVectors.length ];
+		for (int i=0; i<v.length; i++) {
+			v[i] = new IntVec( emissionVectors[i] );
+		}
+		return v;
+	}
+
+
+	Emission[] getEmissions( IntVec emission ) {
+		return (Emission[])lookup( emissions, emission, noEmissions );
+	}
+
+
+	Clique[] getFromBlocks( IntVec emission ) {
+		return (Clique[])lookup( fromBlocks, emission, noCliques );
+	}
+
+
+	State[] getToStates( IntVec emission, Clique from ) {
+		return (State[])lookup( toStates, key(emission, from), noStates );
+	}
+
+
+	State[] getFromStates( IntVec emission, Clique from, State to ) {
+		return (State[])lookup( fromStates, key(emission, from, to), noStates );
+	}
+
+
+	Transition[] getFromToTransitions( IntVec emission, Clique from, State to, State fromState ) {
+		return (Transition[])lookup( fromToTransitions, key(emission, from, to, fromState), noTransitions );
+	}
+
+
+	List getSelfStateTransitions( String state ) {
+
+		List l = (List)selfStateTransitions.get( state );
+		if (l == null)
+			return new ArrayList(0);
+		return new ArrayList( l );
+	}
+
+
+	State[] getOrigStates( IntVec emission ) {
+		return (State[])lookup( origStates, emission, noStates );
+	}
+
+
+	State[] getTargetStates( IntVec emission, State orig ) {
+		return (State[])lookup( targetStates, key(emission, orig), noStates );
+	}
+
+
+	Transition[] getOrigTargetTransitions( IntVec emission, State orig, State target ) {
+		return (Transition[])lookup( origTargetTransitions, key(emission, orig, target), noTransitions );
+	}
+
+}